@@ -0,0 +1,177 @@
+package com.wurgobes.ftm2;
+/* Adaptive thread count and block size
+(c) 2026 FTM2 contributors, Hohlbein Lab, Wageningen University
+
+On machines with many cores, 16 and 32 bit data run into memory bandwidth and cache capacity long before all
+cores are busy, and the block size that keeps the histograms in L2 depends on the cache of the machine.
+Instead of a fixed thread count and block size, TemporalMedian processes the first rows in short trials
+and this controller picks the setting of every trial from the throughput of the ones before it:
+first the thread count is halved for as long as that is faster, then the block size is halved, or doubled
+when smaller blocks are not faster. The best setting is kept for the rest of the run, also by later calls
+(brackets), and every choice is logged with the throughput it was based on.
+The first trial only warms up the JIT, its throughput is not used.
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+ */
+
+import java.util.function.Consumer;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+class AdaptiveController {
+
+    // A trial covers at least this part of the rows of a call, so its throughput is not dominated by its tail
+    private static final int TRIAL_FRACTION = 32;
+    // Every thread gets at least this many blocks in a trial
+    private static final int TRIAL_BLOCKS = 8;
+    // A setting has to be this much faster than the best one to replace it, to not chase noise
+    private static final double MARGIN = 0.05;
+    // Block sizes are tried between 1/8 and 4 times the size that fits the histogram budget
+    private static final int MIN_SHIFT = -3;
+    private static final int MAX_SHIFT = 2;
+
+    private enum Stage { WARMUP, BASELINE, THREADS, SMALLER, LARGER, SETTLED }
+
+    // The thread count and block size of a chunk of rows. shift scales the block size of every series by 2^shift
+    static final class Setting {
+        final int threads;
+        final int shift;
+        final long rows;
+        final boolean trial;
+
+        Setting(final int threads, final int shift, final long rows, final boolean trial) {
+            this.threads = threads;
+            this.shift = shift;
+            this.rows = rows;
+            this.trial = trial;
+        }
+    }
+
+    private final Consumer<String> log;
+    private Stage stage = Stage.WARMUP;
+    private int bestThreads;
+    private int bestShift = 0;
+    private double bestRate = 0;
+    private int threads;
+    private int shift = 0;
+
+    AdaptiveController(final int maxThreads, final Consumer<String> log) {
+        this.bestThreads = max(1, maxThreads);
+        this.threads = bestThreads;
+        this.log = log;
+    }
+
+    // A block of size pixels scaled by 2^shift, it stays within 1 and limit pixels
+    static int scale(final int size, final int shift, final int limit) {
+        return max(1, min(limit, shift >= 0 ? size << shift : size >> -shift));
+    }
+
+    // The setting for the next chunk, when left out of rows rows are still to be processed in this call
+    // blockSize is the unscaled block size, limit the largest a block can be and rowPixels the pixels in a row
+    synchronized Setting next(final long left, final long rows, final int blockSize, final int limit, final int rowPixels) {
+        skipUnchanged(blockSize, limit);
+        if (stage == Stage.SETTLED) return new Setting(bestThreads, bestShift, left, false);
+
+        // A call that is too small for a trial runs with the best setting so far, the trials go on in the next call
+        final long minRows = ((long) TRIAL_BLOCKS * threads * scale(blockSize, shift, limit) + rowPixels - 1) / rowPixels;
+        final long trialRows = max(rows / TRIAL_FRACTION, minRows);
+        if (trialRows * 4 > left) return new Setting(bestThreads, bestShift, left, false);
+        return new Setting(threads, shift, trialRows, true);
+    }
+
+    // Throughput of a trial, in pixels (of all frames) per second
+    synchronized void measured(final Setting setting, final long pixels, final long nanos, final int blockSize) {
+        if (!setting.trial || stage == Stage.SETTLED) return;
+        final double rate = pixels / max(1e-9, nanos / 1e9);
+        final String described = setting.threads + " threads and blocks of " + blockSize + " pixels: " + String.format("%.1f", rate / 1e6) + " Mpx/s";
+
+        switch (stage) {
+            case WARMUP:
+                stage = Stage.BASELINE;
+                return;
+            case BASELINE:
+                bestRate = rate;
+                log.accept("Adaptive: starting from " + described);
+                stage = Stage.THREADS;
+                threads = bestThreads / 2;
+                shift = bestShift;
+                return;
+            default:
+                break;
+        }
+
+        final boolean better = rate > bestRate * (1 + MARGIN);
+        if (better) {
+            log.accept("Adaptive: " + described + ", faster than " + String.format("%.1f", bestRate / 1e6) + " Mpx/s, using it");
+            bestThreads = threads;
+            bestShift = shift;
+            bestRate = rate;
+        } else {
+            log.accept("Adaptive: " + described + ", not faster, keeping " + bestThreads + " threads and blocks scaled by " + factor(bestShift));
+        }
+
+        switch (stage) {
+            case THREADS:
+                if (better) {
+                    threads = bestThreads / 2;
+                } else {
+                    stage = Stage.SMALLER;
+                    threads = bestThreads;
+                    shift = bestShift - 1;
+                }
+                break;
+            case SMALLER:
+                if (better) {
+                    shift = bestShift - 1;
+                } else if (bestShift == 0) {
+                    // Only try larger blocks when smaller ones did not help
+                    stage = Stage.LARGER;
+                    shift = bestShift + 1;
+                } else {
+                    settle();
+                }
+                break;
+            case LARGER:
+                if (better) shift = bestShift + 1;
+                else settle();
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Trials that would not change the setting are skipped
+    private void skipUnchanged(final int blockSize, final int limit) {
+        if (stage == Stage.THREADS && threads < 1) {
+            stage = Stage.SMALLER;
+            threads = bestThreads;
+            shift = bestShift - 1;
+        }
+        if (stage == Stage.SMALLER && (shift < MIN_SHIFT || scale(blockSize, shift, limit) == scale(blockSize, bestShift, limit))) {
+            if (bestShift == 0) {
+                stage = Stage.LARGER;
+                shift = bestShift + 1;
+            } else {
+                settle();
+            }
+        }
+        if (stage == Stage.LARGER && (shift > MAX_SHIFT || scale(blockSize, shift, limit) == scale(blockSize, bestShift, limit))) settle();
+    }
+
+    private void settle() {
+        stage = Stage.SETTLED;
+        threads = bestThreads;
+        shift = bestShift;
+        log.accept("Adaptive: settled on " + bestThreads + " threads and blocks scaled by " + factor(bestShift)
+                + " (" + String.format("%.1f", bestRate / 1e6) + " Mpx/s)");
+    }
+
+    private static String factor(final int shift) {
+        return shift >= 0 ? "" + (1 << shift) : "1/" + (1 << -shift);
+    }
+}
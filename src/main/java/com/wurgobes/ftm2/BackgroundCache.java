@@ -0,0 +1,293 @@
+package com.wurgobes.ftm2;
+/* On-disk cache of computed backgrounds
+(c) 2026 FTM2 contributors, Hohlbein Lab, Wageningen University
+
+Stores the per-pixel background (the temporal median) of a run, so a later run on the same
+input with the same window can subtract it instead of calculating all medians again.
+Entries are keyed by a fingerprint of the input files, the window and the bit depth.
+The background is stored every `step` frames and linearly interpolated in between,
+which keeps an entry at a fraction of the size of the input.
+Once the cache directory grows above its size limit the least recently used entries are removed.
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+ */
+
+import ij.Prefs;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static ij.util.ThreadUtil.createThreadArray;
+import static ij.util.ThreadUtil.startAndJoin;
+
+class BackgroundCache {
+
+    private static final int MAGIC = 0x46544D42; // "FTMB"
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".ftmbg";
+
+    // Only the start of every file is hashed, the size and modification time catch the rest
+    private static final int FINGERPRINT_BYTES = 1 << 16;
+
+    private final File dir;
+    private final long maxBytes;
+
+    BackgroundCache(final File dir, final long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    // Create the key for a set of input files and settings
+    // The files are sorted so the order in which they were selected does not matter
+    static String key(final List<File> files, final int window, final int bitDepth, final double range) throws IOException {
+        final List<File> sorted = new ArrayList<>(files);
+        sorted.sort(Comparator.comparing(File::getAbsolutePath));
+
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            for (File file : sorted) {
+                digest.update((file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified()).getBytes(StandardCharsets.UTF_8));
+                try (InputStream in = new FileInputStream(file)) {
+                    final byte[] buffer = new byte[FINGERPRINT_BYTES];
+                    final int read = in.read(buffer);
+                    if (read > 0) digest.update(buffer, 0, read);
+                }
+            }
+            digest.update(("|" + window + "|" + bitDepth + (bitDepth == 32 ? "|" + range : "")).getBytes(StandardCharsets.UTF_8));
+
+            final StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private File file(final String key) {
+        return new File(dir, key + SUFFIX);
+    }
+
+    // Returns the cached background for the key, or null if there is none or it can't be read
+    Entry find(final String key) {
+        final File file = file(key);
+        if (!file.isFile()) return null;
+
+        try {
+            final Entry entry = Entry.read(file);
+            file.setLastModified(System.currentTimeMillis()); // Mark as recently used for eviction
+            return entry;
+        } catch (IOException e) {
+            // A broken entry is worse than no entry
+            if (!file.delete()) file.deleteOnExit();
+            return null;
+        }
+    }
+
+    // Create a recorder for the frames first until last (0-based, inclusive) of the input
+    Recorder recorder(final String key, final int width, final int height, final int bitDepth,
+                      final int window, final int first, final int last, final int step) {
+        return new Recorder(key, width, height, bitDepth, window, first, last, step);
+    }
+
+    // Remove the least recently used entries until the cache fits in maxBytes again
+    // The entry that was just written is never removed
+    private void evict(final File keep) {
+        final File[] entries = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (entries == null) return;
+
+        long total = 0;
+        for (File entry : entries) total += entry.length();
+
+        Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+        for (File entry : entries) {
+            if (total <= maxBytes) break;
+            if (entry.equals(keep)) continue;
+            final long size = entry.length();
+            if (entry.delete()) total -= size;
+        }
+    }
+
+    // Sampled background planes, with the absolute frame each sample belongs to
+    static class Entry {
+        final int width;
+        final int height;
+        final int bitDepth;
+        final int window;
+        final int[] frames;
+        final PlaneAccess samples;
+
+        Entry(final int width, final int height, final int bitDepth, final int window, final int[] frames, final PlaneAccess samples) {
+            this.width = width;
+            this.height = height;
+            this.bitDepth = bitDepth;
+            this.window = window;
+            this.frames = frames;
+            this.samples = samples;
+        }
+
+        // Does the entry hold a background for frames first until last (0-based, inclusive)
+        boolean covers(final int width, final int height, final int first, final int last) {
+            return this.width == width && this.height == height
+                    && frames.length > 0 && frames[0] <= first && frames[frames.length - 1] >= last;
+        }
+
+        // Frames between the stored ones are interpolated, so the output only equals that of the median when every frame is stored
+        String describe() {
+            final int step = frames.length > 1 ? frames[1] - frames[0] : 1;
+            if (step <= 1) return "stored for every frame, the output is exact";
+            return "stored every " + step + " frames and interpolated in between, the output is approximate (use cache_step=1 for an exact background)";
+        }
+
+        // Subtract the cached background from the frames zFrom until zTo of planes, clamping at 0.
+        // frameOffset is the absolute frame of plane 0
+        void subtract(final PlaneAccess planes, final int frameOffset, final int zFrom, final int zTo) {
+            final AtomicInteger ai = new AtomicInteger(zFrom);
+            final Thread[] threads = createThreadArray(Prefs.getThreads());
+            for (int ithread = 0; ithread < threads.length; ithread++) {
+                threads[ithread] = new Thread(() -> {
+                    final int[] row = new int[width];
+                    final int[] background = new int[width];
+                    final int[] next = new int[width];
+
+                    for (int z = ai.getAndIncrement(); z < zTo; z = ai.getAndIncrement()) {
+                        final int frame = z + frameOffset;
+
+                        // Find the samples around this frame
+                        int s = Arrays.binarySearch(frames, frame);
+                        final boolean exact = s >= 0;
+                        if (!exact) s = -s - 2;
+                        final double t = exact ? 0 : (frame - frames[s]) / (double) (frames[s + 1] - frames[s]);
+
+                        for (int y = 0; y < height; y++) {
+                            samples.readRow(s, y, 0, width, background);
+                            if (!exact) {
+                                samples.readRow(s + 1, y, 0, width, next);
+                                for (int x = 0; x < width; x++)
+                                    background[x] = (int) Math.round(background[x] + (next[x] - background[x]) * t);
+                            }
+                            planes.readRow(z, y, 0, width, row);
+                            PlaneOps.subtractClamp(row, background, width);
+                            planes.writeRow(z, y, 0, width, row);
+                        }
+                    }
+                });
+            }
+            startAndJoin(threads);
+        }
+
+        static Entry read(final File file) throws IOException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(new FileInputStream(file))))) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException("Not a background cache file: " + file);
+
+                final int width = in.readInt();
+                final int height = in.readInt();
+                final int bitDepth = in.readInt();
+                final int window = in.readInt();
+                final int[] frames = new int[in.readInt()];
+                for (int i = 0; i < frames.length; i++) frames[i] = in.readInt();
+
+                final Object[] planes = allocate(bitDepth, frames.length, width * height);
+                for (Object plane : planes) {
+                    if (plane instanceof byte[]) in.readFully((byte[]) plane);
+                    else if (plane instanceof short[]) for (int i = 0; i < ((short[]) plane).length; i++) ((short[]) plane)[i] = in.readShort();
+                    else for (int i = 0; i < ((int[]) plane).length; i++) ((int[]) plane)[i] = in.readInt();
+                }
+
+                return new Entry(width, height, bitDepth, window, frames, PlaneAccess.ofArrays(planes, new int[planes.length], width, height));
+            }
+        }
+
+        private void write(final File file, final Object[] planes) throws IOException {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new DeflaterOutputStream(new FileOutputStream(file), new Deflater(Deflater.BEST_SPEED), 1 << 16)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(width);
+                out.writeInt(height);
+                out.writeInt(bitDepth);
+                out.writeInt(window);
+                out.writeInt(frames.length);
+                for (int frame : frames) out.writeInt(frame);
+
+                for (Object plane : planes) {
+                    if (plane instanceof byte[]) out.write((byte[]) plane);
+                    else if (plane instanceof short[]) for (short v : (short[]) plane) out.writeShort(v);
+                    else for (int v : (int[]) plane) out.writeInt(v);
+                }
+            }
+        }
+    }
+
+    // Stores the backgrounds of the sampled frames while TemporalMedian runs
+    // Rows come numbered as output planes (see TemporalMedian.RowListener.window), and output plane 0 is frame first
+    class Recorder implements TemporalMedian.RowListener {
+        private final String key;
+        private final Entry entry;
+        private final Object[] planes;
+        private final int first;
+        private final int last;
+        private final int step;
+
+        Recorder(final String key, final int width, final int height, final int bitDepth,
+                 final int window, final int first, final int last, final int step) {
+            this.key = key;
+            this.first = first;
+            this.last = last;
+            this.step = Math.max(1, step);
+
+            // Every step frames, and always the last frame so interpolation covers the whole range
+            final int samples = (last - first) / this.step + 1 + ((last - first) % this.step == 0 ? 0 : 1);
+            final int[] frames = new int[samples];
+            for (int i = 0; i < samples - 1; i++) frames[i] = first + i * this.step;
+            frames[samples - 1] = last;
+
+            this.planes = allocate(bitDepth, samples, width * height);
+            this.entry = new Entry(width, height, bitDepth, window, frames, PlaneAccess.ofArrays(planes, new int[samples], width, height));
+        }
+
+        @Override
+        public void row(final int plane, final int y, final int x0, final int len, final int[] background, final int[] corrected) {
+            final int frame = plane + first;
+            final int sample;
+            if (frame == last) sample = entry.frames.length - 1;
+            else if (frame >= first && (frame - first) % step == 0) sample = (frame - first) / step;
+            else return;
+
+            entry.samples.writeRow(sample, y, x0, len, background);
+        }
+
+        // Write the entry to the cache directory and evict old entries
+        void save() throws IOException {
+            if (!dir.exists() && !dir.mkdirs()) throw new IOException("Could not create cache directory " + dir);
+            final File file = file(key);
+            final File temp = new File(dir, key + SUFFIX + ".tmp");
+            entry.write(temp, planes);
+            if (file.exists() && !file.delete()) throw new IOException("Could not replace " + file);
+            if (!temp.renameTo(file)) throw new IOException("Could not write " + file);
+            evict(file);
+        }
+    }
+
+    private static Object[] allocate(final int bitDepth, final int count, final int size) {
+        final Object[] planes = new Object[count];
+        for (int i = 0; i < count; i++) {
+            if (bitDepth == 8) planes[i] = new byte[size];
+            else if (bitDepth == 16) planes[i] = new short[size];
+            else planes[i] = new int[size];
+        }
+        return planes;
+    }
+}
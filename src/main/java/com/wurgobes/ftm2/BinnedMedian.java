@@ -0,0 +1,200 @@
+package com.wurgobes.ftm2;
+/* Binned background estimation
+(c) 2026 FTM2 contributors, Hohlbein Lab, Wageningen University
+
+When the background is smooth over several pixels, the temporal median does not have to be taken of every pixel.
+The frames are binned (bin x bin means) into a small copy, TemporalMedian runs on that copy, and its background
+is upsampled with bilinear interpolation and subtracted from the frames at full resolution.
+This cuts the median work by the bin area.
+To know what this costs in accuracy, the exact filter is also run on a band of rows in the middle of the frame,
+and the interpolated background is compared against it.
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+ */
+
+import ij.Prefs;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+class BinnedMedian {
+
+    // Rows of the band that is compared against the exact filter
+    private static final int SAMPLE_ROWS = 16;
+
+    // How far the binned background is from the exact one, over the sampled pixels
+    static class Report {
+        long pixels = 0;
+        double sumError = 0;
+        double sumSquaredError = 0;
+        long maxError = 0;
+
+        void add(final long error) {
+            pixels++;
+            sumError += Math.abs(error);
+            sumSquaredError += (double) error * error;
+            maxError = max(maxError, Math.abs(error));
+        }
+
+        String describe() {
+            if (pixels == 0) return "no pixels were compared against the exact filter";
+            return String.format("background error against the exact filter over %d pixels: mean %.3f, rms %.3f, max %d",
+                    pixels, sumError / pixels, Math.sqrt(sumSquaredError / pixels), maxError);
+        }
+    }
+
+    // The same as TemporalMedian.main, with the background taken from bin x bin binned frames
+    static Report main(final PlaneAccess planes, final int series, final int bin, final int window,
+                       final int offset, final int end, final TemporalMedian.RowListener listener) {
+        final Report report = new Report();
+        for (PlaneAccess s : PlaneAccess.series(planes, series))
+            run(s, bin, window, offset, end, listener, report);
+        return report;
+    }
+
+    private static void run(final PlaneAccess planes, final int bin, final int window, final int offset, final int end,
+                            final TemporalMedian.RowListener listener, final Report report) {
+        final int w = planes.width;
+        final int h = planes.height;
+        final int bw = (w + bin - 1) / bin;
+        final int bh = (h + bin - 1) / bin;
+        final int zSize = min(planes.depth, end);
+        final int frames = zSize - offset;
+        final int threads = Prefs.getThreads();
+
+        // Bin the frames, plane 0 of the binned copy is frame offset. A mean always fits in the type of the input
+        final PlaneAccess binned = PlaneAccess.ofArrays(allocate(planes.bitDepth(), frames, bw * bh), new int[frames], bw, bh);
+        final AtomicLong zi = new AtomicLong(0);
+        TemporalMedian.parallel(null, threads, () -> {
+            final int[] row = new int[w];
+            final int[] means = new int[bw];
+            final long[] sums = new long[bw];
+            for (int z = (int) zi.getAndIncrement(); z < frames; z = (int) zi.getAndIncrement()) {
+                for (int by = 0; by < bh; by++) {
+                    Arrays.fill(sums, 0);
+                    final int y0 = by * bin;
+                    final int rows = min(bin, h - y0);
+                    for (int y = y0; y < y0 + rows; y++) {
+                        planes.readRow(offset + z, y, 0, w, row);
+                        for (int x = 0; x < w; x++) sums[x / bin] += row[x];
+                    }
+                    for (int bx = 0; bx < bw; bx++) {
+                        final long count = (long) rows * min(bin, w - bx * bin);
+                        means[bx] = (int) ((sums[bx] + count / 2) / count);
+                    }
+                    binned.writeRow(z, by, 0, bw, means);
+                }
+            }
+        });
+
+        // The median of the binned frames, which replaces them: only the background is kept
+        median(binned, window, frames);
+
+        // Bilinear interpolation between the centres of the bins
+        final int[] xa = new int[w];
+        final int[] xb = new int[w];
+        final float[] xf = new float[w];
+        for (int x = 0; x < w; x++) weights(x, bin, bw, xa, xb, xf);
+        final int[] ya = new int[h];
+        final int[] yb = new int[h];
+        final float[] yf = new float[h];
+        for (int y = 0; y < h; y++) weights(y, bin, bh, ya, yb, yf);
+
+        // The exact background of a band of rows in the middle, taken before the frames are corrected
+        final int sampleRows = min(SAMPLE_ROWS, h);
+        final int sampleY0 = (h - sampleRows) / 2;
+        final PlaneAccess exact = exact(planes, offset, zSize, window, sampleY0, sampleRows);
+
+        // Subtract the upsampled background from every row
+        final long rows = (long) frames * h;
+        final AtomicLong ri = new AtomicLong(0);
+        TemporalMedian.parallel(null, threads, () -> {
+            final int[] row = new int[w];
+            final int[] upsampled = new int[w];
+            final int[] top = new int[bw];
+            final int[] bottom = new int[bw];
+            final int[] reference = new int[w];
+            for (long r = ri.getAndIncrement(); r < rows; r = ri.getAndIncrement()) {
+                final int z = (int) (r / h);
+                final int y = (int) (r % h);
+                binned.readRow(z, ya[y], 0, bw, top);
+                binned.readRow(z, yb[y], 0, bw, bottom);
+                final float fy = yf[y];
+                for (int x = 0; x < w; x++) {
+                    final float upper = top[xa[x]] + (top[xb[x]] - top[xa[x]]) * xf[x];
+                    final float lower = bottom[xa[x]] + (bottom[xb[x]] - bottom[xa[x]]) * xf[x];
+                    upsampled[x] = Math.round(upper + (lower - upper) * fy);
+                }
+
+                if (y >= sampleY0 && y < sampleY0 + sampleRows) {
+                    exact.readRow(z, y - sampleY0, 0, w, reference);
+                    synchronized (report) {
+                        for (int x = 0; x < w; x++) report.add(upsampled[x] - reference[x]);
+                    }
+                }
+
+                planes.readRow(offset + z, y, 0, w, row);
+                PlaneOps.subtractClamp(row, upsampled, w);
+                planes.writeRow(offset + z, y, 0, w, row);
+                if (listener != null) listener.row(planes.stackPlane(offset + z), y, 0, w, upsampled, row);
+            }
+        });
+    }
+
+    // Bytes every frame takes on top of the frame itself: the binned copy and the copy of the band that is compared
+    static long frameBytes(final int width, final int height, final int bitDepth, final int bin) {
+        if (bin <= 1) return 0;
+        final long bytes = bitDepth == 8 ? 1 : bitDepth == 16 ? 2 : 4;
+        return bytes * (((long) (width + bin - 1) / bin) * ((height + bin - 1) / bin) + (long) width * min(SAMPLE_ROWS, height));
+    }
+
+    // Replace every plane by its background. TemporalMedian has read a pixel of a frame into its histograms before
+    // it subtracts the median from it, and keeps its own history of the window, so the planes can be overwritten
+    private static void median(final PlaneAccess planes, final int window, final int frames) {
+        TemporalMedian.main(new PlaneAccess[]{planes}, window, 0, frames, (z, y, x0, len, median, corrected) -> planes.writeRow(z, y, x0, len, median),
+                null, Prefs.getThreads(), null, null);
+    }
+
+    // New planes of the narrowest type that holds values of bitDepth
+    private static Object[] allocate(final int bitDepth, final int count, final int size) {
+        final Object[] planes = new Object[count];
+        for (int i = 0; i < count; i++) {
+            if (bitDepth == 8) planes[i] = new byte[size];
+            else if (bitDepth == 16) planes[i] = new short[size];
+            else planes[i] = new int[size];
+        }
+        return planes;
+    }
+
+    // The two bins pixel p lies between and how far it is from the first, clamped at the edges
+    private static void weights(final int p, final int bin, final int bins, final int[] a, final int[] b, final float[] f) {
+        final float centre = (p + 0.5f) / bin - 0.5f;
+        final int first = (int) Math.floor(centre);
+        a[p] = max(0, min(bins - 1, first));
+        b[p] = max(0, min(bins - 1, first + 1));
+        f[p] = a[p] == b[p] ? 0 : centre - first;
+    }
+
+    // Run the exact filter on a copy of rows y0 until y0 + rows of every frame, returns its background
+    private static PlaneAccess exact(final PlaneAccess planes, final int offset, final int zSize, final int window, final int y0, final int rows) {
+        final int w = planes.width;
+        final int frames = zSize - offset;
+        final PlaneAccess band = PlaneAccess.ofArrays(allocate(planes.bitDepth(), frames, w * rows), new int[frames], w, rows);
+        final int[] row = new int[w];
+        for (int z = 0; z < frames; z++) {
+            for (int y = 0; y < rows; y++) {
+                planes.readRow(offset + z, y0 + y, 0, w, row);
+                band.writeRow(z, y, 0, w, row);
+            }
+        }
+        median(band, window, frames);
+        return band;
+    }
+}
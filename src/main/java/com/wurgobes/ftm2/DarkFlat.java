@@ -0,0 +1,132 @@
+package com.wurgobes.ftm2;
+/* Dark frame and flat field correction
+(c) 2026 FTM2 contributors, Hohlbein Lab, Wageningen University
+
+Subtracts a dark frame and divides by a flat field while the frames are read by TemporalMedian,
+instead of in separate passes over the stack before it. The frames are calibrated as
+    (raw - dark) * mean(flat - dark) / (flat - dark)
+so the corrected data keeps the same overall level. The calibrated values are what gets ranked and what the median
+is subtracted from, so the output is calibrated and background corrected after a single read of the raw data.
+A dark or flat stack is averaged into a single frame first.
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+ */
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+class DarkFlat {
+
+    final int width;
+    final int height;
+    private final float[] dark; // null when there is only a flat field
+    private final float[] gain; // null when there is only a dark frame
+
+    private DarkFlat(final int width, final int height, final float[] dark, final float[] gain) {
+        this.width = width;
+        this.height = height;
+        this.dark = dark;
+        this.gain = gain;
+    }
+
+    // Either image can be null, but not both
+    static DarkFlat of(final ImagePlus darkImage, final ImagePlus flatImage) {
+        final ImagePlus first = darkImage != null ? darkImage : flatImage;
+        final int width = first.getWidth();
+        final int height = first.getHeight();
+        if (darkImage != null && flatImage != null && (flatImage.getWidth() != width || flatImage.getHeight() != height))
+            throw new IllegalArgumentException("The dark frame and flat field are not the same size");
+
+        final float[] dark = darkImage == null ? null : average(darkImage.getStack());
+        float[] gain = null;
+        if (flatImage != null) {
+            gain = average(flatImage.getStack());
+            if (dark != null)
+                for (int i = 0; i < gain.length; i++) gain[i] -= dark[i];
+
+            double mean = 0;
+            for (float value : gain) mean += value;
+            mean /= gain.length;
+
+            // Pixels without any response in the flat field are left as they are
+            for (int i = 0; i < gain.length; i++) gain[i] = gain[i] > 0 ? (float) (mean / gain[i]) : 1;
+        }
+        return new DarkFlat(width, height, dark, gain);
+    }
+
+    // The same correction for data that was rescaled from min until max to 0 until range, as 32b data is before processing
+    // Without a dark frame the rescaled data is only multiplied by the gain, an offset of min would push all of it above range
+    // A dark frame below min widens the values to max - dark, so these are scaled down further to still fit in range
+    DarkFlat scaled(final double min, final double max, final double range) {
+        if (dark == null) return new DarkFlat(width, height, null, gain);
+
+        float darkMin = Float.POSITIVE_INFINITY;
+        for (float value : dark) darkMin = Math.min(darkMin, value);
+        final double scale = range / (max - Math.min(min, darkMin));
+
+        // (value - dark) * scale, written in the rescaled values (value - min) * range / (max - min)
+        final double rescale = scale * (max - min) / range;
+        final float[] scaledDark = new float[width * height];
+        for (int i = 0; i < scaledDark.length; i++) scaledDark[i] = (float) ((dark[i] - min) * range / (max - min));
+        float[] scaledGain = gain;
+        if (rescale != 1) {
+            scaledGain = new float[width * height];
+            for (int i = 0; i < scaledGain.length; i++) scaledGain[i] = (float) ((gain != null ? gain[i] : 1) * rescale);
+        }
+        return new DarkFlat(width, height, scaledDark, scaledGain);
+    }
+
+    private static float[] average(final ImageStack stack) {
+        final int size = stack.getWidth() * stack.getHeight();
+        final double[] sum = new double[size];
+        for (int n = 1; n <= stack.getSize(); n++) {
+            final ImageProcessor ip = stack.getProcessor(n);
+            for (int i = 0; i < size; i++) sum[i] += ip.getf(i);
+        }
+        final float[] average = new float[size];
+        for (int i = 0; i < size; i++) average[i] = (float) (sum[i] / stack.getSize());
+        return average;
+    }
+
+    // Calibrate every row that is read from planes, which hold the rows from y0 on of a full frame
+    // Values are clamped to 0 until limit, the largest value the rankmap can hold
+    PlaneAccess apply(final PlaneAccess planes, final int y0, final int limit) {
+        if (planes.width != width || y0 + planes.height > height)
+            throw new IllegalArgumentException("The dark frame and flat field are " + width + "x" + height + ", but the frames are " + planes.width + "x" + planes.height);
+        return new CalibratedPlanes(planes, y0, limit);
+    }
+
+    // Reads calibrated rows, writes go straight to the planes
+    private final class CalibratedPlanes extends PlaneAccess {
+        private final PlaneAccess planes;
+        private final int y0;
+        private final int limit;
+
+        CalibratedPlanes(final PlaneAccess planes, final int y0, final int limit) {
+            super(planes.width, planes.height, planes.depth);
+            this.planes = planes;
+            this.y0 = y0;
+            this.limit = limit;
+        }
+
+        int bitDepth() { return planes.bitDepth(); }
+
+        int stackPlane(final int z) {
+            return planes.stackPlane(z);
+        }
+
+        void readRow(final int z, final int y, final int x0, final int len, final int[] dst) {
+            planes.readRow(z, y, x0, len, dst);
+            PlaneOps.calibrate(dst, len, dark, gain, (y0 + y) * width + x0, limit);
+        }
+
+        void writeRow(final int z, final int y, final int x0, final int len, final int[] src) {
+            planes.writeRow(z, y, x0, len, src);
+        }
+    }
+}
@@ -37,6 +37,7 @@ import ij.*;
 import ij.gui.ImageWindow;
 import ij.gui.Roi;
 import ij.gui.StackWindow;
+import ij.io.FileInfo;
 import ij.io.Opener;
 import ij.plugin.*;
 
@@ -63,15 +64,23 @@ import org.scijava.plugin.Plugin;
 
 import java.awt.event.ActionEvent;
 import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
 import java.util.*;
 import javax.swing.*;
 import java.awt.event.ActionListener;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.DoubleAccumulator;
+import java.util.function.IntFunction;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
+import static ij.util.ThreadUtil.createThreadArray;
+import static ij.util.ThreadUtil.startAndJoin;
 import static java.lang.Math.*;
 
 
@@ -81,24 +90,28 @@ import static java.lang.Math.*;
 @Plugin(type = Command.class)
 public class FTM2< T extends RealType< T >>  implements Command {
 
-    public static int window = 50;
-    public static int start = 1;
-    public static int end = 0;
+    //Every run has its own settings, so runs in the same JVM don't share them. The dialog remembers them in the Prefs
+    private int window = 50;
+    private int start = 1;
+    private int end = 0;
 
     private String target_dir;
 
-    private final ArrayList<Integer> slice_intervals = new ArrayList<>();
+    private final ArrayList<Long> slice_intervals = new ArrayList<>();
     private final ArrayList<ImageStack> vstacks = new ArrayList<>();
+    private final ArrayList<String> vstack_paths = new ArrayList<>(); // The file every stack in vstacks was opened from
 
-    private int total_size = 0;
+    private long total_size = 0; //Frames over all files, a long so long concatenated series can't overflow
+
+    //Channels and positions of a hyperstack are processed as separate series, total_size counts time points
+    private HyperstackLayout layout = new HyperstackLayout(1, 1, 1);
+    private int series = 1;
     private long total_disk_size = 0;
-    private final long max_bytes = Runtime.getRuntime().maxMemory();
     private boolean all_fits = false;
 
     private int slice_height;
     private int slice_width;
     private int bit_depth;
-    private double ratio = 1.3;
 
     private boolean save_data = false;
 
@@ -116,9 +129,10 @@ public class FTM2< T extends RealType< T >>  implements Command {
 
     private final LogService logService;
 
-    private static String debug_arg_string = "";
-    private static boolean runningFromMacro = false;
-    private static double totalTime = 0;
+    private static String debug_arg_string = ""; //Only set by main, when debugging from an IDE
+    private final String arg_string; //The macro options of this run, or the command it was started with
+    private boolean runningFromMacro = false;
+    private static final DoubleAccumulator totalTime = new DoubleAccumulator(Double::sum, 0);
 
     public ImagePlus ImgPlusReference;
 
@@ -131,12 +145,78 @@ public class FTM2< T extends RealType< T >>  implements Command {
     private String extension = "tif";
     private String argBackup = "";
 
+    // Background cache, only used when a cache directory is given
+    private String cache_dir = "";
+    private long cache_size = 4096; // in MB
+    private int cache_step = 0; // 0 means window / 4
+    private final ArrayList<File> source_files = new ArrayList<>(); // The files the data was read from, used as cache key
+
+    // Sharded execution, this run only processes shard_index out of shard_count shards. 0 means no sharding
+    private int shard_index = 0;
+    private int shard_count = 0;
+    private String shard_by = Shards.FRAMES;
+    private String merge_dir = "";
+
+    // Compressed TIFF input is decoded on its own pool, -1 means Prefs.getThreads() and 0 leaves it to ImageJ
+    private int decode_threads = -1;
+    private ForkJoinPool decode_pool = null;
+
+    // The IFDs of every TIFF are stored in this directory the first time it is opened, so later runs don't parse them again
+    private String index_dir = "";
+    private final HashMap<File, TiffIndex> indexes = new HashMap<>();
+
+    // Where data that does not fit in the heap is kept: in brackets on the heap, or all at once off-heap
+    private String storage = OffHeapPlanes.HEAP;
+    private String scratch_dir = ""; // For mapped storage, defaults to the target directory
+
+    // Only print the memory plan, without loading or processing anything
+    private boolean dry_run = false;
+
+    // Output encoding: the bit depth to write (0 keeps the input, TiffPlaneWriter.AUTO the smallest that fits) and strip compression
+    private int output_bits = 0;
+    private String compress = TiffPlaneWriter.NONE;
+
+    // Dark frame and flat field, applied while the frames are read
+    private String dark_path = "";
+    private String flat_path = "";
+    private DarkFlat dark_flat = null;
+
+    // Statistics of the output, collected while it is written. Not used for a sweep
+    private OutputStats stats = null;
+
+    // Take the background from bin x bin binned frames, 1 runs the exact per-pixel filter
+    private int bin = 1;
+
+    // Write only the samples above this threshold as sparse events instead of the dense output, -1 writes the dense output
+    private int sparse = -1;
+    private SparseEvents.Writer events = null;
+    private File events_file = null;
+
+    // Show the result as a view that is only processed where it is looked at, with a cache of this many MB. 0 processes everything first
+    private int lazy = 0;
+
+    // Scan all frames once before the brackets, so every bracket uses the same rankmaps, or for 32b data the same scaling
+    private boolean prescan = false;
+
+    // Tune the thread count and block size of the median on the first rows, the controller keeps its choice for all brackets
+    private boolean adaptive = false;
+    private AdaptiveController controller = null;
+
+    // Collect a preview of the output while it is written, binned preview x preview times, 0 collects none
+    // Every preview_step-th time point is kept, 0 keeps about 100 of them
+    private int preview = 0;
+    private int preview_step = 0;
+    private Preview previewer = null;
+
+    // Sweep over several windows in a single pass, every window gets its own output. Empty when only window is used
+    private int[] windows = {};
+
 
     FTM2(int t, OpService op, LogService log, String command){
         this.type = t;
         this.opService = op;
         this.logService = log;
-        debug_arg_string = command;
+        this.arg_string = command;
 
     }
 
@@ -144,13 +224,23 @@ public class FTM2< T extends RealType< T >>  implements Command {
         this.type = t;
         this.opService = op;
         this.logService = log;
+        this.arg_string = debug_arg_string;
     }
 
     public boolean saveImagePlus(final String path, ImagePlus impP){
         //Saves an ImagePlus Object as a tiff at the provided path, returns true if succeeded, false if not
+        //Narrowed or compressed output is written by TiffPlaneWriter, which compresses the strips on the decode pool
         try {
-            return new FileSaver(impP).saveAsTiff(path);
+            if (output_bits == 0 && compress.equals(TiffPlaneWriter.NONE))
+                return new FileSaver(impP).saveAsTiff(path);
+
+            TiffPlaneWriter.Result result = new TiffPlaneWriter(output_bits, compress, getDecodePool()).write(new File(path), impP);
+            logService.info("Wrote " + path + " as " + result.bitDepth + "b" + (compress.equals(TiffPlaneWriter.NONE) ? "" : ", " + compress + " compressed"));
+            if (result.clamped > 0)
+                logService.warn(result.clamped + " values did not fit in " + result.bitDepth + "b and were clamped, the largest value is " + (long) result.max + ". Use output_bits=auto to prevent this");
+            return true;
         } catch (Exception e) {
+            logService.error("Failed to write " + path + ": " + e.getMessage());
             return false;
         }
     }
@@ -220,10 +310,10 @@ public class FTM2< T extends RealType< T >>  implements Command {
         File[] selected_files = null;
         MultiFileSelect fs = new MultiFileSelect(extension);
 
-        if(debug_arg_string.equals("")){
+        if(arg_string.equals("")){
             arg = Macro.getOptions();
         } else {
-            arg = debug_arg_string;
+            arg = arg_string;
         }
         if(arg != null && !arg.equals("")){
 
@@ -232,7 +322,8 @@ public class FTM2< T extends RealType< T >>  implements Command {
             Matcher m = pattern.matcher(arg);
             String[] keywords = {
                     "source", "file","target", "start", "end", "window", "save_data", "range", "concat", "show", "hiddenConcatRun",
-                    "begin", "output", "file_0", "extension"
+                    "begin", "output", "file_0", "extension", "cache", "cache_size", "cache_step",
+                    "shard", "shard_by", "merge", "decode_threads", "dry_run", "storage", "scratch", "windows", "output_bits", "compress", "dark", "flat", "bin", "sparse", "lazy", "prescan", "index", "adaptive", "preview", "preview_step"
             };
             while (m.find()) {
                 if (m.groupCount() == 3) {
@@ -288,6 +379,77 @@ public class FTM2< T extends RealType< T >>  implements Command {
                                     target_dir = keyword_val[1];
                                 }
                                 break;
+                            case "cache":
+                                cache_dir = keyword_val[1];
+                                break;
+                            case "cache_size":
+                                cache_size = Long.parseLong(keyword_val[1]);
+                                break;
+                            case "cache_step":
+                                cache_step = Integer.parseInt(keyword_val[1]);
+                                break;
+                            case "shard":
+                                String[] shard = keyword_val[1].split("/");
+                                shard_index = Integer.parseInt(shard[0]);
+                                shard_count = Integer.parseInt(shard[1]);
+                                break;
+                            case "shard_by":
+                                shard_by = keyword_val[1];
+                                break;
+                            case "merge":
+                                merge_dir = keyword_val[1];
+                                break;
+                            case "decode_threads":
+                                decode_threads = Integer.parseInt(keyword_val[1]);
+                                break;
+                            case "storage":
+                                storage = keyword_val[1].toLowerCase();
+                                break;
+                            case "scratch":
+                                scratch_dir = keyword_val[1];
+                                break;
+                            case "windows":
+                                windows = Arrays.stream(keyword_val[1].split(",")).mapToInt(Integer::parseInt).sorted().distinct().toArray();
+                                break;
+                            case "output_bits":
+                                output_bits = TiffPlaneWriter.parseBits(keyword_val[1]);
+                                break;
+                            case "compress":
+                                compress = keyword_val[1].toLowerCase();
+                                break;
+                            case "dark":
+                                dark_path = keyword_val[1];
+                                break;
+                            case "flat":
+                                flat_path = keyword_val[1];
+                                break;
+                            case "bin":
+                                bin = Integer.parseInt(keyword_val[1]);
+                                break;
+                            case "sparse":
+                                sparse = Integer.parseInt(keyword_val[1]);
+                                break;
+                            case "lazy":
+                                lazy = Integer.parseInt(keyword_val[1]);
+                                break;
+                            case "prescan":
+                                prescan = keyword_val[1].equals("") || Boolean.parseBoolean(keyword_val[1]);
+                                break;
+                            case "index":
+                                index_dir = keyword_val[1];
+                                break;
+                            case "adaptive":
+                                adaptive = keyword_val[1].equals("") || Boolean.parseBoolean(keyword_val[1]);
+                                break;
+                            case "preview":
+                                preview = Integer.parseInt(keyword_val[1]);
+                                break;
+                            case "preview_step":
+                                preview_step = Integer.parseInt(keyword_val[1]);
+                                break;
+                            case "dry_run":
+                                dry_run = keyword_val[1].equals("") || Boolean.parseBoolean(keyword_val[1]);
+                                break;
                             default:
                                 logService.error("Keyword '" + keyword_val[0] + "' not found\nDid you mean: " + getTheClosestMatch(keywords, keyword_val[0]) + "?\nOr did you forget quotes(\") around the filepath?");
                                 return DONE;
@@ -302,7 +464,7 @@ public class FTM2< T extends RealType< T >>  implements Command {
                 }
             }
 
-            if (type != 3 && source_dir.equals("") && file_string.equals("")) {
+            if (type != 3 && source_dir.equals("") && file_string.equals("") && merge_dir.equals("")) {
                 logService.error("Argument string must contain source or file variables.");
                 return DONE;
             }
@@ -312,6 +474,92 @@ public class FTM2< T extends RealType< T >>  implements Command {
                 return DONE;
             }
 
+            try {
+                new TiffPlaneWriter(output_bits, compress, null);
+            } catch (IllegalArgumentException e) {
+                logService.error(e.getMessage());
+                return DONE;
+            }
+            if (output_bits == TiffPlaneWriter.AUTO && shard_count > 0) {
+                logService.error("All shards must be written at the same bit depth to be merged, give output_bits as 8, 16 or 32");
+                return DONE;
+            }
+
+            if (!storage.equals(OffHeapPlanes.HEAP) && !storage.equals(OffHeapPlanes.DIRECT) && !storage.equals(OffHeapPlanes.MAPPED)) {
+                logService.error("Unknown storage '" + storage + "', use heap, direct or mapped");
+                return DONE;
+            }
+            if (!storage.equals(OffHeapPlanes.HEAP) && (windows.length > 0 || shard_count > 0)) {
+                logService.error("storage=" + storage + " processes all frames in one go, which a sweep over several windows or a shard don't do");
+                return DONE;
+            }
+
+            if (bin < 1) {
+                logService.error("bin must be at least 1");
+                return DONE;
+            }
+            if (bin > 1 && windows.length > 0) {
+                logService.error("A sweep over several windows always runs the exact filter, leave out bin");
+                return DONE;
+            }
+            if (bin > 1 && shard_count > 0 && shard_by.equals(Shards.ROWS)) {
+                logService.error("The bins would not line up between shards split by rows, use shard_by=frames with bin");
+                return DONE;
+            }
+
+            if (sparse >= 0) {
+                if (windows.length > 0 || shard_count > 0) {
+                    logService.error("Sparse output can't be combined with a sweep or with shards");
+                    return DONE;
+                }
+                if (target_dir.equals("")) {
+                    logService.error("Sparse output is written to the target directory, which must be given");
+                    return DONE;
+                }
+                //The events replace the dense output, so they are always written
+                save_data = true;
+            }
+
+            if (lazy < 0 || (lazy > 0 && (windows.length > 0 || shard_count > 0 || sparse >= 0))) {
+                logService.error("lazy is the cache size in MB of the lazy view, which can't be combined with windows, shard or sparse");
+                return DONE;
+            }
+
+            if (preview < 0 || preview_step < 0) {
+                logService.error("preview and preview_step can't be negative");
+                return DONE;
+            }
+            if (preview > 0 && (windows.length > 0 || lazy > 0)) {
+                logService.error("The preview is collected while the output is written, which a sweep over several windows or the lazy view don't do");
+                return DONE;
+            }
+
+            if (windows.length > 0) {
+                if (windows[0] < 1) {
+                    logService.error("All windows of a sweep must be at least 1");
+                    return DONE;
+                }
+                if (shard_count > 0) {
+                    logService.error("A sweep over several windows can't be sharded, run a shard per window instead");
+                    return DONE;
+                }
+                //Planning, brackets and their overlap all follow the largest window
+                window = windows[windows.length - 1];
+            }
+
+            if (shard_count > 0) {
+                if (shard_index < 1 || shard_index > shard_count || !(shard_by.equals(Shards.FRAMES) || shard_by.equals(Shards.ROWS))) {
+                    logService.error("Shards are given as shard=i/n with 1 <= i <= n, and split by either shard_by=frames or shard_by=rows");
+                    return DONE;
+                }
+                if (type == 3 || target_dir.equals("")) {
+                    logService.error("Sharding needs the input to be read from file and a target directory to write the shard to");
+                    return DONE;
+                }
+                //Shards are always written to disk, to be merged later
+                save_data = true;
+            }
+
         } else {
             InputStream is = FTM2.class.getResourceAsStream("/README.txt"); // OK
             String content = GetInputStream(is);
@@ -327,6 +575,9 @@ public class FTM2< T extends RealType< T >>  implements Command {
             if(type == 0 | type == 1) gd.addButton("Clear Selected Files", fs);
             if(type == 3) gd.addMessage("Will use already opened file: " + imp.getTitle());
 
+            window = (int) Prefs.get("ftm2.window", window);
+            start = (int) Prefs.get("ftm2.start", start);
+            end = (int) Prefs.get("ftm2.end", end);
             gd.addNumericField("Window size", window, 0);
             gd.addNumericField("Begin", start, 0);
             gd.addNumericField("End (0 for all)", end, 0);
@@ -355,6 +606,9 @@ public class FTM2< T extends RealType< T >>  implements Command {
             window = (int)gd.getNextNumber();
             start = (int)gd.getNextNumber();
             end = (int)gd.getNextNumber();
+            Prefs.set("ftm2.window", window);
+            Prefs.set("ftm2.start", start);
+            Prefs.set("ftm2.end", end);
 
             pre_loaded_image = type == 3;
             concat = gd.getNextBoolean();
@@ -364,6 +618,18 @@ public class FTM2< T extends RealType< T >>  implements Command {
             target_dir = gd.getNextString();
         }
 
+        //Merging the output of shards does not process anything
+        if(!merge_dir.equals("")){
+            try {
+                for(String path : Shards.merge(new File(merge_dir), new File(target_dir.equals("") ? merge_dir : target_dir), extension,
+                        output_bits == 0 && compress.equals(TiffPlaneWriter.NONE) ? null : new TiffPlaneWriter(output_bits, compress, getDecodePool())))
+                    logService.info("Merged shards into " + path);
+            } catch (IOException e) {
+                logService.error("Failed to merge shards: " + e.getMessage());
+            }
+            return DONE;
+        }
+
         if (concatRun)
             pre_loaded_image = false;
 
@@ -428,6 +694,10 @@ public class FTM2< T extends RealType< T >>  implements Command {
                         + " range=" + U32_SIZE
                         + " concat=" + true
                         + " show=" + showResults
+                        + " decode_threads=" + decode_threads
+                        + " storage=" + storage
+                        + " output_bits=" + (output_bits == TiffPlaneWriter.AUTO ? "auto" : output_bits)
+                        + " compress=" + compress
                         + " hiddenConcatRun=" + true;
 
                 for(File file : listOfFiles){
@@ -438,6 +708,20 @@ public class FTM2< T extends RealType< T >>  implements Command {
                             + constantCommand;
 
                     if(!target_dir.equals("")) command += " target=\"" + target_dir + "\"";
+                    if(shard_count > 0) command += " shard=" + shard_index + "/" + shard_count + " shard_by=" + shard_by;
+                    if(!scratch_dir.equals("")) command += " scratch=\"" + scratch_dir + "\"";
+                    if(!dark_path.equals("")) command += " dark=\"" + dark_path + "\"";
+                    if(!flat_path.equals("")) command += " flat=\"" + flat_path + "\"";
+                    if(bin > 1) command += " bin=" + bin;
+                    if(sparse >= 0) command += " sparse=" + sparse;
+                    if(lazy > 0) command += " lazy=" + lazy;
+                    if(prescan) command += " prescan=true";
+                    if(dry_run) command += " dry_run=true";
+                    if(adaptive) command += " adaptive=true";
+                    if(preview > 0) command += " preview=" + preview + " preview_step=" + preview_step;
+                    if(!index_dir.equals("")) command += " index=\"" + index_dir + "\"";
+                    if(windows.length > 0) command += " windows=" + Arrays.stream(windows).mapToObj(String::valueOf).collect(Collectors.joining(","));
+                    if(!cache_dir.equals("")) command += " cache=\"" + cache_dir + "\" cache_size=" + cache_size + " cache_step=" + cache_step;
 
                     logService.info("Processing file: " + file.getAbsolutePath());
 
@@ -471,10 +755,12 @@ public class FTM2< T extends RealType< T >>  implements Command {
                 assert listOfFiles != null;
                 for(File file: listOfFiles){
                     total_disk_size += file.length();
+                    if(file.isFile() && file.getName().endsWith("." + extension)) source_files.add(file);
                 }
             } else {
                 try {
                     total_disk_size = new File(file_string).length();
+                    source_files.add(new File(file_string));
                 } catch (Exception e) {
                     logService.error("Could not open: " + file_string);
                     return DONE;
@@ -483,8 +769,20 @@ public class FTM2< T extends RealType< T >>  implements Command {
             }
 
             //If the entire file can fit into RAM, we can skip a lot of processing
-            //The ratio is to provide a buffer for extra objects
-            all_fits = total_disk_size < (max_bytes / ratio);
+            //The planner estimates the memory of a run from the TIFF headers, or from the file size if those can't be read
+            //Shards are always processed as brackets, so only the frames of the shard are read
+            MemoryPlanner.Input input = MemoryPlanner.describe(source_files, this::tiffIndex);
+            if(input == null) input = MemoryPlanner.Input.ofDiskSize(total_disk_size);
+            //Every channel and position of a hyperstack has a rankmap and histograms of its own
+            int input_series = source_files.isEmpty() ? 1 : layoutOf(source_files.get(0)).series();
+            MemoryPlanner.Plan plan = getPlanner().plan(input, window, U32_SIZE, windows.length, input_series);
+            logService.info(plan.describe(window));
+            if(!plan.inMemory && !storage.equals(OffHeapPlanes.HEAP))
+                logService.info(input.bitDepth == 32 ? "  storage=" + storage + " does not support 32 bit data, use storage=heap"
+                        : "  instead of brackets, all frames are kept in " + storage + " storage");
+            if(dry_run) return DONE;
+
+            all_fits = shard_count == 0 && plan.inMemory;
 
             if(all_fits){ //All data can fit into memory at once
                 IJ.showStatus("Creating stacks");
@@ -507,26 +805,13 @@ public class FTM2< T extends RealType< T >>  implements Command {
 
 
                 if ((selected_files != null || dirty_folder) && file_string.equals("")) {
-                    ImagePlus[] temp_imgs = new ImagePlus[selected_files.length];
-                    for(int i = 0; i < selected_files.length; i++){
-                        try {
-                            temp_imgs[i] = new Opener().openImage(selected_files[i].getAbsolutePath());
-                        } catch (Exception e) {
-                            logService.error("Failed to open file: " + selected_files[i].getAbsolutePath());
-                            return DONE;
-                        }
-                    }
-                    try {
-                        ImgPlusReference = new Concatenator().concatenateHyperstacks(temp_imgs,   temp_imgs[0].getTitle() + "_concatenated", false);
-                    } catch (Exception e) {
-                        logService.error("One or more of your files might not have the same dimension");
-                        return DONE;
-                    }
+                    ImgPlusReference = openConcatenated(selected_files, null);
+                    if(ImgPlusReference == null) return DONE;
 
                 } else if (!file_string.equals("")) {
                     //One file to open via the commandline
                     try {
-                        ImgPlusReference = new Opener().openImage(file_string);
+                        ImgPlusReference = openImage(file_string);
                     } catch (Exception e) {
                         logService.error("Failed to open file: " + file_string);
                         return DONE;
@@ -537,8 +822,11 @@ public class FTM2< T extends RealType< T >>  implements Command {
                     }
 
                 } else {
-                    //Open all files inside the provided folder
-                    ImgPlusReference = new FolderOpener().openFolder(source_dir);
+                    //Open all files inside the provided folder, in alphabetical order
+                    File[] folder_files = new File(source_dir).listFiles();
+                    Arrays.sort(Objects.requireNonNull(folder_files));
+                    ImgPlusReference = openConcatenated(folder_files, new File(source_dir).getName());
+                    if(ImgPlusReference == null) return DONE;
                 }
 
 
@@ -551,7 +839,8 @@ public class FTM2< T extends RealType< T >>  implements Command {
                 ImgPlusReference.show();
 
                 //Calculate the total amount of slices
-                total_size = (int) ( imageData.size()/ imageData.dimension(0)/ imageData.dimension(1));
+                total_size = imageData.size()/ imageData.dimension(0)/ imageData.dimension(1);
+                layout = HyperstackLayout.of(ImgPlusReference);
 
                 //Get bits per pixel
                 bit_depth = imageData.firstElement().getBitsPerPixel();
@@ -572,11 +861,13 @@ public class FTM2< T extends RealType< T >>  implements Command {
                             if(savingFileName.equals(""))
                                 savingFileName = listOfFiles[i].getName();
                             //Load the file into memory as a VirtualStack
-                            vstacks.add(IJ.openVirtual(listOfFiles[i].getPath()).getStack());
+                            vstacks.add(openVirtualStack(listOfFiles[i].getPath()));
+                            vstack_paths.add(listOfFiles[i].getPath());
 
                             //Get some information from the first stack
                             //Once the information is set, we sanity check the data to ensure the bitdepth and resolution is the same
                             if(bit_depth == -1){
+                                layout = layoutOf(listOfFiles[i]);
                                 slice_height = vstacks.get(0).getHeight();
                                 slice_width = vstacks.get(0).getWidth();
                                 bit_depth = vstacks.get(0).getBitDepth(); // bitdepth
@@ -597,7 +888,9 @@ public class FTM2< T extends RealType< T >>  implements Command {
                     }
                 } else {
                     savingFileName = new File(file_string).getName();
-                    vstacks.add(IJ.openVirtual(file_string).getStack());
+                    vstacks.add(openVirtualStack(file_string));
+                    vstack_paths.add(file_string);
+                    layout = layoutOf(new File(file_string));
                     slice_height = vstacks.get(0).getHeight();
                     slice_width = vstacks.get(0).getWidth();
                     bit_depth = vstacks.get(0).getBitDepth();
@@ -609,7 +902,7 @@ public class FTM2< T extends RealType< T >>  implements Command {
                 }
 
                 //Even if you don't want to save, if the file is too large, it will have to happen
-                if(!all_fits && !save_data) {
+                if(!all_fits && !save_data && lazy == 0) {
                     IJ.showMessage("File is too large to not be cached to disk.");
                     save_data = true;
                 }
@@ -628,15 +921,37 @@ public class FTM2< T extends RealType< T >>  implements Command {
             //Get some information about the file
             //We do not obtain width and height since these arent needed
             total_disk_size = (long) imp.getSizeInBytes();
+            FileInfo fileInfo = imp.getOriginalFileInfo();
+            if(fileInfo != null && fileInfo.directory != null && fileInfo.fileName != null)
+                source_files.add(new File(fileInfo.directory, fileInfo.fileName));
             bit_depth = imageData.firstElement().getBitsPerPixel();
-            total_size = (int) ( imageData.size()/ imageData.dimension(0)/ imageData.dimension(1));
+            total_size = imageData.size()/ imageData.dimension(0)/ imageData.dimension(1);
+            layout = HyperstackLayout.of(imp);
 
             //Since it is already loaded, it will fit for sure
             all_fits = true;
 
+            if(dry_run) {
+                logService.info(getPlanner().plan(new MemoryPlanner.Input(imp.getWidth(), imp.getHeight(), total_size, bit_depth, false), window, U32_SIZE, windows.length, layout.series()).describe(window));
+                return DONE;
+            }
+
             logService.info("Loaded already opened image with " + total_size + " slices with size " + total_disk_size + " as normal stack");
         }
 
+        //A hyperstack is processed per channel and position, all of them at the same time
+        series = layout.series();
+        if(series > 1) {
+            for (ImageStack stack : vstacks) {
+                if (stack.size() % series != 0) {
+                    logService.error("Error: Not every file holds whole time points of " + layout.describe());
+                    return DONE;
+                }
+            }
+            total_size /= series;
+            logService.info("Hyperstack with " + layout.describe() + ", processing " + series + " series of " + total_size + " time points");
+        }
+
         //Ensure we have a stack, and not a single frame
         if(total_size <= 1){
             logService.error("Error: Stack must have size larger than 1.");
@@ -647,12 +962,42 @@ public class FTM2< T extends RealType< T >>  implements Command {
         if (bit_depth == 0) bit_depth = 16;
         else if (bit_depth <= 8) bit_depth = 8;
         else if (bit_depth <= 16) bit_depth = 16;
-        else if (bit_depth <= 32) {bit_depth = 32; ratio = 4;}
+        else if (bit_depth <= 32) bit_depth = 32;
         else logService.error("Bitdepth not Supported");
 
-        if(end == 0) end = total_size; //If the end var is 0, it means process all slices
-        if(end > total_size) end = total_size; //If the end is set to above the total size, set it to the total size
-        if(window > total_size) window = total_size; //If the window is set to above the total size, set it to the total size
+        //Off-heap storage only holds 8 and 16 bit frames of a single series, rather than quietly processing in brackets
+        if(!storage.equals(OffHeapPlanes.HEAP) && (bit_depth == 32 || series > 1)) {
+            logService.error("Error: storage=" + storage + " only supports 8 and 16 bit data without channels or positions, use storage=heap for " +
+                    (bit_depth == 32 ? "32 bit data" : layout.describe()));
+            return DONE;
+        }
+
+        //Frames are counted with a long, but a single run still addresses them with an int
+        if(total_size > Integer.MAX_VALUE && end == 0){
+            logService.error("Error: " + total_size + " frames is more than can be processed at once, use start, end or shard to process them in parts.");
+            return DONE;
+        }
+
+        if(end == 0) end = (int) total_size; //If the end var is 0, it means process all slices
+        if(end > total_size) end = (int) total_size; //If the end is set to above the total size, set it to the total size
+        if(window > total_size) window = (int) total_size; //If the window is set to above the total size, set it to the total size
+        if(windows.length > 0) windows = Arrays.stream(windows).map(w -> (int) min(w, total_size)).distinct().toArray();
+
+        if(!dark_path.equals("") || !flat_path.equals("")) {
+            ImagePlus dark = dark_path.equals("") ? null : IJ.openImage(dark_path);
+            ImagePlus flat = flat_path.equals("") ? null : IJ.openImage(flat_path);
+            if((!dark_path.equals("") && dark == null) || (!flat_path.equals("") && flat == null)) {
+                logService.error("Could not open the dark frame or flat field");
+                return DONE;
+            }
+            dark_flat = DarkFlat.of(dark, flat);
+            int width = all_fits ? (int) imageData.dimension(0) : slice_width;
+            int height = all_fits ? (int) imageData.dimension(1) : slice_height;
+            if(dark_flat.width != width || dark_flat.height != height) {
+                logService.error("The dark frame and flat field are " + dark_flat.width + "x" + dark_flat.height + ", but the frames are " + width + "x" + height);
+                return DONE;
+            }
+        }
 
 
         if(all_fits && imageData.firstElement() instanceof FloatType) {
@@ -676,6 +1021,7 @@ public class FTM2< T extends RealType< T >>  implements Command {
 
 
                 imageData.forEach(t -> t.setReal(((t.getRealFloat() - temp_min) * (U32_SIZE) / (temp_max - temp_min))));
+                if(dark_flat != null) dark_flat = dark_flat.scaled(temp_min, temp_max, U32_SIZE);
             }
 
 
@@ -701,12 +1047,497 @@ public class FTM2< T extends RealType< T >>  implements Command {
             if (!target_dir.endsWith("/")) target_dir += "/";
         }
 
-        System.gc();
-
         //Since ImageJ plugins are a bit wonky, we have to tell it we do not need an image open
         return 1;
     }
 
+    private synchronized ForkJoinPool getDecodePool() {
+        if (decode_pool == null) decode_pool = TiffPlaneStack.createPool(decode_threads > 0 ? decode_threads : Prefs.getThreads());
+        return decode_pool;
+    }
+
+    // The index of a TIFF, made when it has none yet. Null when no index directory is given or the file can't be indexed
+    // Only used when TiffPlaneReader decodes the planes, so not with decode_threads=0
+    private TiffIndex tiffIndex(File file) {
+        if (index_dir.equals("") || decode_threads == 0) return null;
+        if (indexes.containsKey(file)) return indexes.get(file);
+
+        TiffIndex index = null;
+        try {
+            index = TiffIndex.load(new File(index_dir), file);
+            int bits = index.first().bitsPerSample;
+            if (bits != 8 && bits != 16 && bits != 32) index = null;
+        } catch (IOException e) {
+            logService.warn("Could not index " + file + ", it is opened by ImageJ: " + e.getMessage());
+        }
+        indexes.put(file, index);
+        return index;
+    }
+
+    private HyperstackLayout layoutOf(File file) {
+        TiffIndex index = tiffIndex(file);
+        return index == null ? HyperstackLayout.of(file) : HyperstackLayout.of(index.description);
+    }
+
+    // Compressed TIFFs are decoded in parallel by TiffPlaneReader, everything else is opened by ImageJ as before
+    // Indexed TIFFs are always read by TiffPlaneReader, from their index
+    private ImagePlus openImage(String path) {
+        TiffIndex index = tiffIndex(new File(path));
+        if (index != null) {
+            try (TiffPlaneReader reader = index.reader()) {
+                return TiffPlaneStack.openImage(reader, getDecodePool());
+            } catch (IOException e) {
+                logService.warn("Reading " + path + " from its index failed, falling back to ImageJ: " + e.getMessage());
+            }
+        }
+        if (decode_threads != 0 && TiffPlaneReader.isCompressed(new File(path))) {
+            try {
+                return TiffPlaneStack.openImage(new File(path), getDecodePool());
+            } catch (IOException e) {
+                logService.warn("Parallel decoding of " + path + " failed, falling back to ImageJ: " + e.getMessage());
+            }
+        }
+        return new Opener().openImage(path);
+    }
+
+    private ImageStack openVirtualStack(String path) {
+        TiffIndex index = tiffIndex(new File(path));
+        if (index != null) {
+            try {
+                return new TiffPlaneStack(index.reader(), getDecodePool());
+            } catch (IOException e) {
+                logService.warn("Opening " + path + " from its index failed, falling back to ImageJ: " + e.getMessage());
+            }
+        }
+        if (decode_threads != 0 && TiffPlaneReader.isCompressed(new File(path))) {
+            try {
+                return new TiffPlaneStack(new TiffPlaneReader(new File(path)), getDecodePool());
+            } catch (IOException e) {
+                logService.warn("Parallel decoding of " + path + " failed, falling back to ImageJ: " + e.getMessage());
+            }
+        }
+        return IJ.openVirtual(path).getStack();
+    }
+
+    //Open all files at the same time and put their planes after each other in a single stack
+    //Only the references to the planes are copied, so unlike the Concatenator the data is never in memory twice
+    private ImagePlus openConcatenated(File[] files, String title) {
+        File[] tiffs = Arrays.stream(files).filter(f -> f.isFile() && f.getName().endsWith("." + extension)).toArray(File[]::new);
+        if(tiffs.length == 0) {
+            logService.error("No ." + extension + " files to open");
+            return null;
+        }
+
+        ImagePlus[] images = new ImagePlus[tiffs.length];
+        AtomicInteger next = new AtomicInteger(0);
+        Thread[] openers = createThreadArray(min(tiffs.length, Prefs.getThreads()));
+        for (int ithread = 0; ithread < openers.length; ithread++) {
+            openers[ithread] = new Thread(() -> {
+                for (int i = next.getAndIncrement(); i < tiffs.length; i = next.getAndIncrement()) {
+                    try {
+                        images[i] = openImage(tiffs[i].getAbsolutePath());
+                    } catch (Exception ignored) {
+                        // Reported below
+                    }
+                }
+            });
+        }
+        startAndJoin(openers);
+
+        HyperstackLayout first_layout = null;
+        ImageStack concatenated = null;
+        for (int i = 0; i < tiffs.length; i++) {
+            ImagePlus image = images[i];
+            if(image == null) {
+                logService.error("Failed to open file: " + tiffs[i].getAbsolutePath());
+                return null;
+            }
+            HyperstackLayout image_layout = HyperstackLayout.of(image);
+            if(concatenated == null) {
+                first_layout = image_layout;
+                concatenated = new ImageStack(image.getWidth(), image.getHeight());
+            } else if(image.getWidth() != concatenated.getWidth() || image.getHeight() != concatenated.getHeight()
+                    || image.getBitDepth() != images[0].getBitDepth() || image_layout.series() != first_layout.series()) {
+                logService.error("The dimensions, bitdepth or channels of " + tiffs[i].getAbsolutePath() + " did not match the values of the first file");
+                return null;
+            }
+            ImageStack stack = image.getStack();
+            for (int n = 1; n <= stack.getSize(); n++) concatenated.addSlice(stack.getSliceLabel(n), stack.getPixels(n));
+            images[i] = null;
+        }
+        logService.info("Opened " + tiffs.length + " files in parallel into one stack of " + concatenated.getSize() + " planes");
+
+        ImagePlus result = new ImagePlus(title != null ? title : tiffs[0].getName() + "_concatenated", concatenated);
+        first_layout.apply(result, concatenated.getSize() / first_layout.series());
+        return result;
+    }
+
+    private void closeDecoders() {
+        for (ImageStack stack : vstacks) {
+            if (stack instanceof TiffPlaneStack) {
+                try {
+                    ((TiffPlaneStack) stack).close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        if (decode_pool != null) decode_pool.shutdownNow();
+        decode_pool = null;
+    }
+
+    //Copy frame n of stack, only the rows y0 until y0 + height, into a buffer from the pool
+    //The array ImageJ reads into is short lived this way, only the pooled buffers stay around for a bracket
+    //TiffPlaneStack already decodes straight into the pool when the whole frame is used
+    private Object loadPlane(ImageStack stack, int n, int y0, int height, PlanePool pool) {
+        Object source = stack.getProcessor(n).getPixels();
+        if (stack instanceof TiffPlaneStack && height == slice_height && pool.matches(bit_depth, slice_width * height)) return source;
+
+        Object pixels = pool.take();
+        System.arraycopy(source, y0 * slice_width, pixels, 0, slice_width * height);
+        return pixels;
+    }
+
+    //Load all frames from start till end into off-heap planes and process them in one go, instead of in brackets
+    //Returns the processing and saving time, or null if it failed
+    private long[] processOffHeap(BackgroundCache cache, String cache_key) {
+        int frames = end - start + 1;
+        OffHeapPlanes planes;
+        try {
+            if (storage.equals(OffHeapPlanes.MAPPED)) {
+                File scratch = new File(scratch_dir.equals("") ? target_dir : scratch_dir, savingFileName + ".scratch");
+                planes = OffHeapPlanes.map(scratch, slice_width, slice_height, frames, bit_depth);
+            } else {
+                planes = OffHeapPlanes.allocate(slice_width, slice_height, frames, bit_depth);
+            }
+        } catch (IOException | OutOfMemoryError e) {
+            logService.error("Could not allocate " + storage + " storage for " + frames + " frames: " + e.getMessage()
+                    + "\nUse storage=mapped, or raise -XX:MaxDirectMemorySize");
+            return null;
+        }
+
+        try {
+            IJ.showStatus("Loading frames into " + storage + " storage");
+            int temp_index = 0; //Index into which stack inside vstacks should be accesed
+            int temp_prev_sizes = 0; //Frames in the stacks before temp_index
+            for (int i = start; i <= end; i++) {
+                while (i > slice_intervals.get(temp_index)) {
+                    temp_prev_sizes += vstacks.get(temp_index).size();
+                    temp_index++;
+                }
+                planes.writePlane(i - start, vstacks.get(temp_index).getProcessor(i - temp_prev_sizes).getPixels(), 0);
+            }
+            logService.info("Loaded from slice " + start + " till slice " + end + " into " + storage + " storage");
+
+            long interTime = System.nanoTime();
+            BackgroundCache.Entry cached = null;
+            BackgroundCache.Recorder recorder = null;
+            if(cache != null) {
+                cached = cache.find(cache_key);
+                if(cached != null && !cached.covers(slice_width, slice_height, start - 1, end - 1)) cached = null;
+                if(cached == null) recorder = cache.recorder(cache_key, slice_width, slice_height, bit_depth, window, start - 1, end - 1, getCacheStep());
+                else logService.info("Subtracting cached background instead of calculating the median, " + cached.describe());
+            }
+
+            if (cached != null) {
+                cached.subtract(planes, start - 1, 0, frames);
+            } else {
+                stats = new OutputStats(frames, (long) slice_width * slice_height, PlaneAccess.maxValue(bit_depth, U32_SIZE));
+                if (!openEvents(savingFileName, frames, slice_width, slice_height)) return null;
+                openPreview(frames, slice_width, slice_height);
+                median(calibrate(planes, 0, dark_flat), 1, 0, frames, TemporalMedian.RowListener.window(0, 0, frames, recorder, stats, events, previewer), null, true);
+                stats.collect();
+            }
+            long processing = System.nanoTime() - interTime;
+            if (recorder != null) saveCache(recorder);
+
+            interTime = System.nanoTime();
+            if (events != null) {
+                if (!closeEvents((long) frames * slice_width * slice_height)) return null;
+                return new long[]{processing, System.nanoTime() - interTime};
+            }
+            String saveName = Paths.get(target_dir, "/" + savingFileName + "_1." + extension).toString();
+            if (!saveImagePlus(saveName, new ImagePlus(savingFileName, planes.asStack()))) {
+                logService.error("Failed to write to:" + saveName);
+                return null;
+            }
+            return new long[]{processing, System.nanoTime() - interTime};
+        } finally {
+            planes.close();
+        }
+    }
+
+    //Total number of collections and time spent in them, over all collectors
+    private static long[] gcTotals() {
+        long[] totals = new long[2];
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            totals[0] += max(0, gc.getCollectionCount());
+            totals[1] += max(0, gc.getCollectionTime());
+        }
+        return totals;
+    }
+
+    private MemoryPlanner getPlanner() {
+        return new MemoryPlanner(Prefs.getThreads(), decode_threads == 0 ? 0 : decode_threads > 0 ? decode_threads : Prefs.getThreads(), bin);
+    }
+
+    //Run the sweep over the time points offset until end, every window gets a new stack of the input bit depth
+    //32b data is written as float, the way ImageJ shows it
+    private ImageStack[] sweep(PlaneAccess planes, int offset, int end, int width, int height, TemporalMedian.TileMaps[] rankmaps) {
+        int frames = (end - offset) * series;
+        int[] offsets = new int[frames];
+        PlaneAccess[] outputs = new PlaneAccess[windows.length];
+        ImageStack[] stacks = new ImageStack[windows.length];
+        for (int r = 0; r < windows.length; r++) {
+            Object[] pixels = PlaneAccess.allocate(bit_depth, frames, width * height);
+            outputs[r] = PlaneAccess.ofArrays(pixels, offsets, width, height);
+            stacks[r] = new ImageStack(width, height);
+            for (int i = 0; i < frames; i++) stacks[r].addSlice("" + (i + 1), pixels[i]);
+        }
+        logService.info("Sweeping windows " + Arrays.toString(windows) + " in a single pass");
+        TemporalMedian.sweep(planes, series, outputs, windows, offset, end, rankmaps);
+        return stacks;
+    }
+
+    //The exact filter, or the binned one when bin is given, which also reports how far it is off
+    //The exact filter uses rankmaps when they are given, instead of building its own
+    //When tuned is set and adaptive is on, the thread count and block size are tuned by the controller of this run
+    private void median(PlaneAccess planes, int series, int offset, int end, TemporalMedian.RowListener listener, TemporalMedian.TileMaps[] rankmaps, boolean tuned) {
+        if (bin == 1) {
+            if (tuned && adaptive && controller == null) controller = new AdaptiveController(Prefs.getThreads(), logService::info);
+            TemporalMedian.main(PlaneAccess.series(planes, series), window, offset, end, listener, null, Prefs.getThreads(), rankmaps, tuned && adaptive ? controller : null);
+            return;
+        }
+        BinnedMedian.Report report = BinnedMedian.main(planes, series, bin, window, offset, end, listener);
+        logService.info("Binned " + bin + "x" + bin + " " + report.describe());
+    }
+
+    //Show the corrected data as a view that is only processed where it is looked at, a background thread fills its cache
+    //The view reads the input through stacks of its own, so writing the output at the same time does not interfere
+    private boolean showLazy() {
+        if (bit_depth == 32) {
+            logService.error("The lazy view only supports 8 and 16 bit data");
+            return false;
+        }
+        if (all_fits && save_data) {
+            logService.error("An image that fits in memory is corrected in place, so the lazy view can't be combined with save_data");
+            return false;
+        }
+
+        IntFunction<Object> source;
+        String title;
+        int width, height;
+        if (all_fits) {
+            ImageStack stack = ImgPlusReference.getStack();
+            source = n -> {
+                synchronized (stack) {
+                    return stack.getPixels(n);
+                }
+            };
+            title = ImgPlusReference.getTitle();
+            width = stack.getWidth();
+            height = stack.getHeight();
+        } else {
+            List<ImageStack> stacks = new ArrayList<>();
+            for (String path : vstack_paths) stacks.add(openVirtualStack(path));
+            source = n -> {
+                synchronized (stacks) {
+                    int k = 0;
+                    for (; n > stacks.get(k).size(); k++) n -= stacks.get(k).size();
+                    return stacks.get(k).getPixels(n);
+                }
+            };
+            title = savingFileName;
+            width = slice_width;
+            height = slice_height;
+        }
+        if (title.endsWith("." + extension)) title = title.substring(0, title.length() - 1 - extension.length());
+
+        LazyMedianStack view = new LazyMedianStack(width, height, bit_depth, series, window, start - 1, end, lazy * 1024L * 1024L, source,
+                (planes, timepoints) -> median(calibrate(planes, 0, dark_flat), series, 0, timepoints, null, null, false));
+        ImagePlus imp = new ImagePlus(title + "_median_corrected", view);
+        layout.apply(imp, end - start + 1);
+        imp.show();
+        view.prefetch();
+        logService.info("Showing a lazy view, processed in cells of " + view.cellFrames() + " time points with a cache of " + lazy + " MB");
+        return true;
+    }
+
+    //Open the sparse output for planes planes of the output, when it was asked for
+    private boolean openEvents(String name, int planes, int width, int height) {
+        if (sparse < 0) return true;
+        try {
+            events_file = new File(target_dir, SparseEvents.fileName(name));
+            events = new SparseEvents.Writer(events_file, width, height, planes, bit_depth, layout, sparse);
+            return true;
+        } catch (IOException e) {
+            logService.error("Failed to create sparse output: " + e.getMessage());
+            return false;
+        }
+    }
+
+    //Finish the sparse output and report how it compares to the dense output of pixels samples
+    private boolean closeEvents(long pixels) {
+        try {
+            events.close();
+            long size = events_file.length();
+            logService.info("Wrote sparse output " + events_file.getName() + " of " + String.format("%.1f", size / (1024.0 * 1024.0))
+                    + " MB, " + String.format("%.1f", pixels * (bit_depth / 8.0) / max(1, size)) + " times smaller than the dense output");
+            return true;
+        } catch (IOException e) {
+            logService.error("Failed to write sparse output: " + e.getMessage());
+            return false;
+        } finally {
+            events = null;
+        }
+    }
+
+    //The in-memory result has no file name of its own when it was opened in ImageJ
+    private String eventsName() {
+        String title = ImgPlusReference.getTitle();
+        if (title.endsWith("." + extension)) title = title.substring(0, title.length() - 1 - extension.length());
+        return title.replace(" ", "_") + "_median_corrected";
+    }
+
+    //What a prescan found: the rankmaps of the band for 8 and 16 bit data, the range of the values for 32 bit data
+    private static class Prescan {
+        TemporalMedian.TileMaps[] rankmaps = null;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        boolean fractional = false;
+
+        void merge(Prescan other) {
+            min = min(min, other.min);
+            max = max(max, other.max);
+            fractional |= other.fractional;
+        }
+
+        String describe() {
+            if (rankmaps != null) {
+                int ranks = 0;
+                for (TemporalMedian.TileMaps maps : rankmaps) ranks = max(ranks, maps.maxRank + 1);
+                return "rankmaps with up to " + ranks + " values";
+            }
+            if (max >= min) return "values from " + min + " till " + max;
+            return "nothing to share between brackets";
+        }
+    }
+
+    //Read time points s till e (1-based) of the band of rows once, before any bracket is loaded
+    //For 8 and 16 bit data the values of every tile are collected when ranked is set, the brackets all use the rankmaps of these
+    //For 32 bit data the range is collected, which every bracket is scaled with
+    //Every stack is read by a single thread, since stacks read ahead from the last plane that was asked for
+    private Prescan prescan(int s, int e, int band_y0, int band_height, boolean ranked) {
+        long first_slice = (long) (s - 1) * series + 1;
+        long last_slice = (long) e * series;
+        Prescan scan = new Prescan();
+        TemporalMedian.RankScan ranks = ranked ? new TemporalMedian.RankScan(series, slice_width, band_height, bit_depth) : null;
+
+        AtomicInteger next_stack = new AtomicInteger(0);
+        TemporalMedian.parallel(null, min(Prefs.getThreads(), vstacks.size()), () -> {
+            Prescan local = new Prescan();
+            TemporalMedian.RankScan local_ranks = ranked ? new TemporalMedian.RankScan(series, slice_width, band_height, bit_depth) : null;
+            int[] offsets = {band_y0 * slice_width};
+            for (int k = next_stack.getAndIncrement(); k < vstacks.size(); k = next_stack.getAndIncrement()) {
+                long stack_start = k == 0 ? 0 : slice_intervals.get(k - 1);
+                long from = max(first_slice, stack_start + 1);
+                long to = min(last_slice, slice_intervals.get(k));
+                for (long i = from; i <= to; i++) {
+                    Object pixels = vstacks.get(k).getProcessor((int) (i - stack_start)).getPixels();
+                    if (pixels instanceof float[]) {
+                        float[] values = (float[]) pixels;
+                        for (int p = offsets[0]; p < offsets[0] + slice_width * band_height; p++) {
+                            local.min = min(local.min, values[p]);
+                            local.max = max(local.max, values[p]);
+                            local.fractional |= values[p] % 1.0f != 0.0f;
+                        }
+                    } else if (local_ranks != null) {
+                        PlaneAccess plane = calibrate(PlaneAccess.ofArrays(new Object[]{pixels}, offsets, slice_width, band_height), band_y0, dark_flat);
+                        local_ranks.add((int) ((i - 1) % series), plane, 0);
+                    }
+                }
+            }
+            synchronized (scan) {
+                scan.merge(local);
+                if (ranks != null) ranks.merge(local_ranks);
+            }
+        });
+
+        if (ranks != null) scan.rankmaps = ranks.build();
+        return scan;
+    }
+
+    //Dark and flat correction happens while the frames are read, planes hold the rows from y0 on
+    private PlaneAccess calibrate(PlaneAccess planes, int y0, DarkFlat correction) {
+        return correction == null ? planes : correction.apply(planes, y0, PlaneAccess.maxValue(bit_depth, U32_SIZE));
+    }
+
+    //Set the display range to the range of the output, when it was not collected the output is scanned for it
+    private void showRange(ImagePlus imp) {
+        if (stats != null && !stats.isEmpty()) {
+            imp.setDisplayRange(stats.min(), stats.max());
+            imp.updateAndDraw();
+        } else {
+            IJ.run(imp, "Enhance Contrast", "saturated=0.0");
+        }
+    }
+
+    //Write the statistics of the output next to it as name_stats.csv
+    private void writeStats(String name) {
+        if (stats == null || stats.isEmpty() || target_dir == null || target_dir.equals("")) return;
+        try {
+            stats.write(new File(target_dir, name + "_stats.csv"));
+        } catch (IOException e) {
+            logService.error("Failed to write the output statistics: " + e.getMessage());
+        }
+    }
+
+    //Start a preview of planes output planes, when it was asked for
+    private void openPreview(int planes, int width, int height) {
+        previewer = preview > 0 ? new Preview(planes, series, width, height, preview, preview_step, bit_depth) : null;
+    }
+
+    //Write the preview next to the output as name_preview.tif and name_max.tif
+    private void writePreview(String name) {
+        if (previewer == null || previewer.isEmpty() || !save_data || target_dir == null || target_dir.equals("")) return;
+        try {
+            previewer.write(new File(target_dir), name, layout);
+            logService.info("Wrote a preview of every " + previewer.step() + " time point(s) as " + name + "_preview.tif and the maximum projection as " + name + "_max.tif");
+        } catch (IOException e) {
+            logService.error("Failed to write the preview: " + e.getMessage());
+        }
+    }
+
+    //Show the preview instead of the output, returns false when no preview was collected
+    //A cached background is subtracted without the median, so then there is no preview either
+    private boolean showPreview(String name) {
+        if (previewer == null) return false;
+        if (previewer.isEmpty()) {
+            logService.info("No preview was collected, the output is shown instead");
+            return false;
+        }
+        previewer.binned(name, layout).show();
+        previewer.projection(name, layout).show();
+        return true;
+    }
+
+    //The name of the output of window r of a sweep, nothing when there is no sweep
+    private String windowSuffix(int r) {
+        return windows.length > 0 ? "_window" + windows[r] : "";
+    }
+
+    private int getCacheStep() {
+        return cache_step > 0 ? cache_step : max(1, window / 4);
+    }
+
+    private void saveCache(BackgroundCache.Recorder recorder) {
+        try {
+            recorder.save();
+            logService.info("Stored background in cache " + cache_dir);
+        } catch (IOException e) {
+            logService.error("Failed to store background in cache: " + e.getMessage());
+        }
+    }
+
     //This is the function that actually gets called by ImageJ
     //It gets the current image that is selected, and passes that on to the setup and run function
     //If DONE is returned by setup, it does not run the run function
@@ -714,223 +1545,467 @@ public class FTM2< T extends RealType< T >>  implements Command {
     public void run() {
         logService.info("Fast Temporal Median 2");
         ImagePlus openImage = WindowManager.getCurrentImage();
-        if(setup(openImage) != DONE) {
+        //Every exit of a run, also the early ones on an error, closes the decoders
+        try {
+            if(setup(openImage) != DONE) {
+
+                //Set some variables to measure how long the entire script, and how long just saving takes
+
+                long savingTime = 0;
+                long stopTime = 0;
+                long startTime = System.nanoTime();
+                long[] gcStart = gcTotals();
+                if (Telemetry.ENABLED) Telemetry.collect(); //Counts left by a run that stopped early go to the totals, not to this run
+
+                BackgroundCache cache = null;
+                String cache_key = "";
+                if(!cache_dir.equals("")) {
+                    if(source_files.isEmpty()) {
+                        logService.info("Background cache is only used for images opened from a file");
+                    } else if(series > 1) {
+                        logService.info("Background cache is not used for hyperstacks");
+                    } else if(windows.length > 0) {
+                        logService.info("Background cache is not used for a sweep over several windows");
+                    } else if(dark_flat != null) {
+                        logService.info("Background cache is not used with a dark frame or flat field");
+                    } else if(bin > 1) {
+                        logService.info("Background cache is not used with a binned background");
+                    } else if(sparse >= 0) {
+                        logService.info("Background cache is not used with sparse output");
+                    } else {
+                        try {
+                            cache = new BackgroundCache(new File(cache_dir), cache_size * 1024 * 1024);
+                            cache_key = BackgroundCache.key(source_files, window, bit_depth, U32_SIZE);
+                        } catch (IOException e) {
+                            logService.error("Could not fingerprint the input for the background cache: " + e.getMessage());
+                            cache = null;
+                        }
+                    }
+                }
 
-            //Set some variables to measure how long the entire script, and how long just saving takes
+                //The lazy view is shown right away, the output is only written when it is read from file
+                if (lazy > 0) {
+                    if (!showLazy()) return;
+                    if (!save_data) return;
+                    showResults = false; //The parts don't have to be reopened to look at them
+                }
 
-            long savingTime = 0;
-            long stopTime = 0;
-            long startTime = System.nanoTime();
+                if (!all_fits && !storage.equals(OffHeapPlanes.HEAP)) {
+                    long[] times = processOffHeap(cache, cache_key);
+                    if (times != null) {
+                        stopTime += times[0];
+                        savingTime += times[1];
+                        writeStats(savingFileName);
+                        writePreview(savingFileName);
+                        if (showResults && showPreview(savingFileName)) {
+                            logService.info("Showing the preview instead of the output in " + target_dir);
+                        } else if (showResults && sparse >= 0) {
+                            logService.info("The sparse output is not shown, open it with Open Sparse Events");
+                        } else if (showResults) {
+                            ImagePlus result = IJ.openVirtual(target_dir + "/" + savingFileName + "_1." + extension);
+                            result.show();
+                            showRange(result);
+                        }
+                    }
+                } else if (!all_fits) {
+                    //Calculate the slice size in bytes and with that, the amount of slices that can be loaded at once with some buffer
+                    //Window slices are subtracted because these are added on to the start and end of each bracket for overlap
+                    //When running a shard, only its frames or its band of rows are processed
+                    int bracket_start = start;
+                    int bracket_end = end;
+                    int band_y0 = 0;
+                    int band_height = slice_height;
+                    if (shard_count > 0) {
+                        if (shard_by.equals(Shards.ROWS)) {
+                            int[] band = Shards.split(0, slice_height, shard_index, shard_count);
+                            band_y0 = band[0];
+                            band_height = band[1] - band[0];
+                        } else {
+                            int[] range = Shards.split(start, end, shard_index, shard_count);
+                            bracket_start = range[0];
+                            bracket_end = range[1];
+                        }
+                        logService.info("Processing shard " + shard_index + " of " + shard_count + ": frames " + bracket_start + " till " + bracket_end + ", rows " + band_y0 + " till " + (band_y0 + band_height));
+                    }
 
-            if (!all_fits) {
-                //Calculate the slice size in bytes and with that, the amount of slices that can be loaded at once with some buffer
-                //Window slices are subtracted because these are added on to the start and end of each bracket for overlap
-                int slice_size = (slice_height * slice_width * bit_depth) / 8;
-                int slices_that_fit = min((int) (max_bytes / slice_size / ratio) - window, total_size);
+                    //The planner gives how many frames can be loaded at once, the window is the overlap of a bracket
+                    boolean compressed = false;
+                    for (ImageStack stack : vstacks) compressed |= stack instanceof TiffPlaneStack && ((TiffPlaneStack) stack).getReader().isCompressed();
+                    //For a hyperstack every time point is series planes, a sweep also needs room for the output of every window
+                    MemoryPlanner.Plan plan = getPlanner().plan(new MemoryPlanner.Input(slice_width, band_height, (long) (bracket_end - bracket_start + 1 + window) * series, bit_depth, compressed), window, U32_SIZE, windows.length, series);
+                    int slices_that_fit = (int) min(plan.bracketFrames / series - window, total_size);
+                    if (slices_that_fit < 1) {
+                        logService.error("Not enough memory to load " + (window + 1) + " frames at once. " + plan.describe(window));
+                        return;
+                    }
 
 
-                ArrayList<int[]> brackets = new ArrayList<>(); //Will contain the brackets of slices that will beloaded
+                    ArrayList<int[]> brackets = new ArrayList<>(); //Will contain the brackets of slices that will beloaded
 
-                //Slice the entire batch up into brackets that contain the starting frame and the end frame
-                int slices_left = total_size;
-                int lower_end = start;
-                while (slices_left > 0) {
-                    slices_left -= slices_that_fit;
+                    //Slice the entire batch up into brackets that contain the starting frame and the end frame
+                    int slices_left = bracket_end - bracket_start + 1;
+                    int lower_end = bracket_start;
+                    while (slices_left > 0) {
+                        slices_left -= slices_that_fit;
 
-                    // If the leftover frames are lower than window, it wont calculate properly
-                    // So we add those frames to the rest
-                    // This could be an issue on extremely small ram sizes < 300 MB orso
-                    if (slices_left < window) {
-                        slices_left = 0;
-                        brackets.add(new int[]{lower_end, end});
-                    } else {
-                        brackets.add(new int[]{lower_end, min(slices_that_fit + lower_end, end)});
+                        // If the leftover frames are lower than window, it wont calculate properly
+                        // So we add those frames to the rest
+                        // This could be an issue on extremely small ram sizes < 300 MB orso
+                        if (slices_left < window) {
+                            slices_left = 0;
+                            brackets.add(new int[]{lower_end, bracket_end});
+                        } else {
+                            brackets.add(new int[]{lower_end, min(slices_that_fit + lower_end, bracket_end)});
+                        }
+                        lower_end = min(slices_that_fit + lower_end, bracket_end);
+                    }
+
+
+                    //32b data is rescaled per bracket, so a cached background would not match it
+                    BackgroundCache.Entry cached = null;
+                    BackgroundCache.Recorder recorder = null;
+                    if(cache != null && bit_depth != 32 && shard_count == 0) {
+                        cached = cache.find(cache_key);
+                        if(cached != null && !cached.covers(slice_width, slice_height, start - 1, end - 1)) cached = null;
+                        if(cached == null) recorder = cache.recorder(cache_key, slice_width, slice_height, bit_depth, window, start - 1, end - 1, getCacheStep());
+                        else logService.info("Subtracting cached background instead of calculating the median, " + cached.describe());
                     }
-                    lower_end = min(slices_that_fit + lower_end, end);
-                }
 
+                    //The brackets read frames s till e, window/2 frames around the frames of the bracket
+                    Prescan scan = null;
+                    if (prescan) {
+                        long scan_time = System.nanoTime();
+                        int scan_s = bracket_start == start ? start : max(start, bracket_start - window / 2);
+                        int scan_e = bracket_end == end ? end : min(end, bracket_end + window / 2);
+                        //Shards of 32b data all scan the whole job, so they find the same range and can be merged
+                        if (bit_depth == 32 && shard_count > 0) {
+                            scan = prescan(start, end, 0, slice_height, false);
+                            scan_s = start;
+                            scan_e = end;
+                        } else scan = prescan(scan_s, scan_e, band_y0, band_height, bit_depth != 32 && bin == 1 && cached == null);
+                        logService.info("Prescanned frames " + scan_s + " till " + scan_e + " in " + (System.nanoTime() - scan_time) / 1000000 + " ms, " + scan.describe());
+                    }
+
+                    ArrayList<String> parts = new ArrayList<>(); //The names of the written files
+                    String scaling = bit_depth == 32 ? null : Shards.UNSCALED; //The range 32b brackets were rescaled with, for the manifest
+
+                    //Output planes are counted from bracket_start
+                    if (windows.length == 0)
+                        stats = new OutputStats((bracket_end - bracket_start + 1) * series, (long) slice_width * band_height, PlaneAccess.maxValue(bit_depth, U32_SIZE));
+                    if (!openEvents(savingFileName, (bracket_end - bracket_start + 1) * series, slice_width, band_height)) return;
+                    if (windows.length == 0) openPreview((bracket_end - bracket_start + 1) * series, slice_width, band_height);
 
-                ImageStack temp_stack; //Onto this stack the slices will be put before being processed
-                for (int k = 0; k < brackets.size(); k++) {
-                    int[] t = brackets.get(k); //Get the start and end slice numbers
+                    //All frames are loaded into buffers from the pool, which are handed back once a bracket is saved
+                    //This way the next bracket (or file) reuses them instead of allocating new ones
+                    PlanePool pool = PlanePool.shared(bit_depth, slice_width * band_height, (slices_that_fit + window + 1) * series);
+                    for (ImageStack stack : vstacks)
+                        if (stack instanceof TiffPlaneStack) ((TiffPlaneStack) stack).setPlanePool(pool);
+
+                    ImageStack temp_stack; //Onto this stack the slices will be put before being processed
+                    for (int k = 0; k < brackets.size(); k++) {
+                        int[] t = brackets.get(k); //Get the start and end slice numbers
 
-                    temp_stack = new ImageStack(slice_width, slice_height); //Create a new Imagestack, flushing the old one
-                    //the start and end are either the start/end or the values in t +- window/2
-                    //This currently only supports look-around, not lookback or lookforward
-                    int s = t[0] == start ? start : t[0] - window / 2;
-                    int e = t[1] == end ? end : t[1] + window / 2;
+                        temp_stack = new ImageStack(slice_width, band_height); //Create a new Imagestack, flushing the old one
+                        //the start and end are either the start/end or the values in t +- window/2
+                        //This currently only supports look-around, not lookback or lookforward
+                        int s = t[0] == start ? start : max(start, t[0] - window / 2);
+                        int e = t[1] == end ? end : min(end, t[1] + window / 2);
 
-                    int temp_index; //Index into which stack inside vstacks should be accesed
-                    int temp_prev_sizes = 0; //What is the offset of the frame_number (i) compared to the size of the current stack
+                        int temp_index; //Index into which stack inside vstacks should be accesed
+                        long temp_prev_sizes = 0; //What is the offset of the slice number (i) compared to the size of the current stack
 
-                    //Set the temp_index and the prev_sizes to their correct start values for the current bracket
-                    for (temp_index = 0; vstacks.get(temp_index).size() + temp_prev_sizes < s; temp_index++)
-                        temp_prev_sizes += vstacks.get(temp_index).size();
+                        //s and e are time points, for a hyperstack every time point is series slices
+                        long first_slice = (long) (s - 1) * series + 1;
+                        long last_slice = (long) e * series;
 
-                    //Load the frames, as defined by s and e, into the temp_stack from disk, loading them into memory
-                    //If the current stack runs out, temp index is increased, as is prev_sizes
-                    for (int i = s; i <= e; i++) {
-                        if (i > slice_intervals.get(temp_index)) {
+                        //Set the temp_index and the prev_sizes to their correct start values for the current bracket
+                        for (temp_index = 0; vstacks.get(temp_index).size() + temp_prev_sizes < first_slice; temp_index++)
                             temp_prev_sizes += vstacks.get(temp_index).size();
-                            temp_index++;
 
+                        //Load the frames, as defined by s and e, into the temp_stack from disk, loading them into memory
+                        //If the current stack runs out, temp index is increased, as is prev_sizes
+                        for (long i = first_slice; i <= last_slice; i++) {
+                            if (i > slice_intervals.get(temp_index)) {
+                                temp_prev_sizes += vstacks.get(temp_index).size();
+                                temp_index++;
 
+
+                            }
+                            temp_stack.addSlice("" + i, loadPlane(vstacks.get(temp_index), (int) (i - temp_prev_sizes), band_y0, band_height, pool));
                         }
-                        temp_stack.addSlice("" + i, vstacks.get(temp_index).getProcessor(i - temp_prev_sizes));
-                    }
 
-                    logService.info("Loaded from slice " + s + " till slice " + e);
+                        logService.info("Loaded from slice " + s + " till slice " + e);
+                        ImageStack loaded_stack = temp_stack; //The pooled buffers, temp_stack is replaced for 32b data
 
-                    long intertime = System.nanoTime();
+                        long intertime = System.nanoTime();
 
-                    //Wrap the temp_stack into an imageplus and then an Img Object
-                    //This creates references, not copies
-                    ImagePlus temp_imp = new ImagePlus("", temp_stack);
-                    Img<T> temp_imglib = ImageJFunctions.wrapReal(temp_imp);
+                        //Wrap the temp_stack into an imageplus and then an Img Object
+                        //This creates references, not copies
+                        ImagePlus temp_imp = new ImagePlus("", temp_stack);
+                        Img<T> temp_imglib = ImageJFunctions.wrapReal(temp_imp);
 
-                    //We need to do this check because otherwise a 32b float might sneak through
-                    if (temp_imglib.firstElement() instanceof FloatType) {
+                        //We need to do this check because otherwise a 32b float might sneak through
+                        DarkFlat correction = dark_flat;
+                        if (temp_imglib.firstElement() instanceof FloatType) {
 
-                        double[] result = computeMinMax(temp_imglib.iterator());
+                            //With a prescan every bracket is scaled with the range of all frames, so the parts line up
+                            double[] result = scan != null ? new double[]{scan.min, scan.max} : computeMinMax(temp_imglib.iterator());
+                            boolean fractional = scan != null ? scan.fractional : abs(temp_imglib.firstElement().getRealFloat()) % 1.0 > 0.0;
 
-                        final double temp_min = result[0];
-                        final double temp_max = min(result[1], U32_SIZE);
+                            final double temp_min = result[0];
+                            final double temp_max = min(result[1], U32_SIZE);
 
-                        if (abs(temp_imglib.firstElement().getRealFloat()) % 1.0 > 0.0 | result[1] > U32_SIZE) {
-                            temp_imglib.forEach(pixel -> pixel.setReal(((pixel.getRealFloat() - temp_min) * (U32_SIZE) / (temp_max - temp_min))));
+                            if (fractional | result[1] > U32_SIZE) {
+                                temp_imglib.forEach(pixel -> pixel.setReal(((pixel.getRealFloat() - temp_min) * (U32_SIZE) / (temp_max - temp_min))));
+                                if (correction != null) correction = correction.scaled(temp_min, temp_max, U32_SIZE);
+                                scaling = Shards.scaling(scaling, temp_min + "," + temp_max);
+                            } else scaling = Shards.scaling(scaling, Shards.UNSCALED);
+
+                            temp_imglib = (Img<T>) opService.convert().uint32(temp_imglib);
+                            temp_imp.close();
                         }
 
-                        temp_imglib = (Img<T>) opService.convert().uint32(temp_imglib);
-                        temp_imp.close();
+                        //Since the first window/2 and last window/2 frames are there just for overlap, we do not need these
+                        //These are 1-indexed positions in temp_stack of the frames we want (t[0] to t[1]), unless it is the start or end.
+                        final int starting_value = t[0] == start ? 1 : t[0] - s + 1;
+                        final int ending_value = (t[1] == end ? temp_stack.size() / series : t[1] - s);
+
+                        //Process the data with the defined window
+                        //This happens in place, unless it is a sweep which writes every window to a stack of its own
+                        ImageStack[] results = {temp_stack};
+                        if (windows.length > 0) {
+                            results = sweep(calibrate(PlaneAccess.of(temp_imglib), band_y0, correction), 0, (int) temp_imglib.dimension(2) / series, slice_width, band_height, scan == null ? null : scan.rankmaps);
+                        } else if (cached != null) {
+                            cached.subtract(PlaneAccess.of(temp_imglib), s - 1, 0, (int) temp_imglib.dimension(2));
+                        } else {
+                            //Output planes are counted from bracket_start, which is start when there is a recorder (no shards)
+                            TemporalMedian.RowListener listener = TemporalMedian.RowListener.window((s - bracket_start) * series, (starting_value - 1) * series, ending_value * series, recorder, stats, events, previewer);
+                            median(calibrate(PlaneAccess.of(temp_imglib), band_y0, correction), series, 0, (int) temp_imglib.dimension(2) / series, listener, scan == null ? null : scan.rankmaps, true);
+                            stats.collect();
+                        }
+                        stopTime += (System.nanoTime() - intertime);
+
+                        //The events of this bracket are already written, there are no part files
+                        if (events != null) {
+                            intertime = System.nanoTime();
+                            try {
+                                events.flush();
+                            } catch (IOException ex) {
+                                logService.error("Failed to write sparse output: " + ex.getMessage());
+                                return;
+                            }
+                            savingTime += (System.nanoTime() - intertime);
+                            pool.giveAll(loaded_stack);
+                            continue;
+                        }
 
-                        System.gc();
-                    }
 
-                    //Process the data with the defined window
-                    //This happens in place
-                    TemporalMedian.main(temp_imglib, window, bit_depth, 0, (int) temp_imglib.dimension(2));
-                    stopTime += (System.nanoTime() - intertime);
+                        if (bit_depth == 32 && windows.length == 0) {
 
+                            results[0] = ImageJFunctions.wrapFloat(temp_imglib, "Result").getStack();
+                        }
 
-                    if (bit_depth == 32) {
+                        for (int r = 0; r < results.length; r++) {
+                            //Create a reference in the final_stack for all the frames we want
+                            ImageStack final_stack = new ImageStack(slice_width, band_height);
 
-                        temp_stack = ImageJFunctions.wrapFloat(temp_imglib, "Result").getStack();
+                            for (int j = (starting_value - 1) * series + 1; j <= ending_value * series; j++) {
+                                final_stack.addSlice(results[r].getProcessor(j));
+                            }
+                            ImagePlus final_imp = new ImagePlus("", final_stack);
+                            layout.apply(final_imp, ending_value - starting_value + 1);
+
+                            //Try to save the file and record how long this takes
+                            //If it fails, error
+                            //Saving time is recorded since it might indicate to an end user their drive is the limiting factor
+                            intertime = System.nanoTime();
+                            String part_name = shard_count > 0 ? Shards.partName(savingFileName, shard_index, shard_count, k + 1, extension) : savingFileName + windowSuffix(r) + "_" + (k + 1) + "." + extension;
+                            if (!saveImagePlus(Paths.get(target_dir, "/" + part_name).toString(), final_imp)) {
+                                logService.error("Failed to write to:" +Paths.get(target_dir, "/" + part_name).toString());
+                                System.exit(0);
+                            }
+                            parts.add(part_name);
+                            savingTime += (System.nanoTime() - intertime);
+                        }
 
-                        System.gc();
+                        pool.giveAll(loaded_stack);
                     }
 
-                    //Since the first window/2 and last window/2 frames are there just for overlap, we do not need these
-                    ImageStack final_stack = new ImageStack(slice_width, slice_height);
+                    logService.info("Plane buffers: " + pool.allocated() + " allocated, " + pool.reused() + " reused");
 
-                    //Create a reference in the final_stack for all the frames we want(t[0] to t[1]), unless it is the start or end.
-                    final int starting_value = t[0] == start ? 1 : window / 2 + 1;
-                    final int ending_value = (t[1] == end ? temp_stack.size() : temp_stack.size() - window / 2 - 1);
+                    if (recorder != null) saveCache(recorder);
+                    if (events != null && !closeEvents((long) (bracket_end - bracket_start + 1) * series * slice_width * band_height)) return;
+                    String output_name = shard_count > 0 ? savingFileName + "_shard" + shard_index + "of" + shard_count : savingFileName;
+                    if (stats != null) writeStats(output_name);
+                    writePreview(output_name);
 
-                    for (int j = starting_value; j <= ending_value; j++) {
-                        final_stack.addSlice(temp_stack.getProcessor(j));
+                    if (shard_count > 0) {
+                        try {
+                            Shards.writeManifest(new File(target_dir, Shards.manifestName(savingFileName, shard_index, shard_count)),
+                                    savingFileName, shard_by, shard_index, shard_count, slice_width, band_height, band_y0,
+                                    bracket_start, bracket_end == end ? end : bracket_end - 1,
+                                    scaling == null ? Shards.UNSCALED : scaling, parts);
+                        } catch (IOException e) {
+                            logService.error("Failed to write the shard manifest: " + e.getMessage());
+                        }
+                        logService.info("Finished shard " + shard_index + " of " + shard_count + ", merge all shards with merge=" + target_dir);
                     }
 
-                    //Try to save the file and record how long this takes
-                    //If it fails, error
-                    //Saving time is recorded since it might indicate to an end user their drive is the limiting factor
-                    intertime = System.nanoTime();
-                    if (!saveImagePlus(Paths.get(target_dir, "/" + savingFileName + "_" + (k + 1) + "." + extension).toString(), new ImagePlus("", final_stack))) {
-                        logService.error("Failed to write to:" +Paths.get(target_dir, "/part_" + (k + 1) + "." + extension).toString());
-                        System.exit(0);
+                    if(showResults && showPreview(output_name)) {
+                        logService.info("Showing the preview instead of the output in " + target_dir);
+                    } else if(showResults && events != null) {
+                        logService.info("The sparse output is not shown, open it with Open Sparse Events");
+                    } else if(showResults && shard_count == 0) {
+                        //Open all created files as virtualstacks and display them
+                        //This is not able to be done in a single window afaik
+                        //The display range is set to the range of the whole output, since the min and max changed.
+                        for (int r = 0; r < max(1, windows.length); r++) {
+                            for (int k = 0; k < brackets.size(); k++) {
+                                ImagePlus part = IJ.openVirtual(target_dir + "/" + savingFileName + windowSuffix(r) + "_" + (k + 1) + "." + extension);
+                                part.show();
+                                showRange(part);
+                            }
+                        }
                     }
-                    savingTime += (System.nanoTime() - intertime);
 
-                    //We gc not that often, since even with default settings <10 brackets will be used normally
-                    System.gc();
-                }
+                } else if (windows.length > 0) {
 
-                if(showResults) {
-                    //Open all created files as virtualstacks and display them
-                    //This is not able to be done in a single window afaik
-                    //The contrast command is to ensure the visualisation is correct since the min and max changed.
-                    for (int k = 0; k < brackets.size(); k++) {
-                        IJ.openVirtual(target_dir + "/" + savingFileName + "_"   + (k + 1) + "." + extension).show();
-                        IJ.run("Enhance Contrast", "saturated=0.0");
+                    long interTime = System.nanoTime();
+                    ImageStack[] results = sweep(calibrate(PlaneAccess.of(imageData), 0, dark_flat), start - 1, end, (int) imageData.dimension(0), (int) imageData.dimension(1), null);
+                    stopTime = System.nanoTime() - interTime;
+
+                    //The input is left as it is, every window is shown and saved as an image of its own
+                    String title = ImgPlusReference.getTitle();
+                    if (title.endsWith("." + extension)) title = title.substring(0, title.length() - 1 - extension.length());
+                    for (int r = 0; r < results.length; r++) {
+                        ImagePlus result = new ImagePlus(title + "_median_corrected" + windowSuffix(r), results[r]);
+                        layout.apply(result, end - start + 1);
+
+                        if (showResults) {
+                            result.show();
+                            showRange(result);
+                        }
+
+                        if (save_data) {
+                            String saveName = Paths.get(target_dir, result.getTitle().replace(" ", "_") + "." + extension).toString();
+                            long intertime = System.nanoTime();
+                            if(!saveImagePlus(saveName, result)) {
+                                logService.error("Failed to write to:" + saveName);
+                            }
+                            savingTime += (System.nanoTime() - intertime);
+                        }
                     }
-                }
 
-            } else {
+                } else {
 
-                long interTime = System.nanoTime();
-                //Then process the data, either on the smaller view or the entire dataset
-                TemporalMedian.main(imageData, window, bit_depth, start - 1, end);
+                    long interTime = System.nanoTime();
+                    final int width = (int) imageData.dimension(0);
+                    final int height = (int) imageData.dimension(1);
 
-                stopTime = System.nanoTime() - interTime;
-                //This is just to refresh the image
+                    final String events_name = eventsName();
 
-                //this crops the image if need be
-                if (start > 1 | end < total_size) {
-                    ImagePlus TempReference = new OwnSubStackMaker().stackRange(ImgPlusReference, start, end, ImgPlusReference.getTitle());
-                    //ImagePlus test = new SubstackMaker().makeSubstack(ImgPlusReference, "delete " + start + "-" + end);
-                    ImgPlusReference.close(); //Close the old one
-                    ImgPlusReference = TempReference; //Re-reference the reference
-                }
+                    BackgroundCache.Entry cached = cache == null ? null : cache.find(cache_key);
+                    if (cached != null && cached.covers(width, height, start - 1, end - 1)) {
+                        logService.info("Subtracting cached background instead of calculating the median, " + cached.describe());
+                        cached.subtract(PlaneAccess.of(imageData), 0, start - 1, end);
+                    } else {
+                        BackgroundCache.Recorder recorder = cache == null ? null : cache.recorder(cache_key, width, height, bit_depth, window, start - 1, end - 1, getCacheStep());
+                        //Then process the data, either on the smaller view or the entire dataset
+                        stats = new OutputStats((end - start + 1) * series, (long) width * height, PlaneAccess.maxValue(bit_depth, U32_SIZE));
+                        if (!openEvents(events_name, (end - start + 1) * series, width, height)) return;
+                        openPreview((end - start + 1) * series, width, height);
+                        TemporalMedian.RowListener listener = TemporalMedian.RowListener.window(-(start - 1) * series, (start - 1) * series, end * series, recorder, stats, events, previewer);
+                        median(calibrate(PlaneAccess.of(imageData), 0, dark_flat), series, start - 1, end, listener, null, true);
+                        stats.collect();
+                        if (recorder != null) saveCache(recorder);
+                    }
 
+                    stopTime = System.nanoTime() - interTime;
+                    //This is just to refresh the image
 
-                if (bit_depth == 32) {
-                    //ImageJ doesnt want to display 32b int data, so i have to cast it to 32b float.
-                    //this technically leads to precision loss, but this is unlikely as the values would have to be >U32_SIZE
-                    // which i prevent.
-                    //This is not an issue with saving
+                    //this crops the image if need be
+                    if (start > 1 | end < total_size) {
+                        ImagePlus TempReference = new OwnSubStackMaker().stackRange(ImgPlusReference, (start - 1) * series + 1, end * series, ImgPlusReference.getTitle());
+                        layout.apply(TempReference, end - start + 1);
+                        //ImagePlus test = new SubstackMaker().makeSubstack(ImgPlusReference, "delete " + start + "-" + end);
+                        ImgPlusReference.close(); //Close the old one
+                        ImgPlusReference = TempReference; //Re-reference the reference
+                    }
 
-                    CurrentWindow.close();
 
-                    ImgPlusReference = ImageJFunctions.wrapFloat(imageData, "Result");
-                }
+                    if (bit_depth == 32) {
+                        //ImageJ doesnt want to display 32b int data, so i have to cast it to 32b float.
+                        //this technically leads to precision loss, but this is unlikely as the values would have to be >U32_SIZE
+                        // which i prevent.
+                        //This is not an issue with saving
 
-                if(showResults) {
-                    ImgPlusReference.show();
-                    String title = ImgPlusReference.getTitle();
-                    if (title.endsWith("." + extension)) {
-                        title = title.substring(0, title.length() - 1 - extension.length());
-                    }
-                    ImgPlusReference.setTitle(title + "_median_corrected");
+                        CurrentWindow.close();
 
-                    //Run the contrast command to readjust the min and max
-                    IJ.run("Enhance Contrast", "saturated=0.0");
-                }
+                        ImgPlusReference = ImageJFunctions.wrapFloat(imageData, "Result");
+                    }
 
-                //If needed try to save the data
-                if (save_data) {
+                    if(showResults) {
+                        ImgPlusReference.show();
+                        String title = ImgPlusReference.getTitle();
+                        if (title.endsWith("." + extension)) {
+                            title = title.substring(0, title.length() - 1 - extension.length());
+                        }
+                        ImgPlusReference.setTitle(title + "_median_corrected");
 
-                    String saveName;
-                    if(concat)
-                        saveName = Paths.get(target_dir, ImgPlusReference.getTitle().substring(0, ImgPlusReference.getTitle().length() - (showResults ? 0 : 4)).replace(" ", "_") + (showResults ? "" : "_Median_corrected") + "." + extension).toString();
-                    else
-                        saveName = Paths.get(target_dir, ImgPlusReference.getTitle().substring(0, ImgPlusReference.getTitle().length() - (showResults ? 0 : 4)).replace(" ", "_") + (showResults ? "" : "_Median_corrected")  + "_concatenated." + extension).toString();
+                        //Readjust the min and max to the output
+                        showRange(ImgPlusReference);
+                    }
 
-                    if(!saveImagePlus(saveName, ImgPlusReference)) {
-                        logService.error("Failed to write to:" + saveName);
+                    //If needed try to save the data, sparse output has been written while processing
+                    if (events != null) {
+                        long intertime = System.nanoTime();
+                        closeEvents((long) (end - start + 1) * series * width * height);
+                        savingTime += (System.nanoTime() - intertime);
+                        writeStats(events_name);
+                        writePreview(events_name);
+                    } else if (save_data) {
+
+                        String saveName;
+                        if(concat)
+                            saveName = Paths.get(target_dir, ImgPlusReference.getTitle().substring(0, ImgPlusReference.getTitle().length() - (showResults ? 0 : 4)).replace(" ", "_") + (showResults ? "" : "_Median_corrected") + "." + extension).toString();
+                        else
+                            saveName = Paths.get(target_dir, ImgPlusReference.getTitle().substring(0, ImgPlusReference.getTitle().length() - (showResults ? 0 : 4)).replace(" ", "_") + (showResults ? "" : "_Median_corrected")  + "_concatenated." + extension).toString();
+
+                        if(!saveImagePlus(saveName, ImgPlusReference)) {
+                            logService.error("Failed to write to:" + saveName);
+                        }
+                        String statsName = new File(saveName).getName();
+                        writeStats(statsName.substring(0, statsName.length() - 1 - extension.length()));
+                        writePreview(statsName.substring(0, statsName.length() - 1 - extension.length()));
                     }
                 }
-            }
 
 
-            startTime = System.nanoTime() - startTime;
-            //Print some extra information about how long everything took and the processing speed
+                startTime = System.nanoTime() - startTime;
+                //Print some extra information about how long everything took and the processing speed
 
 
-            double spendTime = (double) stopTime / 1000000000;
-            double savedTime = (double) savingTime / 1000000000;
-            double allTime = (double) startTime / 1000000000;
-            totalTime += spendTime;
-            logService.info("Total took " + String.format("%.3f", allTime) + " s");
-            logService.info("Processing took " + String.format("%.3f", spendTime) + " s");
-            if (savingTime != 0) logService.info("Saving took " + String.format("%.3f", savedTime) + " s");
-            logService.info("Processed " + (end - start + 1) + " frames at " + String.format("%.1f", (total_disk_size / (1024 * 1024) / spendTime)) + " MB/s");
+                double spendTime = (double) stopTime / 1000000000;
+                double savedTime = (double) savingTime / 1000000000;
+                double allTime = (double) startTime / 1000000000;
+                totalTime.accumulate(spendTime);
+                logService.info("Total took " + String.format("%.3f", allTime) + " s");
+                logService.info("Processing took " + String.format("%.3f", spendTime) + " s");
+                if (savingTime != 0) logService.info("Saving took " + String.format("%.3f", savedTime) + " s");
+                long[] gcEnd = gcTotals();
+                logService.info("Garbage collection ran " + (gcEnd[0] - gcStart[0]) + " times, taking " + String.format("%.3f", (gcEnd[1] - gcStart[1]) / 1000.0) + " s");
+                logService.info("Processed " + (end - start + 1) + " frames at " + String.format("%.1f", (total_disk_size / (1024 * 1024) / spendTime)) + " MB/s");
+                if (Telemetry.ENABLED) logService.info(Telemetry.collect().describe());
 
-            IJ.showStatus("Finished Processing!");
-            if(!concatRun && !runningFromMacro)
-                IJ.showMessage("Finished Applying Faster Temporal Median.\nProcessed " + (end - start + 1) + " frames in " + String.format("%.3f", allTime) + " seconds.");
+                IJ.showStatus("Finished Processing!");
+                if(!concatRun && !runningFromMacro)
+                    IJ.showMessage("Finished Applying Faster Temporal Median.\nProcessed " + (end - start + 1) + " frames in " + String.format("%.3f", allTime) + " seconds.");
 
+            }
+        } finally {
+            closeDecoders();
+            if(!concatRun) PlanePool.release(); //Files of a folder are separate runs, the pool is kept until the last one is done
         }
-
-        debug_arg_string = ""; // Need to reset the string properly
     }
 
 
@@ -977,7 +2052,7 @@ public class FTM2< T extends RealType< T >>  implements Command {
             //        file.delete();
             System.gc();
         }
-        System.out.println("Average runtime " + String.format("%.3f", totalTime/(float) runs) + " s");
+        System.out.println("Average runtime " + String.format("%.3f", totalTime.get()/(float) runs) + " s");
 
     }
 }
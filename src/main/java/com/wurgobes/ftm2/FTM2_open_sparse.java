@@ -0,0 +1,44 @@
+package com.wurgobes.ftm2;
+/* Open Sparse Events
+(c) 2026 FTM2 contributors, Hohlbein Lab, Wageningen University
+
+Menu command that expands a sparse events file, written with sparse=<threshold>, back into a normal stack and shows it.
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+ */
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.OpenDialog;
+
+import org.scijava.command.Command;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.File;
+import java.io.IOException;
+
+@Plugin(type = Command.class, menuPath = "Plugins>Faster Temporal Median>Open Sparse Events")
+public class FTM2_open_sparse implements Command {
+
+    @Parameter
+    private LogService logService;
+
+    @Override
+    public void run() {
+        OpenDialog od = new OpenDialog("Open sparse events (." + SparseEvents.EXTENSION + ")");
+        if (od.getPath() == null) return;
+        try {
+            ImagePlus imp = SparseEvents.read(new File(od.getPath()));
+            imp.show();
+            IJ.run(imp, "Enhance Contrast", "saturated=0.0");
+        } catch (IOException e) {
+            logService.error("Failed to open " + od.getPath() + ": " + e.getMessage());
+        }
+    }
+}
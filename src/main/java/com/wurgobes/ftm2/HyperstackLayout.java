@@ -0,0 +1,74 @@
+package com.wurgobes.ftm2;
+/* Hyperstack layout
+(c) 2026 FTM2 contributors, Hohlbein Lab, Wageningen University
+
+The channels, slices and frames of an image, as ImageJ stores them.
+The time axis is the frames, or the slices when there is only a single frame (a plain stack).
+Everything else (channels and positions) is a separate series, ImageJ interleaves them with the channels changing fastest,
+so every time point is a run of series() planes in the stack.
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+ */
+
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.io.Opener;
+
+import java.io.File;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+class HyperstackLayout {
+
+    final int channels;
+    final int slices;
+    final int frames;
+
+    HyperstackLayout(final int channels, final int slices, final int frames) {
+        this.channels = channels;
+        this.slices = slices;
+        this.frames = frames;
+    }
+
+    static HyperstackLayout of(final ImagePlus imp) {
+        return new HyperstackLayout(imp.getNChannels(), imp.getNSlices(), imp.getNFrames());
+    }
+
+    // Read the layout ImageJ writes into the description of a TIFF, a file without it is a plain stack
+    static HyperstackLayout of(final File file) {
+        final FileInfo[] info = Opener.getTiffFileInfo(file.getPath());
+        return of(info == null || info.length == 0 ? null : info[0].description);
+    }
+
+    // The same, from a description that was already read, null for a file without one
+    static HyperstackLayout of(final String description) {
+        if (description == null) return new HyperstackLayout(1, 1, 1);
+        return new HyperstackLayout(value(description, "channels"), value(description, "slices"), value(description, "frames"));
+    }
+
+    private static int value(final String description, final String key) {
+        final Matcher m = Pattern.compile("^" + key + "=(\\d+)", Pattern.MULTILINE).matcher(description);
+        return m.find() ? Integer.parseInt(m.group(1)) : 1;
+    }
+
+    // Planes per time point
+    int series() {
+        return frames > 1 ? channels * slices : channels;
+    }
+
+    String describe() {
+        return channels + " channel(s) and " + (frames > 1 ? slices : 1) + " position(s)";
+    }
+
+    // Give an image of timepoints time points this layout
+    void apply(final ImagePlus imp, final int timepoints) {
+        if (series() == 1) return;
+        if (frames > 1) imp.setDimensions(channels, slices, timepoints);
+        else imp.setDimensions(channels, timepoints, 1);
+        imp.setOpenAsHyperStack(true);
+    }
+}
@@ -0,0 +1,192 @@
+package com.wurgobes.ftm2;
+/* Lazily corrected stack
+(c) 2026 FTM2 contributors, Hohlbein Lab, Wageningen University
+
+A VirtualStack that shows the median corrected data without processing all of it first.
+The time points are split into cells, a cell is only processed when one of its planes is requested.
+Its frames are read together with window frames on either side, so every plane gets the same median
+it would get when the whole stack is processed. Processed cells are kept in a least recently used cache
+with a memory limit, and prefetch fills the cache from the start on a background thread.
+Only 8 and 16 bit data is supported, since 32 bit data is rescaled over all of its frames before it is processed.
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+ */
+
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.IntFunction;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+class LazyMedianStack extends VirtualStack {
+
+    // Corrects planes in place, they hold timepoints time points of every series
+    interface Filter {
+        void apply(PlaneAccess planes, int timepoints);
+    }
+
+    // Time points per cell, unless the cache is too small for that
+    private static final int CELL_FRAMES = 64;
+
+    private final int width;
+    private final int height;
+    private final int bitDepth;
+    private final int series;
+    private final int window;
+    private final int first; // Time points first until last of the input are shown
+    private final int last;
+    private final int cellFrames;
+    private final long cellBytes;
+    private final long cacheBytes;
+    private final IntFunction<Object> source;
+    private final Filter filter;
+
+    private final LinkedHashMap<Integer, Object[]> cells = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Integer, FutureTask<Object[]>> computing = new HashMap<>();
+
+    // source gives the pixels of a 1-based slice of the input, which are copied before they are corrected
+    LazyMedianStack(final int width, final int height, final int bitDepth, final int series, final int window,
+                    final int first, final int last, final long cacheBytes, final IntFunction<Object> source, final Filter filter) {
+        super(width, height, null, null);
+        if (bitDepth != 8 && bitDepth != 16) throw new IllegalArgumentException("The lazy view only supports 8 and 16 bit data");
+        this.width = width;
+        this.height = height;
+        this.bitDepth = bitDepth;
+        this.series = series;
+        this.window = window;
+        this.first = first;
+        this.last = last;
+        this.cacheBytes = cacheBytes;
+        this.source = source;
+        this.filter = filter;
+
+        // At least four cells have to fit in the cache, so scrolling back and forth does not recompute them
+        final long timepointBytes = (long) width * height * (bitDepth / 8) * series;
+        this.cellFrames = (int) max(1, min(min(max(CELL_FRAMES, 2 * window), last - first), cacheBytes / 4 / timepointBytes));
+        this.cellBytes = cellFrames * timepointBytes;
+    }
+
+    int cellFrames() {
+        return cellFrames;
+    }
+
+    @Override
+    public ImageProcessor getProcessor(final int n) {
+        final int t = (n - 1) / series;
+        final int c = t / cellFrames;
+        final Object pixels = cell(c)[(t - c * cellFrames) * series + (n - 1) % series];
+        if (bitDepth == 8) return new ByteProcessor(width, height, (byte[]) pixels);
+        return new ShortProcessor(width, height, (short[]) pixels, null);
+    }
+
+    @Override
+    public Object getPixels(final int n) {
+        return getProcessor(n).getPixels();
+    }
+
+    @Override
+    public int getSize() {
+        return (last - first) * series;
+    }
+
+    @Override
+    public int size() {
+        return getSize();
+    }
+
+    @Override
+    public String getSliceLabel(final int n) {
+        return "" + n;
+    }
+
+    @Override
+    public int getBitDepth() {
+        return bitDepth;
+    }
+
+    // Fill the cache from the first cell on, until it is full, on a thread that does not keep ImageJ from closing
+    void prefetch() {
+        final int count = (last - first + cellFrames - 1) / cellFrames;
+        final Thread thread = new Thread(() -> {
+            for (int c = 0; c < count && (c + 1) * cellBytes <= cacheBytes; c++) cell(c);
+        }, "FTM2-lazy-prefetch");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    // The corrected planes of cell c, a cell that is requested by several threads at once is only processed once
+    private Object[] cell(final int c) {
+        final FutureTask<Object[]> task;
+        boolean owner = false;
+        synchronized (cells) {
+            final Object[] cached = cells.get(c);
+            if (cached != null) return cached;
+            FutureTask<Object[]> running = computing.get(c);
+            if (running == null) {
+                running = new FutureTask<>(() -> compute(c));
+                computing.put(c, running);
+                owner = true;
+            }
+            task = running;
+        }
+
+        if (owner) task.run();
+        try {
+            final Object[] planes = task.get();
+            if (owner) {
+                synchronized (cells) {
+                    computing.remove(c);
+                    cells.put(c, planes);
+                    final Iterator<Object[]> eldest = cells.values().iterator();
+                    while (cells.size() > 1 && cells.size() * cellBytes > cacheBytes) {
+                        eldest.next();
+                        eldest.remove();
+                    }
+                }
+            }
+            return planes;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            if (owner) {
+                synchronized (cells) {
+                    computing.remove(c);
+                }
+            }
+            throw new IllegalStateException("Failed to process time points of the lazy view", e.getCause());
+        }
+    }
+
+    // Read the time points of the cell with window time points on either side, correct them and keep the cell
+    private Object[] compute(final int c) {
+        final int a = first + c * cellFrames;
+        final int b = min(last, a + cellFrames);
+        final int s = max(first, a - window);
+        final int e = min(last, b + window);
+
+        final Object[] planes = new Object[(e - s) * series];
+        for (int i = 0; i < planes.length; i++) {
+            final Object pixels = source.apply(s * series + i + 1);
+            planes[i] = bitDepth == 8 ? ((byte[]) pixels).clone() : ((short[]) pixels).clone();
+        }
+        filter.apply(PlaneAccess.ofArrays(planes, new int[planes.length], width, height), e - s);
+        return Arrays.copyOfRange(planes, (a - s) * series, (b - s) * series);
+    }
+}
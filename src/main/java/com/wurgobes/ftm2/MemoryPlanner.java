@@ -0,0 +1,220 @@
+package com.wurgobes.ftm2;
+/* Memory planner
+(c) 2026 FTM2 contributors, Hohlbein Lab, Wageningen University
+
+Decides whether the data can be processed in RAM at once, and otherwise how many frames fit in a bracket.
+Instead of a fixed ratio on the file size, every large allocation of a run is estimated:
+the frames themselves (uncompressed, so compressed files are not underestimated), the uint32 copy made of 32b data,
+the arrays of the RankMap, the MedianHistograms of every worker thread, the planes decoded ahead of time
+and, for a binned background, the binned copy of every frame.
+The dimensions are read from the TIFF headers, so nothing has to be loaded to make the plan.
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+ */
+
+import ij.io.FileInfo;
+import ij.io.Opener;
+
+import java.io.File;
+import java.util.List;
+import java.util.function.Function;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+class MemoryPlanner {
+
+    // Part of the heap that is never planned for, so ImageJ itself and small objects still have room
+    private static final double HEADROOM = 0.1;
+
+    private final long available;
+    private final int threads;
+    private final int decodeThreads;
+    private final int bin;
+
+    // bin is the binning of the background, 1 when the exact filter runs
+    MemoryPlanner(final int threads, final int decodeThreads, final int bin) {
+        final Runtime runtime = Runtime.getRuntime();
+        final long used = runtime.totalMemory() - runtime.freeMemory();
+        this.available = max(0, (long) (runtime.maxMemory() * (1 - HEADROOM)) - used);
+        this.threads = threads;
+        this.decodeThreads = decodeThreads;
+        this.bin = bin;
+    }
+
+    // What is known about the data before loading it
+    static class Input {
+        final int width;
+        final int height;
+        final long frames;
+        final int bitDepth;
+        final boolean compressed;
+        final boolean estimated; // Only the size on disk was known
+
+        Input(final int width, final int height, final long frames, final int bitDepth, final boolean compressed) {
+            this(width, height, frames, bitDepth, compressed, false);
+        }
+
+        private Input(final int width, final int height, final long frames, final int bitDepth, final boolean compressed, final boolean estimated) {
+            this.width = width;
+            this.height = height;
+            this.frames = frames;
+            this.bitDepth = bitDepth;
+            this.compressed = compressed;
+            this.estimated = estimated;
+        }
+
+        // When the headers can't be read, assume the file is uncompressed 16b data
+        static Input ofDiskSize(final long bytes) {
+            final int width = TemporalMedian.MAX_BLOCK_SIZE;
+            return new Input(width, 1, max(1, bytes / (2L * width)), 16, false, true);
+        }
+
+        long planeBytes() {
+            return (long) width * height * (bitDepth / 8);
+        }
+    }
+
+    // Read the dimensions of all files from their TIFF headers, returns null if any of them is not a readable TIFF
+    // or if the files do not have the same dimensions
+    static Input describe(final List<File> files) {
+        return describe(files, file -> null);
+    }
+
+    // The same, but files that indexes gives a TiffIndex for are described by their index instead of their headers
+    static Input describe(final List<File> files, final Function<File, TiffIndex> indexes) {
+        Input input = null;
+        for (File file : files) {
+            final int width;
+            final int height;
+            final long frames;
+            final int bitDepth;
+            final boolean compressed;
+            final TiffIndex index = indexes.apply(file);
+            if (index != null) {
+                width = index.first().width;
+                height = index.first().height;
+                frames = index.size();
+                bitDepth = index.first().bitsPerSample;
+                compressed = index.first().compression != TiffPlaneReader.NONE;
+            } else {
+                final FileInfo[] info = Opener.getTiffFileInfo(file.getPath());
+                if (info == null || info.length == 0) return null;
+
+                // ImageJ writes a single FileInfo for a contiguous stack, other writers get one per plane
+                width = info[0].width;
+                height = info[0].height;
+                frames = info.length == 1 ? max(1, info[0].nImages) : info.length;
+                bitDepth = info[0].getBytesPerPixel() * 8;
+                compressed = info[0].compression > FileInfo.COMPRESSION_NONE;
+            }
+
+            if (input == null) {
+                input = new Input(width, height, frames, bitDepth, compressed);
+            } else if (input.width != width || input.height != height || input.bitDepth != bitDepth) {
+                return null;
+            } else {
+                input = new Input(input.width, input.height, input.frames + frames, bitDepth, input.compressed || compressed);
+            }
+        }
+        return input;
+    }
+
+    static class Plan {
+        final Input input;
+        final boolean inMemory;
+        final int bracketFrames; // Frames that can be loaded at once, including the overlap of a bracket
+        final long fixedBytes;
+        final long frameBytes;
+        final long available;
+        final int series; // Planes per time point, the window and the brackets count time points
+
+        Plan(final Input input, final boolean inMemory, final int bracketFrames, final long fixedBytes, final long frameBytes, final long available, final int series) {
+            this.input = input;
+            this.inMemory = inMemory;
+            this.bracketFrames = bracketFrames;
+            this.fixedBytes = fixedBytes;
+            this.frameBytes = frameBytes;
+            this.available = available;
+            this.series = series;
+        }
+
+        long estimatedBytes() {
+            return fixedBytes + frameBytes * (inMemory ? input.frames : bracketFrames);
+        }
+
+        String describe(final int window) {
+            final String dimensions = input.estimated ? "unknown dimensions (" + mb(input.planeBytes() * input.frames) + " on disk)"
+                    : input.width + "x" + input.height + "x" + input.frames + " at " + input.bitDepth + "b" + (input.compressed ? ", compressed" : "");
+            final String plan;
+            if (inMemory) {
+                plan = "process all frames in RAM";
+            } else if (bracketFrames / series <= window) {
+                plan = "does not fit, not even a single bracket of " + (window + 1) + " frames";
+            } else {
+                final long step = bracketFrames / series - window;
+                plan = "process in " + ((input.frames / series + step - 1) / step) + " brackets of " + step + " frames (+" + window + " overlap)";
+            }
+            return "Memory plan for " + dimensions + ": " + plan
+                    + "\n  estimated " + mb(estimatedBytes()) + " of " + mb(available) + " available"
+                    + "\n  " + mb(frameBytes) + " per frame, " + mb(fixedBytes) + " for rankmap, histograms and read-ahead";
+        }
+
+        private static String mb(final long bytes) {
+            return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+        }
+    }
+
+    // The fastest plan that fits: everything in RAM if possible, otherwise brackets as large as possible
+    Plan plan(final Input input, final int window, final double range) {
+        return plan(input, window, range, 0);
+    }
+
+    // A sweep writes every one of its outputs to a new frame of the input size
+    Plan plan(final Input input, final int window, final double range, final int outputs) {
+        return plan(input, window, range, outputs, 1);
+    }
+
+    // A hyperstack has series planes per time point, input.frames counts planes and window counts time points
+    Plan plan(final Input input, final int window, final double range, final int outputs, final int series) {
+        final long fixed = fixedBytes(input, window, range, series);
+        final long perFrame = frameBytes(input) + outputs * input.planeBytes();
+
+        if (fixed + perFrame * input.frames <= available)
+            return new Plan(input, true, (int) min(Integer.MAX_VALUE, input.frames), fixed, perFrame, available, series);
+
+        final long fit = max(0, (available - fixed) / perFrame);
+        return new Plan(input, false, (int) min(min(fit, input.frames), Integer.MAX_VALUE), fixed, perFrame, available, series);
+    }
+
+    // Every loaded frame, for 32b data also the uint32 copy it is converted to, and the copies BinnedMedian makes of it
+    private long frameBytes(final Input input) {
+        return input.planeBytes() + (input.bitDepth == 32 ? 4L * input.width * input.height : 0)
+                + BinnedMedian.frameBytes(input.width, input.height, input.bitDepth, bin);
+    }
+
+    // Everything that does not grow with the number of frames, every series has a rankmap of its own
+    private long fixedBytes(final Input input, final int window, final double range, final int series) {
+        // Worst case every value occurs, the rankmap is a boolean and two int arrays of this size
+        final long mapSize = input.bitDepth == 8 ? 256 : input.bitDepth == 16 ? 65536 : (long) range + 1;
+        // Tiles with a narrow range get maps of their own, of at most two int arrays of TILE_RANGE
+        final long tiles = ((input.width + TemporalMedian.TILE_WIDTH - 1) / TemporalMedian.TILE_WIDTH)
+                * (long) ((input.height + TemporalMedian.TILE_HEIGHT - 1) / TemporalMedian.TILE_HEIGHT);
+        final long rankmap = series * (mapSize * (1 + 4 + 4) + tiles * 8L * TemporalMedian.TILE_RANGE);
+
+        // Every thread has a block of MedianHistograms: the histogram and the history of the window
+        // They are sized for the tile being processed, at most for all values
+        final int maxRank = (int) min(Integer.MAX_VALUE - 1, mapSize - 1);
+        final int blockSize = TemporalMedian.blockSize(window, maxRank, input.width);
+        final long histograms = (long) threads * blockSize * MedianHistogram.bytes(window, maxRank) + (long) threads * 4 * 4 * input.width;
+
+        // Planes decoded ahead of time by TiffPlaneStack, and the strips being decoded
+        final long readAhead = input.compressed ? 3L * decodeThreads * input.planeBytes() : 0;
+
+        return rankmap + histograms + readAhead;
+    }
+}
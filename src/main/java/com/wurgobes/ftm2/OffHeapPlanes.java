@@ -0,0 +1,220 @@
+package com.wurgobes.ftm2;
+/* Off-heap plane storage
+(c) 2026 FTM2 contributors, Hohlbein Lab, Wageningen University
+
+Holds a stack of 8 or 16 bit planes outside of the java heap, either in direct ByteBuffers
+or in a scratch file that is memory mapped. TemporalMedian works on it through PlaneAccess,
+so a dataset that does not fit in the heap can still be processed in one go instead of in brackets,
+while the heap only holds the histograms. The planes are grouped in chunks of at most 1 GB,
+which keeps the number of buffers (and of mappings) low.
+The buffers live until close, which frees their memory and mappings right away instead of waiting for the GC.
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+ */
+
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+final class OffHeapPlanes extends PlaneAccess {
+
+    static final String HEAP = "heap";
+    static final String DIRECT = "direct";
+    static final String MAPPED = "mapped";
+
+    private static final long CHUNK_BYTES = 1L << 30;
+
+    private final int bits;
+    private final int planeSize; // In samples
+    private final int planesPerChunk;
+    private final ByteBuffer[] bytes;
+    private final ShortBuffer[] shorts;
+    private final File scratch;
+
+    private OffHeapPlanes(final int w, final int h, final int d, final int bitDepth, final File scratch) throws IOException {
+        super(w, h, d);
+        if (bitDepth != 8 && bitDepth != 16) throw new IllegalArgumentException("Off-heap storage only supports 8 and 16 bit data");
+        this.bits = bitDepth;
+        this.scratch = scratch;
+
+        // A single plane has to fit in one buffer
+        final long planeBytes = (long) w * h * (bitDepth / 8);
+        checkedSize(planeBytes, "plane size in bytes");
+        this.planeSize = w * h;
+        this.planesPerChunk = (int) Math.max(1, Math.min(d, CHUNK_BYTES / planeBytes));
+        final int chunks = (d + planesPerChunk - 1) / planesPerChunk;
+        this.bytes = new ByteBuffer[chunks];
+        this.shorts = bitDepth == 16 ? new ShortBuffer[chunks] : null;
+
+        if (scratch == null) {
+            for (int c = 0; c < chunks; c++) bytes[c] = ByteBuffer.allocateDirect((int) (chunkPlanes(c) * planeBytes));
+        } else {
+            // The mappings stay valid after the channel is closed
+            try (RandomAccessFile file = new RandomAccessFile(scratch, "rw")) {
+                file.setLength(d * planeBytes);
+                final FileChannel channel = file.getChannel();
+                for (int c = 0; c < chunks; c++)
+                    bytes[c] = channel.map(FileChannel.MapMode.READ_WRITE, c * planesPerChunk * planeBytes, chunkPlanes(c) * planeBytes);
+            }
+        }
+
+        for (int c = 0; c < chunks; c++) {
+            bytes[c].order(ByteOrder.nativeOrder());
+            if (shorts != null) shorts[c] = bytes[c].asShortBuffer();
+        }
+    }
+
+    // Planes in direct buffers, throws an OutOfMemoryError when there is not enough direct memory (-XX:MaxDirectMemorySize)
+    static OffHeapPlanes allocate(final int w, final int h, final int d, final int bitDepth) throws IOException {
+        return new OffHeapPlanes(w, h, d, bitDepth, null);
+    }
+
+    // Planes in a memory mapped scratch file, which is removed again by close
+    static OffHeapPlanes map(final File scratch, final int w, final int h, final int d, final int bitDepth) throws IOException {
+        return new OffHeapPlanes(w, h, d, bitDepth, scratch);
+    }
+
+    private long chunkPlanes(final int chunk) {
+        return Math.min(planesPerChunk, depth - (long) chunk * planesPerChunk);
+    }
+
+    int bitDepth() { return bits; }
+
+    void readRow(final int z, final int y, final int x0, final int len, final int[] dst) {
+        final int base = (z % planesPerChunk) * planeSize + y * width + x0;
+        if (shorts != null) {
+            final ShortBuffer buffer = shorts[z / planesPerChunk];
+            for (int i = 0; i < len; i++) dst[i] = buffer.get(base + i) & 0xffff;
+        } else {
+            final ByteBuffer buffer = bytes[z / planesPerChunk];
+            for (int i = 0; i < len; i++) dst[i] = buffer.get(base + i) & 0xff;
+        }
+    }
+
+    void writeRow(final int z, final int y, final int x0, final int len, final int[] src) {
+        final int base = (z % planesPerChunk) * planeSize + y * width + x0;
+        if (shorts != null) {
+            final ShortBuffer buffer = shorts[z / planesPerChunk];
+            for (int i = 0; i < len; i++) buffer.put(base + i, (short) src[i]);
+        } else {
+            final ByteBuffer buffer = bytes[z / planesPerChunk];
+            for (int i = 0; i < len; i++) buffer.put(base + i, (byte) src[i]);
+        }
+    }
+
+    // Copy the rows y0 until y0 + height of a byte[] or short[] frame into plane z
+    void writePlane(final int z, final Object pixels, final int y0) {
+        final int base = (z % planesPerChunk) * planeSize;
+        final int from = y0 * width;
+        if (shorts != null) {
+            final ShortBuffer buffer = shorts[z / planesPerChunk].duplicate();
+            buffer.position(base);
+            buffer.put((short[]) pixels, from, planeSize);
+        } else {
+            final ByteBuffer buffer = bytes[z / planesPerChunk].duplicate();
+            buffer.position(base);
+            buffer.put((byte[]) pixels, from, planeSize);
+        }
+    }
+
+    // Copy plane z into a new processor
+    ImageProcessor readPlane(final int z) {
+        final int base = (z % planesPerChunk) * planeSize;
+        if (shorts != null) {
+            final short[] pixels = new short[planeSize];
+            final ShortBuffer buffer = shorts[z / planesPerChunk].duplicate();
+            buffer.position(base);
+            buffer.get(pixels);
+            return new ShortProcessor(width, height, pixels, null);
+        } else {
+            final byte[] pixels = new byte[planeSize];
+            final ByteBuffer buffer = bytes[z / planesPerChunk].duplicate();
+            buffer.position(base);
+            buffer.get(pixels);
+            return new ByteProcessor(width, height, pixels);
+        }
+    }
+
+    // A view for ImageJ, every plane is copied onto the heap when it is requested, e.g. while saving
+    ImageStack asStack() {
+        return new VirtualStack(width, height, null, null) {
+            @Override
+            public ImageProcessor getProcessor(final int n) {
+                return readPlane(n - 1);
+            }
+
+            @Override
+            public Object getPixels(final int n) {
+                return getProcessor(n).getPixels();
+            }
+
+            @Override
+            public int getSize() {
+                return depth;
+            }
+
+            @Override
+            public int size() {
+                return depth;
+            }
+
+            @Override
+            public String getSliceLabel(final int n) {
+                return "" + n;
+            }
+
+            @Override
+            public int getBitDepth() {
+                return bits;
+            }
+        };
+    }
+
+    // Free the buffers and remove the scratch file, the planes can't be used after this
+    // The buffers are dropped before they are freed, so a late access fails instead of reading freed memory
+    void close() {
+        for (int c = 0; c < bytes.length; c++) {
+            final ByteBuffer buffer = bytes[c];
+            bytes[c] = null;
+            if (shorts != null) shorts[c] = null;
+            if (buffer != null) release(buffer);
+        }
+        if (scratch != null && !scratch.delete()) scratch.deleteOnExit();
+    }
+
+    // Free a direct or mapped buffer, with Unsafe.invokeCleaner on java 9 and later and the cleaner of the buffer on java 8
+    // When neither can be reached the buffer is left to the GC, as the scratch file then is to deleteOnExit
+    private static void release(final ByteBuffer buffer) {
+        try {
+            final Class<?> unsafe = Class.forName("sun.misc.Unsafe");
+            final Field instance = unsafe.getDeclaredField("theUnsafe");
+            instance.setAccessible(true);
+            unsafe.getMethod("invokeCleaner", ByteBuffer.class).invoke(instance.get(null), buffer);
+        } catch (NoSuchMethodException e) {
+            try {
+                final Method cleaner = buffer.getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                final Object clean = cleaner.invoke(buffer);
+                if (clean != null) clean.getClass().getMethod("clean").invoke(clean);
+            } catch (ReflectiveOperationException | RuntimeException ignored) {
+            }
+        } catch (ReflectiveOperationException | RuntimeException ignored) {
+        }
+    }
+}
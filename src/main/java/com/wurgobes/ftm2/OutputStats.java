@@ -0,0 +1,121 @@
+package com.wurgobes.ftm2;
+/* Output statistics
+(c) 2026 FTM2 contributors, Hohlbein Lab, Wageningen University
+
+Collects statistics of the corrected output while TemporalMedian writes it, so no extra pass over the output is needed:
+the range of the output (used as display range instead of Enhance Contrast), a histogram of the output
+and the mean background (the median that was subtracted) and mean residual of every plane.
+Every worker thread counts into its own histogram, these are merged once processing is done.
+The sums per plane are shared, but are only added to once per row segment.
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+class OutputStats implements TemporalMedian.RowListener {
+
+    private static final int MAX_BINS = 65536;
+
+    private final int planes;
+    private final long planePixels;
+    private final int binWidth;
+    private final long[] histogram;
+    private int min = Integer.MAX_VALUE;
+    private int max = Integer.MIN_VALUE;
+
+    private final AtomicLongArray backgroundSums;
+    private final AtomicLongArray residualSums;
+
+    // The counts of every thread since the last collect
+    private final TemporalMedian.PerThread<Counts> counts;
+
+    private static final class Counts {
+        final long[] histogram;
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+
+        Counts(final int bins) {
+            histogram = new long[bins];
+        }
+    }
+
+    // Statistics of planes output planes of planePixels pixels, with values from 0 until maxValue
+    OutputStats(final int planes, final long planePixels, final int maxValue) {
+        this.planes = planes;
+        this.planePixels = planePixels;
+        this.binWidth = (int) Math.max(1, ((long) maxValue + MAX_BINS) / MAX_BINS);
+        this.histogram = new long[maxValue / binWidth + 1];
+        this.backgroundSums = new AtomicLongArray(planes);
+        this.residualSums = new AtomicLongArray(planes);
+        this.counts = new TemporalMedian.PerThread<>(() -> new Counts(histogram.length));
+    }
+
+    // Rows come numbered as output planes, see TemporalMedian.RowListener.window
+    @Override
+    public void row(final int plane, final int y, final int x0, final int len, final int[] background, final int[] corrected) {
+        if (plane < 0 || plane >= planes) return;
+
+        final Counts c = counts.get();
+        long backgroundSum = 0;
+        long residualSum = 0;
+        for (int i = 0; i < len; i++) {
+            final int value = corrected[i];
+            c.histogram[Math.min(value / binWidth, c.histogram.length - 1)]++;
+            if (value < c.min) c.min = value;
+            if (value > c.max) c.max = value;
+            backgroundSum += background[i];
+            residualSum += value;
+        }
+        backgroundSums.addAndGet(plane, backgroundSum);
+        residualSums.addAndGet(plane, residualSum);
+    }
+
+    // Merge the counts of all threads, called after every TemporalMedian call
+    synchronized void collect() {
+        counts.drain(c -> {
+            for (int i = 0; i < histogram.length; i++) histogram[i] += c.histogram[i];
+            min = Math.min(min, c.min);
+            max = Math.max(max, c.max);
+        });
+    }
+
+    boolean isEmpty() {
+        return max < min;
+    }
+
+    int min() {
+        return min;
+    }
+
+    int max() {
+        return max;
+    }
+
+    // Write the display range, the mean background and residual of every plane and the histogram as a csv file
+    void write(final File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(file, StandardCharsets.UTF_8.name())) {
+            out.println("# display range," + min + "," + max);
+            out.println("plane,mean background,mean residual");
+            for (int p = 0; p < planes; p++)
+                out.println((p + 1) + "," + format(backgroundSums.get(p)) + "," + format(residualSums.get(p)));
+            out.println();
+            out.println("value,count");
+            for (int i = 0; i < histogram.length; i++)
+                if (histogram[i] > 0) out.println((long) i * binWidth + "," + histogram[i]);
+        }
+    }
+
+    private String format(final long sum) {
+        return String.format(Locale.ROOT, "%.3f", sum / (double) planePixels);
+    }
+}
@@ -0,0 +1,301 @@
+package com.wurgobes.ftm2;
+/* Row access into a stack of planes
+(c) 2026 FTM2 contributors, Hohlbein Lab, Wageningen University
+
+TemporalMedian works on row segments of planes instead of on single pixels.
+This class hides how those planes are stored. When the image is backed by plain java arrays
+(ImagePlus stacks, PlanarImg or ArrayImg) the rows are copied straight out of the arrays,
+otherwise a RandomAccess is used for every thread.
+All dimensions after x and y are flattened into planes in ImageJ order, so a hyperstack is a stack of
+channels * slices * frames planes. series() splits such a stack into one PlaneAccess per channel and position.
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+ */
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+
+abstract class PlaneAccess {
+
+    final int width;
+    final int height;
+    final int depth;
+
+    PlaneAccess(final int width, final int height, final int depth) {
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+    }
+
+    // Bits used per sample, this decides the size of the rankmap
+    abstract int bitDepth();
+
+    // Read len samples of row y in plane z, starting at x0, into dst
+    abstract void readRow(int z, int y, int x0, int len, int[] dst);
+
+    // Write len samples from src into row y of plane z, starting at x0
+    abstract void writeRow(int z, int y, int x0, int len, int[] src);
+
+    // The plane in the underlying stack that plane z is, only differs for a series of a hyperstack
+    int stackPlane(final int z) {
+        return z;
+    }
+
+    // Pick the fastest access for the image
+    // Every dimension after x and y is flattened into the planes
+    static <T extends RealType<T>> PlaneAccess of(final RandomAccessibleInterval<T> img) {
+        final int w = checkedSize(img.dimension(0), "width");
+        final int h = checkedSize(img.dimension(1), "height");
+        long planes = 1;
+        for (int dim = 2; dim < img.numDimensions(); dim++) planes *= img.dimension(dim);
+        final int d = checkedSize(planes, "number of planes");
+
+        Object[] arrays = null;
+        int[] offsets = null;
+
+        if (img instanceof PlanarImg) {
+            final PlanarImg<?, ?> planar = (PlanarImg<?, ?>) img;
+            arrays = new Object[d];
+            offsets = new int[d];
+            for (int z = 0; z < d; z++)
+                arrays[z] = planar.getPlane(z).getCurrentStorageArray();
+        } else if (img instanceof ArrayImg) {
+            final Object access = ((ArrayImg<?, ?>) img).update(null);
+            if (access instanceof ArrayDataAccess) {
+                // A single flat array, every plane is an offset into it
+                final Object data = ((ArrayDataAccess<?>) access).getCurrentStorageArray();
+                arrays = new Object[d];
+                offsets = new int[d];
+                for (int z = 0; z < d; z++) {
+                    arrays[z] = data;
+                    offsets[z] = checkedSize((long) z * w * h, "offset");
+                }
+            }
+        }
+
+        if (arrays != null) {
+            final PlaneAccess access = ofArrays(arrays, offsets, w, h);
+            if (access != null) return access;
+        }
+
+        return new RandomAccessPlanes<>(img, w, h, d);
+    }
+
+    // Split a stack with count planes per time point into count series, series i holds planes i, i + count, ...
+    static PlaneAccess[] series(final PlaneAccess planes, final int count) {
+        if (count == 1) return new PlaneAccess[]{planes};
+        final PlaneAccess[] series = new PlaneAccess[count];
+        for (int i = 0; i < count; i++) series[i] = new SeriesPlanes(planes, i, count);
+        return series;
+    }
+
+    // Rows are addressed with ints, a frame may hold more than 2^31 pixels but a single row or axis may not
+    static int checkedSize(final long size, final String what) {
+        if (size > Integer.MAX_VALUE) throw new IllegalArgumentException("The " + what + " of " + size + " is larger than supported (" + Integer.MAX_VALUE + ")");
+        return (int) size;
+    }
+
+    // Wrap plane arrays, returns null when the arrays are not of a supported integer type
+    static PlaneAccess ofArrays(final Object[] arrays, final int[] offsets, final int w, final int h) {
+        if (arrays.length == 0) return null;
+        if (arrays[0] instanceof byte[]) return new BytePlanes(arrays, offsets, w, h);
+        if (arrays[0] instanceof short[]) return new ShortPlanes(arrays, offsets, w, h);
+        if (arrays[0] instanceof int[]) return new IntPlanes(arrays, offsets, w, h);
+        if (arrays[0] instanceof float[]) return new FloatPlanes(arrays, offsets, w, h);
+        return null;
+    }
+
+    // The largest value a plane of bitDepth holds, and for 32b data the largest value it is scaled to
+    static int maxValue(final int bitDepth, final double range) {
+        if (bitDepth == 8) return 255;
+        if (bitDepth == 16) return 65535;
+        return (int) Math.min(range, TemporalMedian.RankMap.U32_SIZE);
+    }
+
+    // New planes of the type ImageJ uses for bitDepth: byte[], short[] or float[] for 32b
+    static Object[] allocate(final int bitDepth, final int count, final int size) {
+        final Object[] planes = new Object[count];
+        for (int i = 0; i < count; i++) {
+            if (bitDepth == 8) planes[i] = new byte[size];
+            else if (bitDepth == 16) planes[i] = new short[size];
+            else planes[i] = new float[size];
+        }
+        return planes;
+    }
+
+    static final class BytePlanes extends PlaneAccess {
+        private final byte[][] planes;
+        private final int[] offsets;
+
+        BytePlanes(final Object[] arrays, final int[] offsets, final int w, final int h) {
+            super(w, h, arrays.length);
+            this.planes = new byte[arrays.length][];
+            for (int z = 0; z < arrays.length; z++) planes[z] = (byte[]) arrays[z];
+            this.offsets = offsets;
+        }
+
+        int bitDepth() { return 8; }
+
+        void readRow(final int z, final int y, final int x0, final int len, final int[] dst) {
+            PlaneOps.widen(planes[z], offsets[z] + y * width + x0, dst, len);
+        }
+
+        void writeRow(final int z, final int y, final int x0, final int len, final int[] src) {
+            PlaneOps.narrow(src, planes[z], offsets[z] + y * width + x0, len);
+        }
+    }
+
+    static final class ShortPlanes extends PlaneAccess {
+        private final short[][] planes;
+        private final int[] offsets;
+
+        ShortPlanes(final Object[] arrays, final int[] offsets, final int w, final int h) {
+            super(w, h, arrays.length);
+            this.planes = new short[arrays.length][];
+            for (int z = 0; z < arrays.length; z++) planes[z] = (short[]) arrays[z];
+            this.offsets = offsets;
+        }
+
+        int bitDepth() { return 16; }
+
+        void readRow(final int z, final int y, final int x0, final int len, final int[] dst) {
+            PlaneOps.widen(planes[z], offsets[z] + y * width + x0, dst, len);
+        }
+
+        void writeRow(final int z, final int y, final int x0, final int len, final int[] src) {
+            PlaneOps.narrow(src, planes[z], offsets[z] + y * width + x0, len);
+        }
+    }
+
+    static final class IntPlanes extends PlaneAccess {
+        private final int[][] planes;
+        private final int[] offsets;
+
+        IntPlanes(final Object[] arrays, final int[] offsets, final int w, final int h) {
+            super(w, h, arrays.length);
+            this.planes = new int[arrays.length][];
+            for (int z = 0; z < arrays.length; z++) planes[z] = (int[]) arrays[z];
+            this.offsets = offsets;
+        }
+
+        int bitDepth() { return 32; }
+
+        void readRow(final int z, final int y, final int x0, final int len, final int[] dst) {
+            PlaneOps.widen(planes[z], offsets[z] + y * width + x0, dst, len);
+        }
+
+        void writeRow(final int z, final int y, final int x0, final int len, final int[] src) {
+            PlaneOps.narrow(src, planes[z], offsets[z] + y * width + x0, len);
+        }
+    }
+
+    // 32b output for ImageJ, which shows 32b data as float
+    static final class FloatPlanes extends PlaneAccess {
+        private final float[][] planes;
+        private final int[] offsets;
+
+        FloatPlanes(final Object[] arrays, final int[] offsets, final int w, final int h) {
+            super(w, h, arrays.length);
+            this.planes = new float[arrays.length][];
+            for (int z = 0; z < arrays.length; z++) planes[z] = (float[]) arrays[z];
+            this.offsets = offsets;
+        }
+
+        int bitDepth() { return 32; }
+
+        void readRow(final int z, final int y, final int x0, final int len, final int[] dst) {
+            PlaneOps.widen(planes[z], offsets[z] + y * width + x0, dst, len);
+        }
+
+        void writeRow(final int z, final int y, final int x0, final int len, final int[] src) {
+            PlaneOps.narrow(src, planes[z], offsets[z] + y * width + x0, len);
+        }
+    }
+
+    // One channel or position of a hyperstack
+    static final class SeriesPlanes extends PlaneAccess {
+        private final PlaneAccess planes;
+        private final int index;
+        private final int count;
+
+        SeriesPlanes(final PlaneAccess planes, final int index, final int count) {
+            super(planes.width, planes.height, planes.depth / count);
+            this.planes = planes;
+            this.index = index;
+            this.count = count;
+        }
+
+        int bitDepth() { return planes.bitDepth(); }
+
+        int stackPlane(final int z) {
+            return planes.stackPlane(z * count + index);
+        }
+
+        void readRow(final int z, final int y, final int x0, final int len, final int[] dst) {
+            planes.readRow(z * count + index, y, x0, len, dst);
+        }
+
+        void writeRow(final int z, final int y, final int x0, final int len, final int[] src) {
+            planes.writeRow(z * count + index, y, x0, len, src);
+        }
+    }
+
+    // Fallback for images that are not backed by arrays, e.g. views or cell images
+    // RandomAccess is not thread safe, so every thread gets its own
+    @SuppressWarnings("unchecked")
+    static final class RandomAccessPlanes<T extends RealType<T>, U extends IntegerType<U>> extends PlaneAccess {
+        private final ThreadLocal<RandomAccess<U>> access;
+        private final int bits;
+        private final long[] dimensions;
+
+        RandomAccessPlanes(final RandomAccessibleInterval<T> img, final int w, final int h, final int d) {
+            super(w, h, d);
+            this.dimensions = new long[img.numDimensions()];
+            img.dimensions(dimensions);
+            final RandomAccessibleInterval<U> int_img = (RandomAccessibleInterval<U>) img;
+            this.access = ThreadLocal.withInitial(int_img::randomAccess);
+            this.bits = access.get().get().getBitsPerPixel();
+        }
+
+        int bitDepth() { return bits; }
+
+        private RandomAccess<U> position(final int z, final int y, final int x0) {
+            final RandomAccess<U> ra = access.get();
+            ra.setPosition(x0, 0);
+            ra.setPosition(y, 1);
+            // Unflatten the plane index, the first dimension after y changes fastest
+            int plane = z;
+            for (int dim = 2; dim < ra.numDimensions(); dim++) {
+                final int size = (int) dimensions[dim];
+                ra.setPosition(plane % size, dim);
+                plane /= size;
+            }
+            return ra;
+        }
+
+        void readRow(final int z, final int y, final int x0, final int len, final int[] dst) {
+            final RandomAccess<U> ra = position(z, y, x0);
+            for (int i = 0; i < len; i++) {
+                dst[i] = ra.get().getInteger();
+                ra.fwd(0);
+            }
+        }
+
+        void writeRow(final int z, final int y, final int x0, final int len, final int[] src) {
+            final RandomAccess<U> ra = position(z, y, x0);
+            for (int i = 0; i < len; i++) {
+                ra.get().setInteger(src[i]);
+                ra.fwd(0);
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.wurgobes.ftm2;
+/* Bulk row stages for the Temporal Median
+(c) 2026 FTM2 contributors, Hohlbein Lab, Wageningen University
+
+These are the stages TemporalMedian runs over a row segment of a plane at once:
+widening the stored samples to ints, converting them to and from ranks and
+subtracting the median with a clamp at 0.
+
+Every stage is a plain counted loop over primitive arrays without branches or calls.
+HotSpot's superword pass turns these into SIMD instructions for byte, short and int lanes,
+so no explicit vector code is needed (and the plugin keeps running on Java 8).
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+ */
+
+final class PlaneOps {
+
+    private PlaneOps() {}
+
+    // Copy len unsigned bytes starting at off into dst
+    static void widen(final byte[] src, final int off, final int[] dst, final int len) {
+        for (int i = 0; i < len; i++)
+            dst[i] = src[off + i] & 0xff;
+    }
+
+    // Copy len unsigned shorts starting at off into dst
+    static void widen(final short[] src, final int off, final int[] dst, final int len) {
+        for (int i = 0; i < len; i++)
+            dst[i] = src[off + i] & 0xffff;
+    }
+
+    static void widen(final int[] src, final int off, final int[] dst, final int len) {
+        System.arraycopy(src, off, dst, 0, len);
+    }
+
+    // Float planes only ever hold whole numbers here, the way ImageJ shows 32b integer data
+    static void widen(final float[] src, final int off, final int[] dst, final int len) {
+        for (int i = 0; i < len; i++)
+            dst[i] = (int) src[off + i];
+    }
+
+    // Write len values back into the plane, the values are already clamped so they always fit
+    static void narrow(final int[] src, final byte[] dst, final int off, final int len) {
+        for (int i = 0; i < len; i++)
+            dst[off + i] = (byte) src[i];
+    }
+
+    static void narrow(final int[] src, final short[] dst, final int off, final int len) {
+        for (int i = 0; i < len; i++)
+            dst[off + i] = (short) src[i];
+    }
+
+    static void narrow(final int[] src, final int[] dst, final int off, final int len) {
+        System.arraycopy(src, 0, dst, off, len);
+    }
+
+    static void narrow(final int[] src, final float[] dst, final int off, final int len) {
+        for (int i = 0; i < len; i++)
+            dst[off + i] = src[i];
+    }
+
+    // Replace every value with its entry in the map, used for both input -> rank and rank -> input
+    static void lookup(final int[] values, final int len, final int[] map) {
+        for (int i = 0; i < len; i++)
+            values[i] = map[values[i]];
+    }
+
+    // values = map[values - offset]
+    static void lookup(final int[] values, final int len, final int[] map, final int offset) {
+        for (int i = 0; i < len; i++)
+            values[i] = map[values[i] - offset];
+    }
+
+    // values = (values - dark) * gain, rounded and clamped to 0 until limit. dark and gain start at off, either can be null
+    static void calibrate(final int[] values, final int len, final float[] dark, final float[] gain, final int off, final int limit) {
+        for (int i = 0; i < len; i++) {
+            float value = values[i];
+            if (dark != null) value -= dark[off + i];
+            if (gain != null) value *= gain[off + i];
+            values[i] = Math.min(Math.max(Math.round(value), 0), limit);
+        }
+    }
+
+    // values = max(values - background, 0)
+    static void subtractClamp(final int[] values, final int[] background, final int len) {
+        for (int i = 0; i < len; i++)
+            values[i] = Math.max(values[i] - background[i], 0);
+    }
+}
@@ -0,0 +1,94 @@
+package com.wurgobes.ftm2;
+/* Pool of plane buffers
+(c) 2026 FTM2 contributors, Hohlbein Lab, Wageningen University
+
+Every bracket used to load its frames into freshly allocated pixel arrays, which all live until the bracket
+is saved. On large heaps these end up in the old generation and were cleaned up with System.gc() after every bracket.
+The pool keeps the arrays of a finished bracket and hands them out again for the next one,
+also when the next bracket belongs to the next file of a folder, as long as the plane size is the same.
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+ */
+
+import ij.ImageStack;
+
+import java.util.ArrayDeque;
+
+class PlanePool {
+
+    // Shared by all runs in this JVM, so consecutive files reuse the same buffers
+    private static PlanePool shared = null;
+
+    private final int bitDepth;
+    private final int size;
+    private int capacity;
+
+    private final ArrayDeque<Object> free = new ArrayDeque<>();
+    private long allocated = 0;
+    private long reused = 0;
+
+    private PlanePool(final int bitDepth, final int size, final int capacity) {
+        this.bitDepth = bitDepth;
+        this.size = size;
+        this.capacity = capacity;
+    }
+
+    // The pool for planes of size pixels at bitDepth, keeping at most capacity free planes
+    // A pool for a different plane size is dropped, together with its buffers
+    static synchronized PlanePool shared(final int bitDepth, final int size, final int capacity) {
+        if (shared == null || shared.bitDepth != bitDepth || shared.size != size) shared = new PlanePool(bitDepth, size, capacity);
+        else shared.capacity = Math.max(shared.capacity, capacity);
+        return shared;
+    }
+
+    // Let go of all buffers, called once the last run is done
+    static synchronized void release() {
+        shared = null;
+    }
+
+    boolean matches(final int bitDepth, final int size) {
+        return this.bitDepth == bitDepth && this.size == size;
+    }
+
+    // A byte[], short[] or float[] (as ImageJ uses for 32b) of size pixels, the contents are undefined
+    synchronized Object take() {
+        final Object pixels = free.poll();
+        if (pixels != null) {
+            reused++;
+            return pixels;
+        }
+        allocated++;
+        if (bitDepth == 8) return new byte[size];
+        if (bitDepth == 16) return new short[size];
+        return new float[size];
+    }
+
+    // Hand back a buffer, buffers that don't fit this pool are left to the GC
+    synchronized void give(final Object pixels) {
+        if (free.size() >= capacity) return;
+        if ((bitDepth == 8 && pixels instanceof byte[] && ((byte[]) pixels).length == size)
+                || (bitDepth == 16 && pixels instanceof short[] && ((short[]) pixels).length == size)
+                || (bitDepth == 32 && pixels instanceof float[] && ((float[]) pixels).length == size))
+            free.push(pixels);
+    }
+
+    // Hand back every plane of a stack that is no longer used
+    void giveAll(final ImageStack stack) {
+        for (Object pixels : stack.getImageArray()) {
+            if (pixels == null) break;
+            give(pixels);
+        }
+    }
+
+    synchronized long allocated() {
+        return allocated;
+    }
+
+    synchronized long reused() {
+        return reused;
+    }
+}
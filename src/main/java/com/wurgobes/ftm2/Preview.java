@@ -0,0 +1,171 @@
+package com.wurgobes.ftm2;
+/* Preview of the output
+(c) 2026 FTM2 contributors, Hohlbein Lab, Wageningen University
+
+Collects a small preview of the corrected output while TemporalMedian writes it, so checking the result does not
+mean opening gigabytes of output again: every step-th time point binned bin x bin times (the mean of every bin),
+and the maximum projection of all time points at full resolution. For a hyperstack every channel and position
+gets its own planes.
+Row segments of a single plane can come from different threads, so the bins and the projection are updated atomically.
+Only the time points in the preview are binned, the projection is updated only where a value is larger than before.
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+ */
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+class Preview implements TemporalMedian.RowListener {
+
+    // Without a step the preview holds about this many time points
+    private static final int TIMEPOINTS = 100;
+
+    private final int planes;
+    private final int series;
+    private final int width;
+    private final int height;
+    private final int bin;
+    private final int step;
+    private final int bitDepth;
+    private final int binnedWidth;
+    private final int binnedHeight;
+
+    private final AtomicLongArray[] sums;
+    private final AtomicIntegerArray projection;
+    private volatile boolean empty = true;
+
+    // A preview of planes output planes of width x height pixels, series planes per time point
+    // Every step-th time point is kept, 0 picks the step that keeps about TIMEPOINTS of them
+    Preview(final int planes, final int series, final int width, final int height, final int bin, final int step, final int bitDepth) {
+        this.planes = planes;
+        this.series = series;
+        this.width = width;
+        this.height = height;
+        this.bin = bin;
+        this.bitDepth = bitDepth;
+        final int timepoints = planes / series;
+        this.step = step > 0 ? step : max(1, (timepoints + TIMEPOINTS - 1) / TIMEPOINTS);
+        this.binnedWidth = (width + bin - 1) / bin;
+        this.binnedHeight = (height + bin - 1) / bin;
+
+        this.sums = new AtomicLongArray[((timepoints + this.step - 1) / this.step) * series];
+        for (int p = 0; p < sums.length; p++) sums[p] = new AtomicLongArray(binnedWidth * binnedHeight);
+        this.projection = new AtomicIntegerArray(series * width * height);
+    }
+
+    // Rows come numbered as output planes, see TemporalMedian.RowListener.window
+    @Override
+    public void row(final int plane, final int y, final int x0, final int len, final int[] background, final int[] corrected) {
+        if (plane < 0 || plane >= planes) return;
+        if (empty) empty = false;
+
+        // The corrected values are never below 0, which the projection starts at
+        final int c = plane % series;
+        final int first = (c * height + y) * width + x0;
+        for (int i = 0; i < len; i++) {
+            final int value = corrected[i];
+            for (int current = projection.get(first + i); value > current; current = projection.get(first + i))
+                if (projection.compareAndSet(first + i, current, value)) break;
+        }
+
+        final int t = plane / series;
+        if (t % step != 0) return;
+        final AtomicLongArray binned = sums[(t / step) * series + c];
+        final int by = y / bin;
+        long sum = 0;
+        for (int i = 0; i < len; i++) {
+            sum += corrected[i];
+            final int x = x0 + i;
+            // Add up the pixels of a bin before touching the shared sum
+            if (i == len - 1 || (x + 1) % bin == 0) {
+                binned.addAndGet(by * binnedWidth + x / bin, sum);
+                sum = 0;
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        return empty;
+    }
+
+    int step() {
+        return step;
+    }
+
+    // The binned time points, as the bit depth of the output, 32 bit data as float the way ImageJ shows it
+    ImagePlus binned(final String title, final HyperstackLayout layout) {
+        final ImageStack stack = new ImageStack(binnedWidth, binnedHeight);
+        final int[] range = {Integer.MAX_VALUE, 0};
+        for (int p = 0; p < sums.length; p++) {
+            final int[] values = new int[binnedWidth * binnedHeight];
+            for (int by = 0; by < binnedHeight; by++) {
+                for (int bx = 0; bx < binnedWidth; bx++) {
+                    final long count = (long) min(bin, height - by * bin) * min(bin, width - bx * bin);
+                    values[by * binnedWidth + bx] = (int) ((sums[p].get(by * binnedWidth + bx) + count / 2) / count);
+                }
+            }
+            stack.addSlice("" + ((p / series) * step + 1), pixels(values, range));
+        }
+        final ImagePlus imp = new ImagePlus(title + "_preview", stack);
+        layout.apply(imp, sums.length / series);
+        imp.setDisplayRange(range[0], max(range[1], range[0] + 1));
+        return imp;
+    }
+
+    // The maximum projection, a plane per channel and position
+    ImagePlus projection(final String title, final HyperstackLayout layout) {
+        final ImageStack stack = new ImageStack(width, height);
+        final int[] range = {Integer.MAX_VALUE, 0};
+        for (int c = 0; c < series; c++) {
+            final int[] values = new int[width * height];
+            for (int i = 0; i < values.length; i++) values[i] = projection.get(c * width * height + i);
+            stack.addSlice("max", pixels(values, range));
+        }
+        final ImagePlus imp = new ImagePlus(title + "_max", stack);
+        layout.apply(imp, 1);
+        imp.setDisplayRange(range[0], max(range[1], range[0] + 1));
+        return imp;
+    }
+
+    // Write both as name_preview.tif and name_max.tif in dir
+    void write(final File dir, final String name, final HyperstackLayout layout) throws IOException {
+        for (ImagePlus imp : new ImagePlus[]{binned(name, layout), projection(name, layout)}) {
+            final File file = new File(dir, imp.getTitle() + ".tif");
+            if (!new FileSaver(imp).saveAsTiff(file.getPath())) throw new IOException("Could not write " + file);
+        }
+    }
+
+    // The values as pixels of the output bit depth, range is widened to hold them so all planes share a display range
+    private Object pixels(final int[] values, final int[] range) {
+        for (int value : values) {
+            range[0] = min(range[0], value);
+            range[1] = max(range[1], value);
+        }
+        if (bitDepth == 8) {
+            final byte[] pixels = new byte[values.length];
+            for (int i = 0; i < values.length; i++) pixels[i] = (byte) values[i];
+            return pixels;
+        }
+        if (bitDepth == 16) {
+            final short[] pixels = new short[values.length];
+            for (int i = 0; i < values.length; i++) pixels[i] = (short) values[i];
+            return pixels;
+        }
+        final float[] pixels = new float[values.length];
+        for (int i = 0; i < values.length; i++) pixels[i] = values[i];
+        return pixels;
+    }
+}
@@ -0,0 +1,283 @@
+package com.wurgobes.ftm2;
+/* Sharded execution
+(c) 2026 FTM2 contributors, Hohlbein Lab, Wageningen University
+
+A single job can be split into shards, either by frame range or by band of rows.
+Every shard is an independent run of the plugin (shard=i/n), possibly in a different JVM or on a
+different machine sharing the output directory. Each shard writes its part files and a manifest.
+The merge step (merge=<dir>) reads the manifests and assembles the parts into one result.
+
+Frame shards follow the same convention as the brackets in FTM2: shard i covers the boundaries
+[b(i-1), b(i)] and writes the frames b(i-1) until b(i)-1, using window/2 frames around it as halo.
+Row shards process all frames of a band of rows and need no halo.
+32 bit data is rescaled to fit in 32b integers, the manifest records with which range. Shards are only merged when
+they were all scaled the same way, otherwise the merged stack would jump in brightness where the shards meet.
+The merged stack is written like any other output: by ImageJ, or by TiffPlaneWriter when output_bits or compress is given.
+Compressed output can't go past 4 GB, so it is then split over numbered files.
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+ */
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.io.FileSaver;
+import ij.process.ImageProcessor;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+class Shards {
+
+    static final String FRAMES = "frames";
+    static final String ROWS = "rows";
+
+    // How the data of a shard was scaled: not at all, or with different ranges per bracket
+    static final String UNSCALED = "none";
+    static final String MIXED = "mixed";
+
+    private static final String MANIFEST_SUFFIX = ".shard";
+
+    // The boundaries [lower, upper] of shard index (1-based) out of count when splitting first until last
+    static int[] split(final int first, final int last, final int index, final int count) {
+        final long per = ((long) last - first + count) / count; // ceil((last - first + 1) / count)
+        final int lower = (int) Math.min(first + (index - 1) * per, last);
+        final int upper = index == count ? last : (int) Math.min(first + index * per, last);
+        return new int[]{lower, upper};
+    }
+
+    static String manifestName(final String name, final int index, final int count) {
+        return name + "_shard" + index + "of" + count + MANIFEST_SUFFIX;
+    }
+
+    static String partName(final String name, final int index, final int count, final int part, final String extension) {
+        return name + "_shard" + index + "of" + count + "_" + part + "." + extension;
+    }
+
+    // The scaling of a shard once another bracket was scaled with bracket, null when none was scaled yet
+    static String scaling(final String shard, final String bracket) {
+        return shard == null || shard.equals(bracket) ? bracket : MIXED;
+    }
+
+    // Describes what a single shard wrote, scaling is the range 32 bit data was rescaled with as min,max
+    static void writeManifest(final File file, final String name, final String mode, final int index, final int count,
+                              final int width, final int height, final int y0, final int first, final int last,
+                              final String scaling, final List<String> parts) throws IOException {
+        final Properties manifest = new Properties();
+        manifest.setProperty("name", name);
+        manifest.setProperty("mode", mode);
+        manifest.setProperty("shard", String.valueOf(index));
+        manifest.setProperty("shards", String.valueOf(count));
+        manifest.setProperty("width", String.valueOf(width));
+        manifest.setProperty("height", String.valueOf(height));
+        manifest.setProperty("y0", String.valueOf(y0));
+        manifest.setProperty("first", String.valueOf(first));
+        manifest.setProperty("last", String.valueOf(last));
+        manifest.setProperty("scaling", scaling);
+        manifest.setProperty("parts", String.join(File.pathSeparator, parts));
+
+        // Write to a temporary file first, so a merge never sees a half written manifest
+        final File temp = new File(file.getPath() + ".tmp");
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+            manifest.store(out, "Faster Temporal Median shard");
+        }
+        if (file.exists() && !file.delete()) throw new IOException("Could not replace " + file);
+        if (!temp.renameTo(file)) throw new IOException("Could not write " + file);
+    }
+
+    // Merge all complete sets of shards in dir into target, returns the paths of the merged files
+    // Without a writer they are saved by ImageJ
+    static List<String> merge(final File dir, final File target, final String extension, final TiffPlaneWriter writer) throws IOException {
+        final File[] files = dir.listFiles((d, n) -> n.endsWith(MANIFEST_SUFFIX));
+        if (files == null || files.length == 0) throw new IOException("No shard manifests found in " + dir);
+
+        // Group the manifests per job, sorted by shard so the merge is the same every time
+        final TreeMap<String, TreeMap<Integer, Properties>> jobs = new TreeMap<>();
+        for (File file : files) {
+            final Properties manifest = new Properties();
+            try (Reader in = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+                manifest.load(in);
+            }
+            final String job = manifest.getProperty("name") + "_" + manifest.getProperty("shards");
+            jobs.computeIfAbsent(job, k -> new TreeMap<>()).put(Integer.parseInt(manifest.getProperty("shard")), manifest);
+        }
+
+        final List<String> merged = new ArrayList<>();
+        for (TreeMap<Integer, Properties> shards : jobs.values()) {
+            final Properties first = shards.firstEntry().getValue();
+            final String name = first.getProperty("name");
+            final String mode = first.getProperty("mode");
+            final int count = Integer.parseInt(first.getProperty("shards"));
+            final String scaling = first.getProperty("scaling", MIXED);
+
+            if (shards.size() != count || shards.firstKey() != 1 || shards.lastKey() != count)
+                throw new IOException("Only " + shards.size() + " of " + count + " shards of " + name + " are done");
+
+            final List<ImageStack> stacks = new ArrayList<>();
+            int expected_first = Integer.parseInt(first.getProperty("first"));
+            int expected_y0 = 0;
+            for (Properties shard : shards.values()) {
+                if (!shard.getProperty("mode").equals(mode))
+                    throw new IOException("Shards of " + name + " were not all split by " + mode);
+                if (scaling.equals(MIXED) || !shard.getProperty("scaling", MIXED).equals(scaling))
+                    throw new IOException("Shards of " + name + " were not all scaled with the same range, " +
+                            "process 32 bit data with prescan=true so every shard uses the range of all frames");
+
+                if (mode.equals(FRAMES)) {
+                    if (Integer.parseInt(shard.getProperty("first")) != expected_first)
+                        throw new IOException("Shard " + shard.getProperty("shard") + " of " + name + " does not start at frame " + expected_first);
+                    expected_first = Integer.parseInt(shard.getProperty("last")) + 1;
+                } else {
+                    if (Integer.parseInt(shard.getProperty("y0")) != expected_y0)
+                        throw new IOException("Shard " + shard.getProperty("shard") + " of " + name + " does not start at row " + expected_y0);
+                    expected_y0 += Integer.parseInt(shard.getProperty("height"));
+                }
+
+                final List<ImageStack> parts = new ArrayList<>();
+                for (String part : shard.getProperty("parts").split(File.pathSeparator)) {
+                    final ImagePlus imp = IJ.openVirtual(new File(dir, part).getPath());
+                    if (imp == null) throw new IOException("Could not open part " + part);
+                    parts.add(imp.getStack());
+                }
+                stacks.add(new ConcatenatedStack(parts));
+            }
+
+            final ImageStack result = mode.equals(FRAMES) ? new ConcatenatedStack(stacks) : new BandStack(stacks, expected_y0);
+            final ImagePlus imp = new ImagePlus(name, result);
+            if (writer == null) {
+                final String path = new File(target, name + "_merged." + extension).getPath();
+                if (!new FileSaver(imp).saveAsTiff(path)) throw new IOException("Failed to write to: " + path);
+                merged.add(path);
+                continue;
+            }
+
+            final int per = writer.planesPerFile(imp);
+            final int planes = result.size();
+            for (int from = 0; from < planes; from += per) {
+                final int length = Math.min(per, planes - from);
+                final String suffix = per >= planes ? "" : "_" + (from / per + 1);
+                final File file = new File(target, name + "_merged" + suffix + "." + extension);
+                writer.write(file, length == planes ? imp : new ImagePlus(name, new ConcatenatedStack(Collections.singletonList(result), from, length)));
+                merged.add(file.getPath());
+            }
+        }
+        return merged;
+    }
+
+    // Stacks one after the other, without loading them
+    static class ConcatenatedStack extends VirtualStack {
+        private final List<ImageStack> stacks;
+        private final int[] ends; // The last slice (1-based) of every stack
+        private final int bitDepth;
+        private final int first; // The slices before the first one shown
+        private final int size;
+
+        ConcatenatedStack(final List<ImageStack> stacks) {
+            this(stacks, 0, -1);
+        }
+
+        // Only count slices from slice first + 1 on, all of them when count is -1
+        ConcatenatedStack(final List<ImageStack> stacks, final int first, final int count) {
+            super(stacks.get(0).getWidth(), stacks.get(0).getHeight(), null, null);
+            this.stacks = stacks;
+            this.ends = new int[stacks.size()];
+            int total = 0;
+            for (int i = 0; i < stacks.size(); i++) {
+                total += stacks.get(i).size();
+                ends[i] = total;
+            }
+            this.bitDepth = stacks.get(0).getBitDepth();
+            this.first = first;
+            this.size = count < 0 ? total - first : count;
+        }
+
+        @Override
+        public ImageProcessor getProcessor(final int slice) {
+            final int n = slice + first;
+            int i = 0;
+            while (n > ends[i]) i++;
+            return stacks.get(i).getProcessor(n - (i == 0 ? 0 : ends[i - 1]));
+        }
+
+        @Override
+        public Object getPixels(final int n) {
+            return getProcessor(n).getPixels();
+        }
+
+        @Override
+        public int getSize() {
+            return size;
+        }
+
+        @Override
+        public int size() {
+            return getSize();
+        }
+
+        @Override
+        public String getSliceLabel(final int n) {
+            return "" + n;
+        }
+
+        @Override
+        public int getBitDepth() {
+            return bitDepth;
+        }
+    }
+
+    // Bands of rows on top of each other, every frame is assembled when it is requested
+    static class BandStack extends VirtualStack {
+        private final List<ImageStack> bands;
+        private final int height;
+
+        BandStack(final List<ImageStack> bands, final int height) {
+            super(bands.get(0).getWidth(), height, null, null);
+            this.bands = bands;
+            this.height = height;
+        }
+
+        @Override
+        public ImageProcessor getProcessor(final int n) {
+            ImageProcessor result = null;
+            int y0 = 0;
+            for (ImageStack band : bands) {
+                final ImageProcessor ip = band.getProcessor(n);
+                if (result == null) result = ip.createProcessor(ip.getWidth(), height);
+                result.insert(ip, 0, y0);
+                y0 += ip.getHeight();
+            }
+            return result;
+        }
+
+        @Override
+        public Object getPixels(final int n) {
+            return getProcessor(n).getPixels();
+        }
+
+        @Override
+        public int getSize() {
+            return bands.get(0).size();
+        }
+
+        @Override
+        public int size() {
+            return getSize();
+        }
+
+        @Override
+        public String getSliceLabel(final int n) {
+            return "" + n;
+        }
+
+        @Override
+        public int getBitDepth() {
+            return bands.get(0).getBitDepth();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.wurgobes.ftm2;
+/* Sparse event output
+(c) 2026 FTM2 contributors, Hohlbein Lab, Wageningen University
+
+After the median is subtracted nearly all of a single molecule movie is 0, only the blinking emitters are left.
+Instead of the dense frames, only the samples above a threshold are written, as a stream of records that each hold
+the pixels of a row segment: the plane, the index of the first pixel in the plane, the number of samples,
+their columns (relative to the first pixel) and their values. The records are written while TemporalMedian runs, in whatever order the worker
+threads produce them. Every thread fills a buffer of its own and only takes the lock on the file to write it out.
+The reader expands the records back into a dense stack.
+
+File layout (little endian):
+  "FTMS", version, width, height, planes, bit depth, channels, slices, frames, threshold
+  records of: plane, first pixel, count (ints), count columns (unsigned shorts), count values
+Values are bytes for 8 bit data, unsigned shorts for 16 bit data and ints for 32 bit data, which is stored as the
+rescaled values TemporalMedian works on, the same values the dense output holds.
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+ */
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import static java.lang.Math.min;
+
+class SparseEvents {
+
+    static final String EXTENSION = "ftms";
+
+    private static final int MAGIC = 0x534d5446; // "FTMS" read as a little endian int
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 40;
+    private static final int RECORD_BYTES = 12;
+    private static final int BUFFER_BYTES = 1 << 20;
+    private static final int MAX_SEGMENT = 1 << 16; // Columns are stored as unsigned shorts
+
+    static String fileName(final String name) {
+        return name + "_events." + EXTENSION;
+    }
+
+    private static int valueBytes(final int bitDepth) {
+        return bitDepth == 8 ? 1 : bitDepth == 16 ? 2 : 4;
+    }
+
+    // Writes the samples of the output above threshold while TemporalMedian runs
+    static class Writer implements TemporalMedian.RowListener {
+
+        private final FileChannel channel;
+        private final int width;
+        private final int planes;
+        private final int threshold;
+        private final int valueBytes;
+
+        private final TemporalMedian.PerThread<ByteBuffer> buffers = new TemporalMedian.PerThread<>(
+                () -> ByteBuffer.allocate(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN));
+        private volatile IOException failure = null;
+
+        Writer(final File file, final int width, final int height, final int planes, final int bitDepth,
+               final HyperstackLayout layout, final int threshold) throws IOException {
+            this.width = width;
+            this.planes = planes;
+            this.threshold = threshold;
+            this.valueBytes = valueBytes(bitDepth);
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(planes).putInt(bitDepth)
+                    .putInt(layout.channels).putInt(layout.slices).putInt(layout.frames).putInt(threshold);
+            header.flip();
+            write(header);
+        }
+
+        // Rows come numbered as output planes, see TemporalMedian.RowListener.window
+        @Override
+        public void row(final int plane, final int y, final int x0, final int len, final int[] background, final int[] corrected) {
+            if (plane < 0 || plane >= planes || failure != null) return;
+
+            final ByteBuffer buffer = buffers.get();
+            for (int from = 0; from < len; from += MAX_SEGMENT) {
+                final int to = min(len, from + MAX_SEGMENT);
+                int count = 0;
+                for (int i = from; i < to; i++) if (corrected[i] > threshold) count++;
+                if (count == 0) continue;
+
+                if (buffer.remaining() < RECORD_BYTES + count * (2 + valueBytes)) drain(buffer);
+                buffer.putInt(plane).putInt(y * width + x0 + from).putInt(count);
+                for (int i = from; i < to; i++) if (corrected[i] > threshold) buffer.putShort((short) (i - from));
+                for (int i = from; i < to; i++) {
+                    if (corrected[i] <= threshold) continue;
+                    if (valueBytes == 1) buffer.put((byte) corrected[i]);
+                    else if (valueBytes == 2) buffer.putShort((short) corrected[i]);
+                    else buffer.putInt(corrected[i]);
+                }
+            }
+        }
+
+        // Write out a full buffer, the first failure is kept and thrown by flush
+        private void drain(final ByteBuffer buffer) {
+            buffer.flip();
+            try {
+                write(buffer);
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+            }
+            buffer.clear();
+        }
+
+        private void write(final ByteBuffer buffer) throws IOException {
+            synchronized (channel) {
+                while (buffer.hasRemaining()) channel.write(buffer);
+            }
+        }
+
+        // Write out the buffers of all threads, called after every TemporalMedian call
+        synchronized void flush() throws IOException {
+            buffers.drain(this::drain);
+            if (failure != null) throw failure;
+        }
+
+        // Bytes written so far, once flushed
+        long size() throws IOException {
+            return channel.size();
+        }
+
+        void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    // Expand an event file back into a dense stack
+    static ImagePlus read(final File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.limit(0);
+            if (!fill(channel, buffer, HEADER_BYTES) || buffer.getInt() != MAGIC) throw new IOException(file.getName() + " is not a sparse event file");
+            final int version = buffer.getInt();
+            if (version != VERSION) throw new IOException("Unsupported sparse event file version " + version);
+            final int width = buffer.getInt();
+            final int height = buffer.getInt();
+            final int planes = buffer.getInt();
+            final int bitDepth = buffer.getInt();
+            final HyperstackLayout layout = new HyperstackLayout(buffer.getInt(), buffer.getInt(), buffer.getInt());
+            buffer.getInt(); // Threshold, only informative
+            final int valueBytes = valueBytes(bitDepth);
+
+            final Object[] pixels = new Object[planes];
+            for (int p = 0; p < planes; p++)
+                pixels[p] = bitDepth == 8 ? new byte[width * height] : bitDepth == 16 ? new short[width * height] : new float[width * height];
+
+            final int[] columns = new int[MAX_SEGMENT];
+            while (fill(channel, buffer, RECORD_BYTES) || buffer.hasRemaining()) {
+                if (buffer.remaining() < RECORD_BYTES) throw new IOException(file.getName() + " ends in the middle of a record");
+                final int plane = buffer.getInt();
+                final int base = buffer.getInt();
+                final int count = buffer.getInt();
+                if (plane < 0 || plane >= planes || base < 0 || count < 0 || count > MAX_SEGMENT || base >= (long) width * height)
+                    throw new IOException("Corrupt record in " + file.getName());
+                if (!fill(channel, buffer, count * (2 + valueBytes))) throw new IOException(file.getName() + " ends in the middle of a record");
+
+                for (int i = 0; i < count; i++) columns[i] = buffer.getShort() & 0xffff;
+                if (bitDepth == 8) {
+                    final byte[] target = (byte[]) pixels[plane];
+                    for (int i = 0; i < count; i++) target[base + columns[i]] = buffer.get();
+                } else if (bitDepth == 16) {
+                    final short[] target = (short[]) pixels[plane];
+                    for (int i = 0; i < count; i++) target[base + columns[i]] = buffer.getShort();
+                } else {
+                    final float[] target = (float[]) pixels[plane];
+                    for (int i = 0; i < count; i++) target[base + columns[i]] = buffer.getInt();
+                }
+            }
+
+            final ImageStack stack = new ImageStack(width, height);
+            for (Object plane : pixels) stack.addSlice("", plane);
+            String title = file.getName();
+            if (title.endsWith("." + EXTENSION)) title = title.substring(0, title.length() - 1 - EXTENSION.length());
+            final ImagePlus imp = new ImagePlus(title, stack);
+            layout.apply(imp, planes / layout.series());
+            return imp;
+        }
+    }
+
+    // Make sure bytes bytes can be read from buffer, returns false when the file ends first
+    private static boolean fill(final FileChannel channel, final ByteBuffer buffer, final int bytes) throws IOException {
+        if (buffer.remaining() >= bytes) return true;
+        buffer.compact();
+        while (buffer.position() < bytes) {
+            if (channel.read(buffer) < 0) break;
+        }
+        buffer.flip();
+        return buffer.remaining() >= bytes;
+    }
+}
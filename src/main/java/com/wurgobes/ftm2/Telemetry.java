@@ -0,0 +1,179 @@
+package com.wurgobes.ftm2;
+/* Telemetry of the median loop
+(c) 2026 FTM2 contributors, Hohlbein Lab, Wageningen University
+
+Counters inside the loops of TemporalMedian and MedianHistogram, to see why one dataset runs slower than another of the same size:
+how often the median moves, how far it has to scan over empty histogram entries when it does, how many pixels
+were processed and how long every block of pixels took.
+Every worker thread counts into counters of its own, as OutputStats does these are only added up (and dropped)
+at the end of a run, once the workers are done. FTM2 logs a summary of every run and adds it to the totals,
+which are exposed as the MXBean com.wurgobes.ftm2:type=Telemetry (for JConsole or Mission Control).
+
+Telemetry is only on when ImageJ is started with -Dftm2.telemetry=true. ENABLED is a static final,
+so when it is off the JIT removes every counter from the loops.
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+ */
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.Math.max;
+
+public class Telemetry {
+
+    static final boolean ENABLED = Boolean.getBoolean("ftm2.telemetry");
+
+    // Scan lengths are counted in buckets of powers of two: 0, 1, 2-3, 4-7, ...
+    static final int SCAN_BUCKETS = 32;
+
+    private static final TemporalMedian.PerThread<Counters> all = new TemporalMedian.PerThread<>(Counters::new);
+
+    // The totals of all collected runs, read by the MXBean from any thread
+    private static final LongAdder totalMoves = new LongAdder();
+    private static final LongAdder[] totalScans = new LongAdder[SCAN_BUCKETS];
+    private static final LongAdder totalPixels = new LongAdder();
+    private static final LongAdder totalBlocks = new LongAdder();
+    private static final LongAdder totalBlockNanos = new LongAdder();
+    private static final LongAccumulator totalMaxBlockNanos = new LongAccumulator(Math::max, 0);
+
+    static {
+        for (int i = 0; i < SCAN_BUCKETS; i++) totalScans[i] = new LongAdder();
+    }
+
+    static {
+        if (ENABLED) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), new ObjectName("com.wurgobes.ftm2:type=Telemetry"));
+            } catch (Exception e) {
+                // Counting still works without the bean, the summary is logged
+            }
+        }
+    }
+
+    // The counters of a single thread, only that thread writes to them
+    static final class Counters {
+        private long moves = 0;
+        private final long[] scans = new long[SCAN_BUCKETS];
+        private long pixels = 0;
+        private long blocks = 0;
+        private long blockNanos = 0;
+        private long maxBlockNanos = 0;
+
+        // The median moved to a value length entries away
+        void moved(final int length) {
+            moves++;
+            scans[32 - Integer.numberOfLeadingZeros(Math.abs(length) - 1)]++;
+        }
+
+        // A block of pixels (over all of its frames) took nanos
+        void block(final long blockPixels, final long nanos) {
+            pixels += blockPixels;
+            blocks++;
+            blockNanos += nanos;
+            maxBlockNanos = max(maxBlockNanos, nanos);
+        }
+
+        void add(final Counters other) {
+            moves += other.moves;
+            for (int i = 0; i < SCAN_BUCKETS; i++) scans[i] += other.scans[i];
+            pixels += other.pixels;
+            blocks += other.blocks;
+            blockNanos += other.blockNanos;
+            maxBlockNanos = max(maxBlockNanos, other.maxBlockNanos);
+        }
+    }
+
+    // The counters of the current thread
+    static Counters counters() {
+        return all.get();
+    }
+
+    // The counts of a run, or the totals of all runs
+    static final class Snapshot {
+        final long moves;
+        final long[] scans;
+        final long pixels;
+        final long blocks;
+        final long blockNanos;
+        final long maxBlockNanos;
+
+        private Snapshot(final long moves, final long[] scans, final long pixels, final long blocks, final long blockNanos, final long maxBlockNanos) {
+            this.moves = moves;
+            this.scans = scans;
+            this.pixels = pixels;
+            this.blocks = blocks;
+            this.blockNanos = blockNanos;
+            this.maxBlockNanos = maxBlockNanos;
+        }
+
+        String describe() {
+            final StringBuilder text = new StringBuilder();
+            text.append(String.format("Telemetry: %d pixels in %d blocks, %.2f ns per pixel (over all threads), slowest block %.3f ms%n",
+                    pixels, blocks, pixels == 0 ? 0.0 : (double) blockNanos / pixels, maxBlockNanos / 1e6));
+            text.append(String.format("  the median moved for %.1f%% of the pixels", pixels == 0 ? 0.0 : 100.0 * moves / pixels));
+            if (moves > 0) {
+                text.append(", it scanned over");
+                for (int i = 0; i < SCAN_BUCKETS; i++) {
+                    if (scans[i] == 0) continue;
+                    final long from = i == 0 ? 0 : 1L << (i - 1);
+                    final long to = i == 0 ? 0 : (1L << i) - 1;
+                    text.append(String.format(" %s: %.1f%%", from == to ? "" + from : from + "-" + to, 100.0 * scans[i] / moves));
+                }
+                text.append(" entries");
+            }
+            return text.toString();
+        }
+    }
+
+    // Add up and drop the counters of all threads since the last collect, and add them to the totals.
+    // Called when the workers are done, which makes their plain counters visible to the calling thread
+    static synchronized Snapshot collect() {
+        final Counters run = new Counters();
+        all.drain(run::add);
+        totalMoves.add(run.moves);
+        for (int i = 0; i < SCAN_BUCKETS; i++) totalScans[i].add(run.scans[i]);
+        totalPixels.add(run.pixels);
+        totalBlocks.add(run.blocks);
+        totalBlockNanos.add(run.blockNanos);
+        totalMaxBlockNanos.accumulate(run.maxBlockNanos);
+        return new Snapshot(run.moves, run.scans, run.pixels, run.blocks, run.blockNanos, run.maxBlockNanos);
+    }
+
+    // The totals of all collected runs
+    static Snapshot totals() {
+        final long[] scans = new long[SCAN_BUCKETS];
+        for (int i = 0; i < SCAN_BUCKETS; i++) scans[i] = totalScans[i].sum();
+        return new Snapshot(totalMoves.sum(), scans, totalPixels.sum(), totalBlocks.sum(), totalBlockNanos.sum(), totalMaxBlockNanos.get());
+    }
+
+    // Totals of the runs since ImageJ started, an MXBean interface has to be public
+    public interface TelemetryMXBean {
+        long getMedianMoves();
+        long[] getScanLengths();
+        long getPixels();
+        long getBlocks();
+        long getBlockNanos();
+        long getMaxBlockNanos();
+        double getNanosPerPixel();
+    }
+
+    private static final class Bean implements TelemetryMXBean {
+        public long getMedianMoves() { return totals().moves; }
+        public long[] getScanLengths() { return totals().scans; }
+        public long getPixels() { return totals().pixels; }
+        public long getBlocks() { return totals().blocks; }
+        public long getBlockNanos() { return totals().blockNanos; }
+        public long getMaxBlockNanos() { return totals().maxBlockNanos; }
+        public double getNanosPerPixel() {
+            final Snapshot totals = totals();
+            return totals.pixels == 0 ? 0 : (double) totals.blockNanos / totals.pixels;
+        }
+    }
+}
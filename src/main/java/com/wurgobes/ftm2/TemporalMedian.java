@@ -25,122 +25,681 @@ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
 SOFTWARE.
  */
 
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.Iterator;
-import java.util.concurrent.atomic.DoubleAccumulator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.IntUnaryOperator;
+import java.util.function.Supplier;
 
 import ij.Prefs;
 import net.imglib2.*;
 
-import net.imglib2.converter.Converters;
-
-import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.type.numeric.integer.UnsignedByteType;
-import net.imglib2.type.numeric.integer.UnsignedIntType;
-import net.imglib2.type.numeric.integer.UnsignedShortType;
 
 import static ij.util.ThreadUtil.createThreadArray;
 import static ij.util.ThreadUtil.startAndJoin;
 
+import static java.lang.Math.max;
 import static java.lang.Math.min;
 
 public class TemporalMedian {
 
-    @SuppressWarnings("unchecked")
-    public static  < T extends RealType<T>, U extends IntegerType<U>>  void main(RandomAccessibleInterval<T> img, int window, int bit_depth, final int offset, final int end) {
-		final int windowC = (window + 1) / 2; //This is the Index of the median
-		final int imgw = (int) img.dimension(0); // width of frame
-        final int imgh = (int) img.dimension(1); // height of frame
-        final int pixels = imgw * imgh; // Total amount of pixels
-        final int zSize = min((int) img.dimension(2), end);
-        final int zSteps = zSize - window;
-        final int modifier = (window % 2 == 1 ? 1 : 0);
+    // Bytes of histograms a single thread may use for its block of pixels
+    // This keeps the histograms of a block in L2 for 8 and 16 bit data
+    static final int HISTOGRAM_BUDGET = 1 << 20;
+    static final int MAX_BLOCK_SIZE = 256;
+
+    // Every tile of TILE_WIDTH by TILE_HEIGHT pixels can have a rankmap of its own, blocks never cross a tile column
+    static final int TILE_WIDTH = MAX_BLOCK_SIZE;
+    static final int TILE_HEIGHT = 64;
+    // Tiles with a wider range of values than this always share the rankmap of their series, which bounds the memory of the maps
+    static final int TILE_RANGE = 1 << 14;
+
+    // Gets every corrected row segment together with the background (median) that was subtracted from it
+    // Called from all worker threads at once, but never twice for the same pixel and frame
+    public interface RowListener {
+        void row(int z, int y, int x0, int len, int[] background, int[] corrected);
+
+        // A listener that passes every row on to all listeners that are not null, null when there are none
+        static RowListener of(final RowListener... listeners) {
+            final RowListener[] present = Arrays.stream(listeners).filter(Objects::nonNull).toArray(RowListener[]::new);
+            if (present.length == 0) return null;
+            if (present.length == 1) return present[0];
+            return (z, y, x0, len, background, corrected) -> {
+                for (RowListener listener : present) listener.row(z, y, x0, len, background, corrected);
+            };
+        }
 
-        final int coreCount = Prefs.getThreads();
+        // Passes on only the rows of planes from until to of a call, numbered as output planes z + planeOffset
+        // A call that only covers part of the output (a bracket) sets its window here once, for all of its listeners
+        static RowListener window(final int planeOffset, final int from, final int to, final RowListener... listeners) {
+            final RowListener listener = of(listeners);
+            if (listener == null) return null;
+            return (z, y, x0, len, background, corrected) -> {
+                if (z >= from && z < to) listener.row(z + planeOffset, y, x0, len, background, corrected);
+            };
+        }
+    }
+
+    // A value for every worker thread, such as a histogram or a buffer, so listeners don't share them between threads
+    // The values of all threads are only combined once a call is done
+    static final class PerThread<T> {
+        private final Supplier<T> initial;
+        private final ConcurrentLinkedQueue<T> values = new ConcurrentLinkedQueue<>();
+        private ThreadLocal<T> local;
+
+        PerThread(final Supplier<T> initial) {
+            this.initial = initial;
+            this.local = newLocal();
+        }
 
-        final RandomAccessibleInterval<U> int_img = (RandomAccessibleInterval<U>) img;
+        private ThreadLocal<T> newLocal() {
+            return ThreadLocal.withInitial(() -> {
+                final T value = initial.get();
+                values.add(value);
+                return value;
+            });
+        }
+
+        // The value of the current thread
+        T get() {
+            return local.get();
+        }
+
+        // The values of all threads so far, without taking them
+        Iterable<T> values() {
+            return values;
+        }
+
+        // Hand the values of all threads to consumer and start over
+        // Threads that are reused by a later call then start with a new value
+        void drain(final Consumer<T> consumer) {
+            local = newLocal();
+            for (T value = values.poll(); value != null; value = values.poll()) consumer.accept(value);
+        }
+    }
 
-        // Build the rankmap from the image and use that to convert the original image
+    public static < T extends RealType<T>> void main(RandomAccessibleInterval<T> img, int window, int bit_depth, final int offset, final int end) {
+        main(new PlaneAccess[]{PlaneAccess.of(img)}, window, offset, end, null, null, Prefs.getThreads(), null, null);
+    }
+
+    // Every thread takes a block of pixels from a single row of a series and moves it through time together.
+    // For each frame the row segment is read, ranked, added to the histograms and, window/2 frames behind,
+    // the medians are subtracted from the row segment. Each of these is a bulk stage in PlaneOps.
+    // A hyperstack has a series (channel or position) per element of series, see PlaneAccess.series. Every series gets
+    // its own rankmap and histograms, but all of them are processed at the same time by the same threads.
+    // offset and end are time points, the listener gets the plane in the stack.
+    // The workers run on the executor when one is given, otherwise on new threads.
+    // given rankmaps are used instead of building them, when they are not null, see RankScan.
+    // With a controller the thread count and block size are tuned while the rows are processed, see AdaptiveController
+    static void main(final PlaneAccess[] series, final int window, final int offset, final int end, final RowListener listener,
+                     final ExecutorService executor, final int coreCount, final TileMaps[] given, final AdaptiveController controller) {
+        final int imgw = series[0].width; // width of frame
+        final int imgh = series[0].height; // height of frame
+        final int zSize = min(series[0].depth, end);
+
+        // Build the rankmap of every series and use that to convert the original image
         // This compacts the image and reduces the memory footprint required.
         // This effectively removes all zero values from the histogram
-        final RankMap rankmap = RankMap.build((IterableInterval<U>) int_img);
-        final RandomAccessibleInterval<U> ranked;
+        final TileMaps[] rankmaps = given != null ? given : buildRankMaps(series, offset, zSize, executor, coreCount);
 
+        // Every tile gets blocks that fit the histograms of its own ranks
+        final int[][] blockSize = new int[series.length][];
+        for (int s = 0; s < series.length; s++) blockSize[s] = rankmaps[s].perTile(maxRank -> blockSize(window, maxRank, imgw));
+
+        // Rows are counted over all series, row g is row g % imgh of series g / imgh
+        final long rows = (long) series.length * imgh;
+        if (controller == null) {
+            rows(series, window, offset, zSize, listener, executor, coreCount, rankmaps, blockSize, 0, rows);
+            return;
+        }
 
-        switch(bit_depth){
-            case 16:
-                ranked = (RandomAccessibleInterval<U>) Converters.convert(int_img, rankmap::toRanked, new UnsignedShortType());
-                break;
-            case 8:
-                ranked = (RandomAccessibleInterval<U>) Converters.convert(int_img, rankmap::toRanked, new UnsignedByteType());
-                break;
-            default:
-                ranked = (RandomAccessibleInterval<U>) Converters.convert(int_img, rankmap::toRanked, new UnsignedIntType());
+        // The controller decides the threads and block size of every chunk of rows, the first chunks are its trials
+        // It tunes the block size of the tiles with the most ranks, the blocks of all other tiles are scaled the same
+        final int limit = min(TILE_WIDTH, imgw);
+        final int reference = blockSize(window, rankmaps[0].maxRank, imgw);
+        final int[][] scaled = new int[series.length][];
+        for (long g = 0; g < rows; ) {
+            final AdaptiveController.Setting setting = controller.next(rows - g, rows, reference, limit, imgw);
+            for (int s = 0; s < series.length; s++) {
+                scaled[s] = new int[blockSize[s].length];
+                for (int t = 0; t < blockSize[s].length; t++) scaled[s][t] = AdaptiveController.scale(blockSize[s][t], setting.shift, limit);
+            }
+            final long chunk = min(setting.rows, rows - g);
+            final long time = System.nanoTime();
+            rows(series, window, offset, zSize, listener, executor, min(coreCount, setting.threads), rankmaps, scaled, g, g + chunk);
+            controller.measured(setting, chunk * imgw * (zSize - offset), System.nanoTime() - time, AdaptiveController.scale(reference, setting.shift, limit));
+            g += chunk;
         }
+    }
+
+    // Process rows from until to, counted over all series, with blocks of blockSize[s][t] pixels in tile t of series s
+    private static void rows(final PlaneAccess[] series, final int window, final int offset, final int zSize, final RowListener listener,
+                             final ExecutorService executor, final int coreCount, final TileMaps[] rankmaps, final int[][] blockSize,
+                             final long from, final long to) {
+		final int windowC = (window + 1) / 2; //This is the Index of the median
+		final int imgw = series[0].width; // width of frame
+        final int imgh = series[0].height; // height of frame
+        final int zSteps = zSize - offset - window;
+        final int modifier = (window % 2 == 1 ? 1 : 0);
 
+        final Blocks layout = new Blocks(imgw, imgh, blockSize, from, to);
+        final long blocks = layout.count();
+        final int bufferSize = layout.maxSize();
 
-        final AtomicInteger ai = new AtomicInteger(0); //Atomic Integer is a thread safe incremental integer
-        final Thread[] threads = createThreadArray(coreCount); //Get maximum of threads
+        final AtomicLong ai = new AtomicLong(0); //Atomic Long is a thread safe incremental long
         //Set the run function for each thread
-		for (int ithread = 0; ithread < threads.length; ithread++) {
-            threads[ithread] = new Thread(() -> {
+        parallel(executor, coreCount, () -> {
+
+                // One histogram per pixel in the block, sized for the ranks of its tile. They are reused for every
+                // next block with the same ranks, which are all tiles that share the rankmap of their series
+                MedianHistogram[] median = new MedianHistogram[0];
+                int ranks = -1;
+
+                final int[] values = new int[bufferSize]; // ranked values read by the front
+                final int[] medians = new int[bufferSize]; // current medians of the block
+                final int[] row = new int[bufferSize]; // values read and written by the back
+                final Telemetry.Counters counters = Telemetry.ENABLED ? Telemetry.counters() : null;
+
+                int t = 0;
+                for (long b = ai.getAndIncrement(); b < blocks; b = ai.getAndIncrement()) { //get unique block
+                    t = layout.tile(b, t);
+                    final int s = layout.series(t);
+                    final PlaneAccess planes = series[s];
+                    final int y = layout.y(b, t);
+                    final int x0 = layout.x0(b, t);
+                    final int len = layout.length(b, t);
+                    final RankMap rankmap = rankmaps[s].at(x0, y);
+                    if (rankmap.getMaxRank() != ranks || median.length < len) {
+                        ranks = rankmap.getMaxRank();
+                        median = new MedianHistogram[layout.size(t)];
+                        for (int i = 0; i < median.length; i++) median[i] = MedianHistogram.of(window, ranks);
+                    }
+                    final long blockStart = Telemetry.ENABLED ? System.nanoTime() : 0;
 
-                // Get the RandomAccess, twice for the same image
-                final RandomAccess<U> front = ranked.randomAccess(); // front is used to read new values
-                final RandomAccess<U> back = (RandomAccess<U>) img.randomAccess(); // back is used to set the median corrected values
-                final MedianHistogram median = new MedianHistogram(window, rankmap.getMaxRank());
-                for (int j = ai.getAndIncrement(); j < pixels; j = ai.getAndIncrement()) { //get unique i
+                    int front = offset; // front is used to read new values
+                    int back = offset; // back is used to set the median corrected values
 
-                    final int[] pos = { j % imgw, j / imgw, offset }; //Get position based on j
-                    front.setPosition(pos); // Set the starting position for the front
-                    back.setPosition(pos); // Set the starting position for the back
+                    // read the first window ranked rows into the median filters
+                    for (int i = 0; i < window; i++)
+                        addFrame(planes, rankmap, median, front++, y, x0, len, values);
 
-                    // read the first window ranked pixels into median filter
+                    readMedians(rankmap, median, len, medians); // The median won't change so we read it once
 
-                    for (int i = 0; i < window; i++) {
-                        // Get the next value and add it to the median object or the startingvalues
-                        median.add(front.get().getInteger());
-                        front.fwd(2); // Move the front one forward in the z dimension to the next slice
+                    // write current median for windowC+1 frames
+                    for (int i = 0; i < windowC; i++)
+                        subtractFrame(planes, back++, y, x0, len, medians, row, listener);
+
+                    for (int i = 0; i < zSteps; i++) {
+                        addFrame(planes, rankmap, median, front++, y, x0, len, values);
+                        readMedians(rankmap, median, len, medians);
+                        subtractFrame(planes, back++, y, x0, len, medians, row, listener);
                     }
 
-                    int temp_median = rankmap.fromRanked(median.get()); // The median won't change so we read it once
+                    readMedians(rankmap, median, len, medians);
+                    // write current median for windowC frames
+                    for (int i = 0; i < windowC - modifier; i++)
+                        subtractFrame(planes, back++, y, x0, len, medians, row, listener);
 
-                    // write current median for windowC+1 pixels
-                    for (int i = 0; i < windowC; i++) {
-                        final U t = back.get(); // Get the reference to the back's pixel
-                        t.setInteger(Math.max(t.getInteger() - temp_median, 0)); // Set the back's value, median adjusted
+                    if (Telemetry.ENABLED) counters.block((long) len * (zSize - offset), System.nanoTime() - blockStart);
+                }
+
+        }); // Runs the actual processing
+	}
 
-                        back.fwd(2); // Move the back one forward in the z dimension to the next slice
+    // Sweep over several windows in a single pass. The input is only read, every window gets its own output,
+    // in which plane 0 is time point offset of the input. Every pixel has a histogram per window,
+    // so each frame is read and ranked once and then added to all of them.
+    static void sweep(final PlaneAccess planes, final int series, final PlaneAccess[] outputs, final int[] windows, final int offset, final int end,
+                      final TileMaps[] rankmaps) {
+        final PlaneAccess[][] outputSeries = new PlaneAccess[windows.length][];
+        for (int k = 0; k < windows.length; k++) outputSeries[k] = PlaneAccess.series(outputs[k], series);
+        sweep(PlaneAccess.series(planes, series), outputSeries, windows, offset, end, null, Prefs.getThreads(), rankmaps);
+    }
+
+    static void sweep(final PlaneAccess[] series, final PlaneAccess[][] outputs, final int[] windows, final int offset, final int end,
+                      final ExecutorService executor, final int coreCount, final TileMaps[] given) {
+        final int sweeps = windows.length;
+        final int imgw = series[0].width;
+        final int imgh = series[0].height;
+        final int zSize = min(series[0].depth, end);
+        final int frames = zSize - offset;
+
+        final TileMaps[] rankmaps = given != null ? given : buildRankMaps(series, offset, zSize, executor, coreCount);
+
+        // Every pixel now has a histogram per window, so a block holds fewer pixels to stay in the same budget
+        final int[][] blockSize = new int[series.length][];
+        for (int s = 0; s < series.length; s++)
+            blockSize[s] = rankmaps[s].perTile(maxRank -> max(1, blockSize(windows[sweeps - 1], maxRank, imgw) / sweeps));
+        final Blocks layout = new Blocks(imgw, imgh, blockSize, 0, (long) series.length * imgh);
+        final long blocks = layout.count();
+        final int bufferSize = layout.maxSize();
+
+        final AtomicLong ai = new AtomicLong(0);
+        parallel(executor, coreCount, () -> {
+
+                // As in rows, sized for the ranks of the tile and kept while the ranks stay the same
+                MedianHistogram[][] histograms = new MedianHistogram[sweeps][0];
+                int ranks = -1;
+
+                final int[] values = new int[bufferSize];
+                final int[] medians = new int[bufferSize];
+                final int[] row = new int[bufferSize];
+                final int[] back = new int[sweeps]; // Every window writes its own frames
+                final Telemetry.Counters counters = Telemetry.ENABLED ? Telemetry.counters() : null;
+
+                int t = 0;
+                for (long b = ai.getAndIncrement(); b < blocks; b = ai.getAndIncrement()) {
+                    t = layout.tile(b, t);
+                    final int s = layout.series(t);
+                    final PlaneAccess planes = series[s];
+                    final int y = layout.y(b, t);
+                    final int x0 = layout.x0(b, t);
+                    final int len = layout.length(b, t);
+                    final RankMap rankmap = rankmaps[s].at(x0, y);
+                    if (rankmap.getMaxRank() != ranks || histograms[0].length < len) {
+                        ranks = rankmap.getMaxRank();
+                        histograms = new MedianHistogram[sweeps][layout.size(t)];
+                        for (int k = 0; k < sweeps; k++)
+                            for (int i = 0; i < histograms[k].length; i++) histograms[k][i] = MedianHistogram.of(windows[k], ranks);
+                    }
+                    final long blockStart = Telemetry.ENABLED ? System.nanoTime() : 0;
+
+                    for (int k = 0; k < sweeps; k++) back[k] = offset;
+
+                    for (int f = 0; f < frames; f++) {
+                        planes.readRow(offset + f, y, x0, len, values);
+                        rankmap.toRanked(values, len);
+                        for (int k = 0; k < sweeps; k++) {
+                            final MedianHistogram[] median = histograms[k];
+                            for (int i = 0; i < len; i++)
+                                median[i].add(values[i]);
+
+                            // The first window frames all get the first median, after that one frame per added frame
+                            final int window = windows[k];
+                            if (f + 1 < window) continue;
+                            readMedians(rankmap, median, len, medians);
+                            final int count = f + 1 == window ? (window + 1) / 2 : 1;
+                            for (int i = 0; i < count; i++)
+                                subtractFrame(planes, outputs[k][s], offset, back[k]++, y, x0, len, medians, row);
+                        }
                     }
 
+                    // The last frames all get the last median
+                    for (int k = 0; k < sweeps; k++) {
+                        readMedians(rankmap, histograms[k], len, medians);
+                        final int count = (windows[k] + 1) / 2 - (windows[k] % 2 == 1 ? 1 : 0);
+                        for (int i = 0; i < count; i++)
+                            subtractFrame(planes, outputs[k][s], offset, back[k]++, y, x0, len, medians, row);
+                    }
 
-                    for (int i = 0; i < zSteps; i++) {
-                        median.add(front.get().getInteger());
-                        front.fwd(2); // Move the front one forward in the 2nd dimension to the next slice
-                        final U t = back.get(); // Get the reference to the back's pixel
-                        t.setInteger(Math.max(t.getInteger() - rankmap.fromRanked( median.get()), 0)); // Set the back's value, median adjusted
-                        back.fwd(2); // Move the front one forward in the z dimension to the next slice
+                    // Every pixel goes through a histogram per window
+                    if (Telemetry.ENABLED) counters.block((long) len * frames * sweeps, System.nanoTime() - blockStart);
+                }
+        });
+    }
+
+    // The rankmaps of every tile of every series. Every tile is scanned for its range first, then for the values it holds.
+    // Both passes run over all tiles of all series in parallel
+    private static TileMaps[] buildRankMaps(final PlaneAccess[] series, final int zFrom, final int zTo, final ExecutorService executor, final int coreCount) {
+        final int w = series[0].width;
+        final int h = series[0].height;
+        final int columns = (w + TILE_WIDTH - 1) / TILE_WIDTH;
+        final int tiles = columns * ((h + TILE_HEIGHT - 1) / TILE_HEIGHT);
+        final int count = series.length * tiles;
+
+        final int[] tileMin = new int[count];
+        final int[] tileMax = new int[count];
+        final AtomicLong ti = new AtomicLong(0);
+        parallel(executor, min(coreCount, count), () -> {
+            final int[] row = new int[TILE_WIDTH];
+            for (int t = (int) ti.getAndIncrement(); t < count; t = (int) ti.getAndIncrement()) {
+                int lo = Integer.MAX_VALUE;
+                int hi = 0;
+                final PlaneAccess planes = series[t / tiles];
+                final int x0 = (t % tiles) % columns * TILE_WIDTH;
+                final int y0 = (t % tiles) / columns * TILE_HEIGHT;
+                final int len = min(TILE_WIDTH, w - x0);
+                for (int z = zFrom; z < zTo; z++) {
+                    for (int y = y0; y < min(h, y0 + TILE_HEIGHT); y++) {
+                        planes.readRow(z, y, x0, len, row);
+                        for (int i = 0; i < len; i++) {
+                            lo = min(lo, row[i]);
+                            hi = max(hi, row[i]);
+                        }
+                    }
+                }
+                tileMin[t] = lo;
+                tileMax[t] = hi;
+            }
+        });
+
+        // Every series marks the values of all of its tiles, a narrow tile also marks its own values
+        final boolean[][] present = new boolean[series.length][];
+        for (int s = 0; s < series.length; s++) {
+            int max = 0;
+            for (int t = s * tiles; t < (s + 1) * tiles; t++) max = max(max, tileMax[t]);
+            present[s] = new boolean[RankMap.mapSize(series[s].bitDepth(), max)];
+        }
+        final RankMap[] narrow = new RankMap[count];
+        ti.set(0);
+        parallel(executor, min(coreCount, count), () -> {
+            final int[] row = new int[TILE_WIDTH];
+            final boolean[] local = new boolean[TILE_RANGE];
+            for (int t = (int) ti.getAndIncrement(); t < count; t = (int) ti.getAndIncrement()) {
+                final boolean[] all = present[t / tiles];
+                final PlaneAccess planes = series[t / tiles];
+                final int x0 = (t % tiles) % columns * TILE_WIDTH;
+                final int y0 = (t % tiles) / columns * TILE_HEIGHT;
+                final int len = min(TILE_WIDTH, w - x0);
+                final int lo = tileMin[t];
+                final boolean own = tileMax[t] - lo < TILE_RANGE;
+                if (own) Arrays.fill(local, 0, tileMax[t] - lo + 1, false);
+                for (int z = zFrom; z < zTo; z++) {
+                    for (int y = y0; y < min(h, y0 + TILE_HEIGHT); y++) {
+                        planes.readRow(z, y, x0, len, row);
+                        for (int i = 0; i < len; i++) {
+                            all[row[i]] = true; // Only ever set to true, so threads can share it
+                            if (own) local[row[i] - lo] = true;
+                        }
                     }
+                }
+                if (own) narrow[t] = RankMap.of(local, tileMax[t] - lo + 1, lo);
+            }
+        });
+
+        final TileMaps[] maps = new TileMaps[series.length];
+        for (int s = 0; s < series.length; s++)
+            maps[s] = tileMaps(columns, RankMap.of(present[s], present[s].length, 0), Arrays.copyOfRange(narrow, s * tiles, (s + 1) * tiles));
+        return maps;
+    }
+
+    // A tile only keeps a map of its own when it has far fewer ranks than its series
+    private static TileMaps tileMaps(final int columns, final RankMap whole, final RankMap[] narrow) {
+        final RankMap[] tileMaps = new RankMap[narrow.length];
+        int maxRank = 0;
+        for (int t = 0; t < narrow.length; t++) {
+            tileMaps[t] = narrow[t] != null && narrow[t].getMaxRank() < whole.getMaxRank() / 2 ? narrow[t] : whole;
+            maxRank = max(maxRank, tileMaps[t].getMaxRank());
+        }
+        return new TileMaps(columns, tileMaps, maxRank);
+    }
+
+    // Run count copies of a worker and wait for all of them. Workers take their work from a shared counter,
+    // so the calling thread runs one of them itself, and copies the executor did not start yet are cancelled once
+    // it is done. That way a job never waits on an executor that is busy with other jobs.
+    static void parallel(final ExecutorService executor, final int count, final Runnable worker) {
+        if (executor == null) {
+            final Thread[] threads = createThreadArray(count);
+            for (int ithread = 0; ithread < threads.length; ithread++) threads[ithread] = new Thread(worker);
+            startAndJoin(threads);
+            return;
+        }
+
+        // Every copy is claimed once, either by the executor when it starts it or by the caller when it never did
+        final AtomicBoolean[] claimed = new AtomicBoolean[count - 1];
+        final CountDownLatch done = new CountDownLatch(count - 1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < count - 1; i++) {
+            final AtomicBoolean claim = claimed[i] = new AtomicBoolean(false);
+            futures.add(executor.submit(() -> {
+                if (!claim.compareAndSet(false, true)) return;
+                try {
+                    worker.run();
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    done.countDown();
+                }
+            }));
+        }
+        worker.run();
+        for (int i = 0; i < count - 1; i++) {
+            if (claimed[i].compareAndSet(false, true)) {
+                futures.get(i).cancel(false);
+                done.countDown();
+            }
+        }
+
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        final Throwable t = failure.get();
+        if (t instanceof RuntimeException) throw (RuntimeException) t;
+        if (t instanceof Error) throw (Error) t;
+    }
 
-                    temp_median = rankmap.fromRanked(median.get());
-                    // write current median for windowC pixels
-                    for (int i = 0; i < windowC - modifier; i++) {
-                        final U t = back.get(); // Get the reference to the back's pixel
-                        t.setInteger(Math.max(t.getInteger() - temp_median, 0)); // Set the back's value, median adjusted
-                        back.fwd(2); // Move the back one forward in the 2nd dimension to the next slice
+    // As many pixels per block as fit in the histogram budget, but at least 1
+    static int blockSize(final int window, final int maxRank, final int imgw) {
+        final long histogramBytes = MedianHistogram.bytes(window, maxRank);
+        return (int) max(1, min(min(MAX_BLOCK_SIZE, imgw), HISTOGRAM_BUDGET / histogramBytes));
+    }
+
+    // Numbers the blocks of the rows from until to, counted over all series, so threads can take them one by one
+    // The blocks go tile by tile, so the threads mostly work on the same tile and keep histograms sized for its ranks
+    // A block is at most blockSize[s][t] pixels of one row of tile t of series s, tiles are numbered as in TileMaps
+    // The number of blocks is a long, since with single pixel blocks it is the amount of pixels in a frame
+    static final class Blocks {
+        // Of every tile in the rows from until to
+        private final int[] series;
+        private final int[] y0; // The first of its rows in the range
+        private final int[] x0;
+        private final int[] width;
+        private final int[] size; // Pixels in a block
+        private final int[] perRow; // Blocks in a row, the last one may be shorter
+        private final long[] first; // The first block of every tile, followed by the total
+
+        Blocks(final int width, final int height, final int[][] blockSize, final long from, final long to) {
+            final int columns = (width + TILE_WIDTH - 1) / TILE_WIDTH;
+            int tiles = 0;
+            for (int s = 0; s < blockSize.length; s++) {
+                final long start = max(from, (long) s * height) - (long) s * height;
+                final long stop = min(to, (long) (s + 1) * height) - (long) s * height;
+                if (start < stop) tiles += columns * (int) ((stop - 1) / TILE_HEIGHT - start / TILE_HEIGHT + 1);
+            }
+            this.series = new int[tiles];
+            this.y0 = new int[tiles];
+            this.x0 = new int[tiles];
+            this.width = new int[tiles];
+            this.size = new int[tiles];
+            this.perRow = new int[tiles];
+            this.first = new long[tiles + 1];
+
+            int t = 0;
+            for (int s = 0; s < blockSize.length; s++) {
+                final int start = (int) (max(from, (long) s * height) - (long) s * height);
+                final int stop = (int) (min(to, (long) (s + 1) * height) - (long) s * height);
+                for (int band = start / TILE_HEIGHT; start < stop && band <= (stop - 1) / TILE_HEIGHT; band++) {
+                    final int rows = min(stop, (band + 1) * TILE_HEIGHT) - max(start, band * TILE_HEIGHT);
+                    for (int c = 0; c < columns; c++, t++) {
+                        series[t] = s;
+                        y0[t] = max(start, band * TILE_HEIGHT);
+                        x0[t] = c * TILE_WIDTH;
+                        this.width[t] = min(TILE_WIDTH, width - x0[t]);
+                        size[t] = blockSize[s][band * columns + c];
+                        perRow[t] = (this.width[t] + size[t] - 1) / size[t];
+                        first[t + 1] = first[t] + (long) perRow[t] * rows;
                     }
+                }
+            }
+        }
+
+        long count() {
+            return first[first.length - 1];
+        }
+
+        // The tile of block b, blocks are handed out in order so the search starts at the tile t of an earlier one
+        int tile(final long b, int t) {
+            while (b >= first[t + 1]) t++;
+            return t;
+        }
+
+        int series(final int t) {
+            return series[t];
+        }
+
+        int size(final int t) {
+            return size[t];
+        }
+
+        // The largest block of any tile
+        int maxSize() {
+            return Arrays.stream(size).max().orElse(1);
+        }
+
+        int y(final long b, final int t) {
+            return y0[t] + (int) ((b - first[t]) / perRow[t]);
+        }
+
+        int x0(final long b, final int t) {
+            return x0[t] + (int) ((b - first[t]) % perRow[t]) * size[t];
+        }
+
+        int length(final long b, final int t) {
+            return min(size[t], x0[t] + width[t] - x0(b, t));
+        }
+    }
+
+    // Read a row segment of frame z, rank it and add it to the histograms
+    private static void addFrame(final PlaneAccess planes, final RankMap rankmap, final MedianHistogram[] median,
+                                 final int z, final int y, final int x0, final int len, final int[] values) {
+        planes.readRow(z, y, x0, len, values);
+        rankmap.toRanked(values, len);
+        for (int i = 0; i < len; i++)
+            median[i].add(values[i]);
+    }
+
+    // Get the medians of all histograms, converted back to input values
+    private static void readMedians(final RankMap rankmap, final MedianHistogram[] median, final int len, final int[] medians) {
+        for (int i = 0; i < len; i++)
+            medians[i] = median[i].get();
+        rankmap.fromRanked(medians, len);
+    }
+
+    // Subtract the medians from a row segment of frame z, clamping at 0
+    private static void subtractFrame(final PlaneAccess planes, final int z, final int y, final int x0, final int len,
+                                      final int[] medians, final int[] row, final RowListener listener) {
+        planes.readRow(z, y, x0, len, row);
+        PlaneOps.subtractClamp(row, medians, len);
+        planes.writeRow(z, y, x0, len, row);
+        if (listener != null) listener.row(planes.stackPlane(z), y, x0, len, medians, row);
+    }
+
+
+    // Subtract the medians from a row segment of frame z and write it to plane z - offset of the output
+    private static void subtractFrame(final PlaneAccess planes, final PlaneAccess output, final int offset, final int z, final int y, final int x0, final int len,
+                                      final int[] medians, final int[] row) {
+        planes.readRow(z, y, x0, len, row);
+        PlaneOps.subtractClamp(row, medians, len);
+        output.writeRow(z - offset, y, x0, len, row);
+    }
+
+
+    // The rankmaps of the tiles of a series, and the largest rank in any of them. The histograms of a tile are sized by its own map
+    static final class TileMaps {
+        final int columns; // Tiles per row of tiles
+        final RankMap[] maps;
+        final int maxRank;
+
+        TileMaps(final int columns, final RankMap[] maps, final int maxRank) {
+            this.columns = columns;
+            this.maps = maps;
+            this.maxRank = maxRank;
+        }
 
+        RankMap at(final int x, final int y) {
+            return maps[(y / TILE_HEIGHT) * columns + x / TILE_WIDTH];
+        }
+
+        // A value for every tile from the highest rank of its map, such as the size of its blocks
+        int[] perTile(final IntUnaryOperator ofMaxRank) {
+            final int[] values = new int[maps.length];
+            for (int t = 0; t < maps.length; t++) values[t] = ofMaxRank.applyAsInt(maps[t].getMaxRank());
+            return values;
+        }
+    }
 
+    // The values of every tile of every series, collected plane by plane before any of them is processed,
+    // so calls that each process part of the frames, like the brackets in FTM2, can share the same rankmaps.
+    // Every thread fills a scan of its own, these are merged before the maps are built.
+    // Only 8 and 16 bit data, 32 bit data is converted per call so its values are not known up front
+    static final class RankScan {
+        private final int width;
+        private final int height;
+        private final int columns;
+        private final int tiles;
+        private final int size; // Values a plane can hold
+        private final long[][] present; // Bit v of present[s * tiles + t] marks value v in tile t of series s
+        private final int[] row;
+
+        RankScan(final int series, final int width, final int height, final int bitDepth) {
+            if (bitDepth == 32) throw new IllegalArgumentException("32 bit data can't be scanned up front");
+            this.width = width;
+            this.height = height;
+            this.columns = (width + TILE_WIDTH - 1) / TILE_WIDTH;
+            this.tiles = columns * ((height + TILE_HEIGHT - 1) / TILE_HEIGHT);
+            this.size = RankMap.mapSize(bitDepth, 0);
+            this.present = new long[series * tiles][size / 64];
+            this.row = new int[width];
+        }
 
+        // Mark the values of plane z of planes, which is a plane of series s
+        void add(final int s, final PlaneAccess planes, final int z) {
+            for (int y = 0; y < height; y++) {
+                planes.readRow(z, y, 0, width, row);
+                final int first = s * tiles + (y / TILE_HEIGHT) * columns;
+                for (int c = 0; c < columns; c++) {
+                    final long[] bits = present[first + c];
+                    for (int x = c * TILE_WIDTH; x < min(width, (c + 1) * TILE_WIDTH); x++) bits[row[x] >>> 6] |= 1L << row[x];
                 }
+            }
+        }
 
-            }); //end of thread creation
-		}
-		// Start actual processing
-        startAndJoin(threads);
-	}
+        void merge(final RankScan other) {
+            for (int t = 0; t < present.length; t++)
+                for (int i = 0; i < present[t].length; i++) present[t][i] |= other.present[t][i];
+        }
 
+        // The same maps buildRankMaps gives for the scanned planes
+        TileMaps[] build() {
+            final TileMaps[] maps = new TileMaps[present.length / tiles];
+            final boolean[] all = new boolean[size];
+            final boolean[] local = new boolean[TILE_RANGE];
+            for (int s = 0; s < maps.length; s++) {
+                Arrays.fill(all, false);
+                final RankMap[] narrow = new RankMap[tiles];
+                for (int t = 0; t < tiles; t++) {
+                    final long[] bits = present[s * tiles + t];
+                    int lo = -1;
+                    int hi = 0;
+                    for (int v = 0; v < size; v++) {
+                        if ((bits[v >>> 6] & 1L << v) == 0) continue;
+                        all[v] = true;
+                        if (lo < 0) lo = v;
+                        hi = v;
+                    }
+                    if (lo < 0 || hi - lo >= TILE_RANGE) continue;
+                    for (int v = lo; v <= hi; v++) local[v - lo] = (bits[v >>> 6] & 1L << v) != 0;
+                    narrow[t] = RankMap.of(local, hi - lo + 1, lo);
+                }
+                maps[s] = tileMaps(columns, RankMap.of(all, size, 0), narrow);
+            }
+            return maps;
+        }
+    }
 
     static class  RankMap
     {
@@ -149,68 +708,52 @@ public class TemporalMedian {
         private final int[] inputToRanked;
         private final int[] rankedToInput;
 
-        private static int maxRank; // Maximum value in the input
+        private final int maxRank; // Maximum value in the input
+        private final int offset; // The input value inputToRanked starts at, only tiles have one
 
         final static int U32_SIZE = 16_777_216;
 
         // Simple Constructor for Rankmap, dont call this, but call build()
-        public RankMap(final int[] inputToRanked, final int[] rankedToInput) {
+        public RankMap(final int[] inputToRanked, final int[] rankedToInput, final int maxRank) {
+            this(inputToRanked, rankedToInput, maxRank, 0);
+        }
+
+        private RankMap(final int[] inputToRanked, final int[] rankedToInput, final int maxRank, final int offset) {
             this.inputToRanked = inputToRanked;
             this.rankedToInput = rankedToInput;
+            this.maxRank = maxRank;
+            this.offset = offset;
         }
 
-        // This is the real constructor
-        // It is only called once per thread
-        public static < U extends IntegerType<U>>  RankMap build(final IterableInterval<U> input)
-        {
+        // The size of a map for data of bitDepth, 32b data only needs to hold values until max
+        static int mapSize(final int bitDepth, final int max) {
             // this denotes the maximum unique values
             // It will never be this high, but better be safe
             final int U8_SIZE = 256;
             final int U16_SIZE = 65536;
 
-            final int mapSize;
-
-            final boolean[] inihist;
-
-            // Set mapSize to what bit-depth you have
-            if (input.firstElement().getBitsPerPixel() == 8) {
-                mapSize = U8_SIZE;
-
-            } else if (input.firstElement().getBitsPerPixel() == 32) {
-                mapSize = min((int) computeMinMax(input.iterator()) + 1, U32_SIZE + 1);
-
-            } else {
-                mapSize = U16_SIZE;
-            }
-            inihist= new boolean[mapSize];
-            input.forEach(t -> inihist[t.getInteger()] = true);
-
+            if (bitDepth == 8) return U8_SIZE;
+            if (bitDepth == 32) return min(max + 1, U32_SIZE + 1);
+            return U16_SIZE;
+        }
 
-            final int[] inputToRanked = new int[ mapSize ];
-            final int[] rankedToInput = new int[ mapSize ];
+        // Create a map between all values that are present and their rank
+        // This effectively concatenates it all, present[i] marks value offset + i
+        // The maxRank is the rank of the maximum value
+        static RankMap of(final boolean[] present, final int size, final int offset) {
+            final int[] inputToRanked = new int[ size ];
+            final int[] ranks = new int[ size ];
 
-            // Create a map between all values and them ranked
-            // This effectively concatenates it all
-            // The maxRank is the maximum value in the entire image
             int r = 0;
-            for ( int i = 0; i < inihist.length; ++i ) {
-                if ( inihist[ i ] ) {
-                    rankedToInput[r] =  i;
-                    inputToRanked[i] =  r;
+            for ( int i = 0; i < size; ++i ) {
+                if ( present[ i ] ) {
+                    ranks[r] = offset + i;
+                    inputToRanked[i] = r;
                     ++r;
                 }
             }
 
-            maxRank = r - 1;
-
-            return new RankMap(inputToRanked, rankedToInput);
-        }
-
-        private static < U extends IntegerType<U>> double computeMinMax(Iterator<U> iterator) {
-            DoubleAccumulator max = new DoubleAccumulator(Double::max, Double.NEGATIVE_INFINITY);
-
-            iterator.forEachRemaining(t -> max.accumulate(t.getInteger()));
-            return max.get();
+            return new RankMap(inputToRanked, Arrays.copyOf(ranks, max(r, 1)), max(r - 1, 0), offset);
         }
 
         public int fromRanked(final int in) {
@@ -221,20 +764,15 @@ public class TemporalMedian {
             return maxRank;
         }
 
-
-        public <U extends IntegerType<U>> void toRanked(final U in, final UnsignedIntType out) {
-            out.setInteger(inputToRanked[in.getInteger()]);
-        }
-
-        public <U extends IntegerType<U>> void toRanked(final U in, final UnsignedShortType out) {
-            out.setInteger(inputToRanked[in.getInteger()]);
+        // Bulk versions, these convert the first len values in place
+        void toRanked(final int[] values, final int len) {
+            if (offset == 0) PlaneOps.lookup(values, len, inputToRanked);
+            else PlaneOps.lookup(values, len, inputToRanked, offset);
         }
 
-        public <U extends IntegerType<U>> void toRanked(final U in, final UnsignedByteType out) {
-            out.setInteger(inputToRanked[in.getInteger()]);
+        void fromRanked(final int[] ranks, final int len) {
+            PlaneOps.lookup(ranks, len, rankedToInput);
         }
 
-
-
     }
 }
\ No newline at end of file
@@ -0,0 +1,105 @@
+package com.wurgobes.ftm2;
+/* Temporal median filter API
+(c) 2026 FTM2 contributors, Hohlbein Lab, Wageningen University
+
+The filter without the plugin around it, for use from other code.
+All settings are in an Options object and the filter keeps no state between runs,
+so any number of filters can run at the same time in one JVM.
+The workers run on an ExecutorService given by the caller, or on new threads when none is given.
+A run takes the calling thread as one of its workers, so jobs that are themselves submitted to the same executor
+can't deadlock it.
+
+Example:
+    new TemporalMedianFilter(new TemporalMedianFilter.Options().window(25).executor(pool)).run(img);
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+ */
+
+import ij.Prefs;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+
+import java.util.concurrent.ExecutorService;
+
+public class TemporalMedianFilter {
+
+    public static class Options {
+        private int window = 50;
+        private int start = 0; // First time point, 0-based
+        private int end = Integer.MAX_VALUE; // Time point after the last one
+        private int series = 1;
+        private int threads = 0; // 0 means Prefs.getThreads()
+        private ExecutorService executor = null;
+
+        public Options window(final int window) {
+            this.window = window;
+            return this;
+        }
+
+        // Only correct the time points from start until end
+        public Options range(final int start, final int end) {
+            this.start = start;
+            this.end = end;
+            return this;
+        }
+
+        // Planes per time point, for the channels and positions of a hyperstack
+        public Options series(final int series) {
+            this.series = series;
+            return this;
+        }
+
+        // The number of workers, which is also the number of tasks submitted to the executor
+        public Options threads(final int threads) {
+            this.threads = threads;
+            return this;
+        }
+
+        public Options executor(final ExecutorService executor) {
+            this.executor = executor;
+            return this;
+        }
+    }
+
+    private final int window;
+    private final int start;
+    private final int end;
+    private final int series;
+    private final int threads;
+    private final ExecutorService executor;
+
+    public TemporalMedianFilter(final Options options) {
+        if (options.window < 1) throw new IllegalArgumentException("Window must be at least 1");
+        if (options.series < 1) throw new IllegalArgumentException("Series must be at least 1");
+        if (options.start < 0 || options.end <= options.start) throw new IllegalArgumentException("Range must be 0 <= start < end");
+        this.window = options.window;
+        this.start = options.start;
+        this.end = options.end;
+        this.series = options.series;
+        this.threads = options.threads > 0 ? options.threads : Prefs.getThreads();
+        this.executor = options.executor;
+    }
+
+    // Correct img in place. The image is x, y and then time (or time, channel and so on for a hyperstack)
+    // and holds whole numbers of at most 32 bits
+    public <T extends RealType<T>> void run(final RandomAccessibleInterval<T> img) {
+        run(img, null);
+    }
+
+    public <T extends RealType<T>> void run(final RandomAccessibleInterval<T> img, final TemporalMedian.RowListener listener) {
+        run(PlaneAccess.of(img), listener);
+    }
+
+    void run(final PlaneAccess planes, final TemporalMedian.RowListener listener) {
+        if (planes.depth % series != 0)
+            throw new IllegalArgumentException(planes.depth + " planes are not whole time points of " + series + " series");
+        final int timepoints = Math.min(end, planes.depth / series);
+        if (timepoints - start < window)
+            throw new IllegalArgumentException("The window of " + window + " is larger than the " + (timepoints - start) + " time points to correct");
+        TemporalMedian.main(PlaneAccess.series(planes, series), window, start, timepoints, listener, executor, threads, null, null);
+    }
+}
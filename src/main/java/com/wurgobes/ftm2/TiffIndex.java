@@ -0,0 +1,167 @@
+package com.wurgobes.ftm2;
+/* Cached TIFF index
+(c) 2026 FTM2 contributors, Hohlbein Lab, Wageningen University
+
+Opening a TIFF means walking every IFD in the file, which for a stack of 100k frames takes a long time
+before any processing begins, and happens again on every run.
+The first time a file is opened its IFDs are parsed once by TiffPlaneReader, and the planes (dimensions,
+strip layout and offsets) are stored in an index file in the index directory.
+Later runs read the index instead of the file, which only takes milliseconds.
+An index holds the size and modification time of the file it was made of, when either changed it is made again.
+ImageJ stacks over 4 GB have a single IFD, TiffPlaneReader adds their other planes from the ImageJ description.
+
+Strip offsets are stored as the difference with those of the previous plane, which are all the same
+for most writers, so the deflated index stays small.
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+ */
+
+import java.io.*;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+class TiffIndex {
+
+    private static final int MAGIC = 0x46544D49; // "FTMI"
+    private static final int VERSION = 2; // 2 adds the planes of ImageJ stacks with a single IFD
+    private static final String SUFFIX = ".ftmi";
+
+    final File file;
+    final ByteOrder order;
+    final String description;
+    final List<TiffPlaneReader.Plane> planes;
+
+    private TiffIndex(final File file, final ByteOrder order, final String description, final List<TiffPlaneReader.Plane> planes) {
+        this.file = file;
+        this.order = order;
+        this.description = description;
+        this.planes = planes;
+    }
+
+    // The index of file, read from dir when it is still valid, otherwise the file is parsed and the index is stored in dir
+    static TiffIndex load(final File dir, final File file) throws IOException {
+        final File index = indexFile(dir, file);
+        if (index.isFile()) {
+            try {
+                final TiffIndex stored = read(index, file);
+                if (stored != null) return stored;
+            } catch (IOException e) {
+                // A broken index is made again
+            }
+        }
+
+        final TiffIndex scanned;
+        try (TiffPlaneReader reader = new TiffPlaneReader(file)) {
+            scanned = new TiffIndex(file, reader.order, reader.description, reader.planes);
+        }
+        if (!dir.exists() && !dir.mkdirs()) throw new IOException("Could not create index directory " + dir);
+        final File temp = new File(dir, index.getName() + ".tmp");
+        scanned.write(temp, file.length(), file.lastModified());
+        if (index.exists() && !index.delete()) throw new IOException("Could not replace " + index);
+        if (!temp.renameTo(index)) throw new IOException("Could not write " + index);
+        return scanned;
+    }
+
+    // Files with the same name in different folders get their own index
+    static File indexFile(final File dir, final File file) {
+        return new File(dir, file.getName() + "_" + Integer.toHexString(file.getAbsolutePath().hashCode()) + SUFFIX);
+    }
+
+    // A reader for the indexed planes, which does not parse the file
+    TiffPlaneReader reader() throws IOException {
+        return new TiffPlaneReader(file, order, description, planes);
+    }
+
+    int size() {
+        return planes.size();
+    }
+
+    TiffPlaneReader.Plane first() {
+        return planes.get(0);
+    }
+
+    // Returns null when the index is of another file, or the file changed since it was made
+    private static TiffIndex read(final File index, final File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(new FileInputStream(index)), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+            if (!in.readUTF().equals(file.getAbsolutePath()) || in.readLong() != file.length() || in.readLong() != file.lastModified())
+                return null;
+
+            final ByteOrder order = in.readBoolean() ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+            final int descriptionLength = in.readInt();
+            String description = null;
+            if (descriptionLength >= 0) {
+                final byte[] bytes = new byte[descriptionLength];
+                in.readFully(bytes);
+                description = new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            final int count = in.readInt();
+            final List<TiffPlaneReader.Plane> planes = new ArrayList<>(count);
+            long[] previous = new long[0];
+            for (int n = 0; n < count; n++) {
+                final TiffPlaneReader.Plane plane = new TiffPlaneReader.Plane();
+                plane.width = in.readInt();
+                plane.height = in.readInt();
+                plane.bitsPerSample = in.readInt();
+                plane.compression = in.readInt();
+                plane.predictor = in.readInt();
+                plane.sampleFormat = in.readInt();
+                plane.rowsPerStrip = in.readInt();
+                final int strips = in.readInt();
+                plane.stripOffsets = new long[strips];
+                plane.stripByteCounts = new long[strips];
+                for (int i = 0; i < strips; i++) plane.stripOffsets[i] = in.readLong() + (i < previous.length ? previous[i] : 0);
+                for (int i = 0; i < strips; i++) plane.stripByteCounts[i] = in.readLong();
+                previous = plane.stripOffsets;
+                planes.add(plane);
+            }
+            if (planes.isEmpty()) return null;
+            return new TiffIndex(file, order, description, planes);
+        }
+    }
+
+    private void write(final File index, final long size, final long modified) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new DeflaterOutputStream(new FileOutputStream(index), new Deflater(Deflater.BEST_SPEED), 1 << 16)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(file.getAbsolutePath());
+            out.writeLong(size);
+            out.writeLong(modified);
+            out.writeBoolean(order == ByteOrder.LITTLE_ENDIAN);
+            if (description == null) {
+                out.writeInt(-1);
+            } else {
+                final byte[] bytes = description.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+
+            out.writeInt(planes.size());
+            long[] previous = new long[0];
+            for (TiffPlaneReader.Plane plane : planes) {
+                out.writeInt(plane.width);
+                out.writeInt(plane.height);
+                out.writeInt(plane.bitsPerSample);
+                out.writeInt(plane.compression);
+                out.writeInt(plane.predictor);
+                out.writeInt(plane.sampleFormat);
+                out.writeInt(plane.rowsPerStrip);
+                out.writeInt(plane.stripOffsets.length);
+                for (int i = 0; i < plane.stripOffsets.length; i++) out.writeLong(plane.stripOffsets[i] - (i < previous.length ? previous[i] : 0));
+                for (long count : plane.stripByteCounts) out.writeLong(count);
+                previous = plane.stripOffsets;
+            }
+        }
+    }
+}
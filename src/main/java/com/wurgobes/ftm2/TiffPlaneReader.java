@@ -0,0 +1,490 @@
+package com.wurgobes.ftm2;
+/* TIFF plane reader
+(c) 2026 FTM2 contributors, Hohlbein Lab, Wageningen University
+
+Reads the planes of a (multi-page) TIFF file without ImageJ's Opener.
+All IFDs are parsed up front, after which any plane can be decoded on its own, from any thread.
+The strips of a plane are decoded in parallel on the ForkJoinPool the caller runs on,
+which is how TiffPlaneStack decodes compressed files without blocking the median workers.
+
+Supports classic and BigTIFF, single channel 8, 16 and 32 bit data,
+uncompressed, LZW, Deflate and PackBits strips and the horizontal predictor.
+Signed 16 bit data gets 32768 added, as ImageJ does.
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+ */
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+class TiffPlaneReader implements Closeable {
+
+    static final int NONE = 1;
+    static final int LZW = 5;
+    static final int DEFLATE = 8;
+    static final int PACKBITS = 32773;
+    static final int DEFLATE_OLD = 32946;
+
+    private static final int IMAGE_WIDTH = 256;
+    private static final int IMAGE_LENGTH = 257;
+    private static final int BITS_PER_SAMPLE = 258;
+    private static final int COMPRESSION = 259;
+    private static final int IMAGE_DESCRIPTION = 270;
+    private static final int STRIP_OFFSETS = 273;
+    private static final int SAMPLES_PER_PIXEL = 277;
+    private static final int ROWS_PER_STRIP = 278;
+    private static final int STRIP_BYTE_COUNTS = 279;
+    private static final int PREDICTOR = 317;
+    private static final int TILE_WIDTH = 322;
+    private static final int SAMPLE_FORMAT = 339;
+
+    // Everything needed to decode a single plane
+    static class Plane {
+        int width;
+        int height;
+        int bitsPerSample = 1;
+        int compression = NONE;
+        int predictor = 1;
+        int sampleFormat = 1;
+        int rowsPerStrip = Integer.MAX_VALUE;
+        long[] stripOffsets;
+        long[] stripByteCounts;
+    }
+
+    final File file;
+    final ByteOrder order;
+    final List<Plane> planes;
+    final String description; // The ImageDescription of the first plane, ImageJ stores the hyperstack layout here
+
+    private final FileChannel channel;
+
+    TiffPlaneReader(final File file) throws IOException {
+        this(file, FileChannel.open(file.toPath(), StandardOpenOption.READ), Integer.MAX_VALUE);
+    }
+
+    // Planes that were parsed before, the file is not read until a plane is decoded, see TiffIndex
+    TiffPlaneReader(final File file, final ByteOrder order, final String description, final List<Plane> planes) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.order = order;
+        this.description = description;
+        this.planes = planes;
+    }
+
+    // Only looks at the first plane, so this is cheap even for files with many planes
+    static boolean isCompressed(final File file) {
+        try (TiffPlaneReader reader = new TiffPlaneReader(file, FileChannel.open(file.toPath(), StandardOpenOption.READ), 1)) {
+            return reader.isCompressed();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private TiffPlaneReader(final File file, final FileChannel channel, final int maxPlanes) throws IOException {
+        this.file = file;
+        this.channel = channel;
+
+        final ByteBuffer header = read(0, 16, ByteOrder.BIG_ENDIAN);
+        final int byteOrder = header.getShort(0);
+        if (byteOrder == 0x4949) order = ByteOrder.LITTLE_ENDIAN;
+        else if (byteOrder == 0x4D4D) order = ByteOrder.BIG_ENDIAN;
+        else throw new IOException(file + " is not a TIFF file");
+        header.order(order);
+
+        final int version = header.getShort(2);
+        final boolean big = version == 43;
+        if (!big && version != 42) throw new IOException(file + " is not a TIFF file");
+
+        final String[] description = {null};
+        this.planes = new ArrayList<>();
+        long ifd = big ? header.getLong(8) : header.getInt(4) & 0xffffffffL;
+        while (ifd != 0 && planes.size() < maxPlanes) {
+            ifd = readIFD(ifd, big, description);
+        }
+        this.description = description[0];
+
+        if (planes.isEmpty()) throw new IOException(file + " contains no images");
+        if (maxPlanes == Integer.MAX_VALUE) addContiguous(images(this.description));
+    }
+
+    // The number of images in an ImageJ description, 0 when it is not ImageJ's or does not say
+    static int images(final String description) {
+        if (description == null || !description.startsWith("ImageJ")) return 0;
+        for (String line : description.split("\n")) {
+            if (line.startsWith("images=")) {
+                try {
+                    return Integer.parseInt(line.substring(7).trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 0;
+    }
+
+    // ImageJ writes uncompressed stacks over 4 GB with a single IFD, only its description holds the number of images
+    // ImageJ reads those as planes that follow the first one back to back, so the missing planes are added the same way
+    private void addContiguous(final int images) throws IOException {
+        final Plane first = planes.get(0);
+        if (images <= planes.size() || first.compression != NONE) return;
+        final long planeBytes = (long) first.width * first.height * (first.bitsPerSample / 8);
+        if (first.stripOffsets[0] + images * planeBytes > channel.size())
+            throw new IOException(file + " holds " + images + " images according to its description, but is too short for them");
+        for (int n = planes.size(); n < images; n++) {
+            final Plane plane = new Plane();
+            plane.width = first.width;
+            plane.height = first.height;
+            plane.bitsPerSample = first.bitsPerSample;
+            plane.sampleFormat = first.sampleFormat;
+            plane.rowsPerStrip = first.rowsPerStrip;
+            plane.stripByteCounts = first.stripByteCounts;
+            plane.stripOffsets = new long[first.stripOffsets.length];
+            for (int i = 0; i < plane.stripOffsets.length; i++) plane.stripOffsets[i] = first.stripOffsets[i] + n * planeBytes;
+            planes.add(plane);
+        }
+    }
+
+    // Parse a single IFD into a plane, returns the offset of the next IFD
+    private long readIFD(final long offset, final boolean big, final String[] description) throws IOException {
+        final int countSize = big ? 8 : 2;
+        final int entrySize = big ? 20 : 12;
+        final int nextSize = big ? 8 : 4;
+
+        final ByteBuffer countBuffer = read(offset, countSize, order);
+        final int entries = (int) (big ? countBuffer.getLong(0) : countBuffer.getShort(0) & 0xffff);
+        final ByteBuffer ifd = read(offset + countSize, entries * entrySize + nextSize, order);
+
+        final Plane plane = new Plane();
+        for (int i = 0; i < entries; i++) {
+            final int entry = i * entrySize;
+            final int tag = ifd.getShort(entry) & 0xffff;
+            final int type = ifd.getShort(entry + 2) & 0xffff;
+            final int count = (int) (big ? ifd.getLong(entry + 4) : ifd.getInt(entry + 4) & 0xffffffffL);
+            final int valueOffset = entry + (big ? 12 : 8);
+
+            switch (tag) {
+                case IMAGE_WIDTH: plane.width = (int) values(ifd, valueOffset, type, 1, big)[0]; break;
+                case IMAGE_LENGTH: plane.height = (int) values(ifd, valueOffset, type, 1, big)[0]; break;
+                case BITS_PER_SAMPLE: plane.bitsPerSample = (int) values(ifd, valueOffset, type, 1, big)[0]; break;
+                case COMPRESSION: plane.compression = (int) values(ifd, valueOffset, type, 1, big)[0]; break;
+                case ROWS_PER_STRIP: plane.rowsPerStrip = (int) values(ifd, valueOffset, type, 1, big)[0]; break;
+                case PREDICTOR: plane.predictor = (int) values(ifd, valueOffset, type, 1, big)[0]; break;
+                case SAMPLE_FORMAT: plane.sampleFormat = (int) values(ifd, valueOffset, type, 1, big)[0]; break;
+                case SAMPLES_PER_PIXEL:
+                    if (values(ifd, valueOffset, type, 1, big)[0] != 1) throw new IOException(file + " has more than one sample per pixel");
+                    break;
+                case TILE_WIDTH: throw new IOException(file + " is tiled, only stripped TIFF files are supported");
+                case STRIP_OFFSETS: plane.stripOffsets = values(ifd, valueOffset, type, count, big); break;
+                case STRIP_BYTE_COUNTS: plane.stripByteCounts = values(ifd, valueOffset, type, count, big); break;
+                case IMAGE_DESCRIPTION:
+                    if (description[0] == null) {
+                        final ByteBuffer text = count <= (big ? 8 : 4) ? slice(ifd, valueOffset, count)
+                                : read(big ? ifd.getLong(valueOffset) : ifd.getInt(valueOffset) & 0xffffffffL, count, order);
+                        final byte[] bytes = new byte[count];
+                        text.get(bytes);
+                        description[0] = new String(bytes, StandardCharsets.ISO_8859_1).trim();
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        if (plane.stripOffsets == null || plane.stripByteCounts == null) throw new IOException(file + " has an image without strips");
+        plane.rowsPerStrip = Math.min(plane.rowsPerStrip, plane.height);
+        planes.add(plane);
+
+        final int next = entries * entrySize;
+        return big ? ifd.getLong(next) : ifd.getInt(next) & 0xffffffffL;
+    }
+
+    // Read count values of a SHORT, LONG or LONG8 field, either stored inline or at the offset it points to
+    private long[] values(final ByteBuffer ifd, final int valueOffset, final int type, final int count, final boolean big) throws IOException {
+        final int size = type == 3 ? 2 : type == 16 ? 8 : 4;
+        final int inline = big ? 8 : 4;
+        final ByteBuffer data;
+        if (count * size <= inline) {
+            data = slice(ifd, valueOffset, count * size);
+        } else {
+            final long position = big ? ifd.getLong(valueOffset) : ifd.getInt(valueOffset) & 0xffffffffL;
+            data = read(position, count * size, order);
+        }
+
+        final long[] values = new long[count];
+        for (int i = 0; i < count; i++) {
+            if (size == 2) values[i] = data.getShort(i * 2) & 0xffff;
+            else if (size == 8) values[i] = data.getLong(i * 8);
+            else values[i] = data.getInt(i * 4) & 0xffffffffL;
+        }
+        return values;
+    }
+
+    private static ByteBuffer slice(final ByteBuffer buffer, final int offset, final int length) {
+        final ByteBuffer copy = buffer.duplicate();
+        copy.position(offset);
+        copy.limit(offset + length);
+        return copy.slice().order(buffer.order());
+    }
+
+    // Positional reads do not share state, so these can happen from any thread
+    private ByteBuffer read(final long position, final int length, final ByteOrder order) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length).order(order);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) throw new IOException("Unexpected end of " + file);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    int size() {
+        return planes.size();
+    }
+
+    int width() {
+        return planes.get(0).width;
+    }
+
+    int height() {
+        return planes.get(0).height;
+    }
+
+    int bitDepth() {
+        return planes.get(0).bitsPerSample;
+    }
+
+    boolean isCompressed() {
+        return planes.get(0).compression != NONE;
+    }
+
+    // Decoded size of a plane in bytes
+    long planeBytes() {
+        return (long) width() * height() * (bitDepth() / 8);
+    }
+
+    // Decode plane n (0-based) into a new ImageProcessor
+    // 32 bit integer data is converted to float, as ImageJ does when opening these
+    ImageProcessor readProcessor(final int n) throws IOException {
+        return readProcessor(n, null);
+    }
+
+    // Same, but the pixels are taken from pool when it holds planes of this size
+    ImageProcessor readProcessor(final int n, final PlanePool pool) throws IOException {
+        final Plane plane = planes.get(n);
+        final Object pixels;
+        if (pool != null && pool.matches(plane.bitsPerSample, plane.width * plane.height)) pixels = pool.take();
+        else if (plane.bitsPerSample == 8) pixels = new byte[plane.width * plane.height];
+        else if (plane.bitsPerSample == 16) pixels = new short[plane.width * plane.height];
+        else pixels = new float[plane.width * plane.height];
+
+        readPlane(n, pixels);
+
+        if (pixels instanceof byte[]) return new ByteProcessor(plane.width, plane.height, (byte[]) pixels);
+        if (pixels instanceof short[]) return new ShortProcessor(plane.width, plane.height, (short[]) pixels, null);
+        return new FloatProcessor(plane.width, plane.height, (float[]) pixels);
+    }
+
+    // Decode plane n into pixels, a byte[], short[] or float[] of width * height
+    // The strips are decoded in parallel on the current ForkJoinPool
+    void readPlane(final int n, final Object pixels) throws IOException {
+        final Plane plane = planes.get(n);
+        if (plane.bitsPerSample != 8 && plane.bitsPerSample != 16 && plane.bitsPerSample != 32)
+            throw new IOException(file + " has an unsupported bit depth of " + plane.bitsPerSample);
+
+        try {
+            IntStream.range(0, plane.stripOffsets.length).parallel().forEach(strip -> {
+                try {
+                    readStrip(plane, strip, pixels);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void readStrip(final Plane plane, final int strip, final Object pixels) throws IOException {
+        final int bytesPerSample = plane.bitsPerSample / 8;
+        final int row0 = strip * plane.rowsPerStrip;
+        final int rows = Math.min(plane.rowsPerStrip, plane.height - row0);
+        if (rows <= 0) return;
+
+        final int expected = rows * plane.width * bytesPerSample;
+        final byte[] compressed = new byte[(int) plane.stripByteCounts[strip]];
+        read(plane.stripOffsets[strip], compressed.length, order).get(compressed);
+
+        final byte[] data;
+        switch (plane.compression) {
+            case NONE: data = compressed; break;
+            case LZW: data = lzw(compressed, expected); break;
+            case DEFLATE:
+            case DEFLATE_OLD: data = inflate(compressed, expected); break;
+            case PACKBITS: data = packBits(compressed, expected); break;
+            default: throw new IOException(file + " uses unsupported compression " + plane.compression);
+        }
+
+        final ByteBuffer buffer = ByteBuffer.wrap(data).order(order);
+        final int offset = row0 * plane.width;
+        final int count = Math.min(expected, data.length) / bytesPerSample;
+
+        if (pixels instanceof byte[]) {
+            System.arraycopy(data, 0, pixels, offset, count);
+        } else if (pixels instanceof short[]) {
+            buffer.asShortBuffer().get((short[]) pixels, offset, count);
+        } else if (plane.sampleFormat == 3) {
+            buffer.asFloatBuffer().get((float[]) pixels, offset, count);
+        } else {
+            final float[] target = (float[]) pixels;
+            for (int i = 0; i < count; i++)
+                target[offset + i] = plane.sampleFormat == 2 ? buffer.getInt(i * 4) : buffer.getInt(i * 4) & 0xffffffffL;
+        }
+
+        if (plane.predictor == 2) {
+            // Horizontal differencing, every sample is stored as the difference with the one to its left
+            for (int y = 0; y < rows; y++) {
+                final int start = offset + y * plane.width;
+                if (pixels instanceof byte[]) {
+                    final byte[] target = (byte[]) pixels;
+                    for (int x = 1; x < plane.width; x++) target[start + x] += target[start + x - 1];
+                } else if (pixels instanceof short[]) {
+                    final short[] target = (short[]) pixels;
+                    for (int x = 1; x < plane.width; x++) target[start + x] += target[start + x - 1];
+                } else {
+                    throw new IOException(file + " uses a predictor on 32 bit data, which is not supported");
+                }
+            }
+        } else if (plane.predictor != 1) {
+            throw new IOException(file + " uses unsupported predictor " + plane.predictor);
+        }
+
+        // ImageJ opens signed 16 bit data with 32768 added, so it fits in an unsigned short
+        if (plane.sampleFormat == 2 && pixels instanceof short[]) {
+            final short[] target = (short[]) pixels;
+            for (int i = offset; i < offset + count; i++) target[i] ^= (short) 0x8000;
+        }
+    }
+
+    // TIFF flavoured LZW: MSB first codes of 9 to 12 bits that grow one code early
+    // Every string in the table is a run of bytes that was already written to out,
+    // so the table only keeps the start and length of that run.
+    static byte[] lzw(final byte[] in, final int expected) {
+        final int CLEAR = 256;
+        final int EOI = 257;
+
+        final byte[] out = new byte[expected];
+        final int[] start = new int[4096];
+        final int[] length = new int[4096];
+
+        int pos = 0;
+        int next = 258;
+        int codeLength = 9;
+        int previousStart = -1;
+        int previousLength = 0;
+
+        int bitBuffer = 0;
+        int bits = 0;
+        int inPos = 0;
+
+        while (pos < expected) {
+            while (bits < codeLength && inPos < in.length) {
+                bitBuffer = (bitBuffer << 8) | (in[inPos++] & 0xff);
+                bits += 8;
+            }
+            if (bits < codeLength) break;
+            final int code = (bitBuffer >>> (bits - codeLength)) & ((1 << codeLength) - 1);
+            bits -= codeLength;
+
+            if (code == EOI) break;
+            if (code == CLEAR) {
+                next = 258;
+                codeLength = 9;
+                previousStart = -1;
+                continue;
+            }
+
+            final int currentStart = pos;
+            if (code < 256) {
+                out[pos++] = (byte) code;
+            } else if (code < next) {
+                for (int i = 0; i < length[code] && pos < expected; i++) out[pos++] = out[start[code] + i];
+            } else if (previousStart >= 0) {
+                // The code that is being defined right now: the previous string plus its own first byte
+                for (int i = 0; i < previousLength && pos < expected; i++) out[pos++] = out[previousStart + i];
+                if (pos < expected) out[pos++] = out[previousStart];
+            } else {
+                break; // Corrupt data
+            }
+
+            if (previousStart >= 0 && next < 4096) {
+                start[next] = previousStart;
+                length[next] = previousLength + 1;
+                next++;
+                if (next >= (1 << codeLength) - 1 && codeLength < 12) codeLength++;
+            }
+            previousStart = currentStart;
+            previousLength = pos - currentStart;
+        }
+        return out;
+    }
+
+    static byte[] inflate(final byte[] in, final int expected) throws IOException {
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(in);
+            final byte[] out = new byte[expected];
+            int pos = 0;
+            while (pos < expected && !inflater.finished()) {
+                final int read = inflater.inflate(out, pos, expected - pos);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                pos += read;
+            }
+            return out;
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    static byte[] packBits(final byte[] in, final int expected) {
+        final byte[] out = new byte[expected];
+        int pos = 0;
+        int inPos = 0;
+        while (pos < expected && inPos < in.length) {
+            final int n = in[inPos++];
+            if (n >= 0) {
+                for (int i = 0; i <= n && pos < expected && inPos < in.length; i++) out[pos++] = in[inPos++];
+            } else if (n != -128 && inPos < in.length) {
+                final byte value = in[inPos++];
+                for (int i = 0; i <= -n && pos < expected; i++) out[pos++] = value;
+            }
+        }
+        return out;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
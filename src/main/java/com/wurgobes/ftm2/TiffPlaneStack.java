@@ -0,0 +1,155 @@
+package com.wurgobes.ftm2;
+/* Virtual stack with parallel read-ahead
+(c) 2026 FTM2 contributors, Hohlbein Lab, Wageningen University
+
+A VirtualStack on top of TiffPlaneReader. When a plane is requested, the planes after it are
+already being decoded on a separate pool, so by the time the bracket loop in FTM2 asks for them
+they are ready. Planes are still handed out strictly in the order they are requested.
+The pool is given by the caller, so the decoding threads are a separate budget from the median workers.
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+ */
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.stream.IntStream;
+
+class TiffPlaneStack extends VirtualStack {
+
+    private final TiffPlaneReader reader;
+    private final ForkJoinPool pool;
+    private final int readAhead;
+
+    // Planes that are being decoded, by 1-based slice number
+    private final Map<Integer, ForkJoinTask<ImageProcessor>> pending = new HashMap<>();
+    private int nextToSubmit = 1;
+
+    // When set, planes are decoded into buffers from this pool
+    private volatile PlanePool planePool = null;
+
+    TiffPlaneStack(final TiffPlaneReader reader, final ForkJoinPool pool) {
+        super(reader.width(), reader.height(), null, reader.file.getParent());
+        this.reader = reader;
+        this.pool = pool;
+        this.readAhead = 2 * pool.getParallelism();
+    }
+
+    // A pool for decoding, its threads do not keep ImageJ from closing
+    static ForkJoinPool createPool(final int threads) {
+        return new ForkJoinPool(threads, pool -> {
+            final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setDaemon(true);
+            thread.setName("FTM2-decoder-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+    }
+
+    // Read an entire file into memory, decoding all planes in parallel
+    static ImagePlus openImage(final File file, final ForkJoinPool pool) throws IOException {
+        try (TiffPlaneReader reader = new TiffPlaneReader(file)) {
+            return openImage(reader, pool);
+        }
+    }
+
+    // The same, for a reader that is already open
+    static ImagePlus openImage(final TiffPlaneReader reader, final ForkJoinPool pool) throws IOException {
+        final ImageProcessor[] processors = new ImageProcessor[reader.size()];
+        try {
+            pool.submit(() -> IntStream.range(0, processors.length).parallel().forEach(n -> {
+                try {
+                    processors[n] = reader.readProcessor(n);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof UncheckedIOException ? ((UncheckedIOException) e.getCause()).getCause() : new IOException(e.getCause());
+        }
+
+        final ImageStack stack = new ImageStack(reader.width(), reader.height());
+        for (int n = 0; n < processors.length; n++) stack.addSlice("" + (n + 1), processors[n]);
+        return new ImagePlus(reader.file.getName(), stack);
+    }
+
+    @Override
+    public synchronized ImageProcessor getProcessor(final int n) {
+        // Anything but the next plane means the reader jumped, so start reading ahead from here
+        if (!pending.containsKey(n)) {
+            for (ForkJoinTask<ImageProcessor> task : pending.values()) task.cancel(false);
+            pending.clear();
+            nextToSubmit = n;
+        }
+
+        while (nextToSubmit <= getSize() && nextToSubmit < n + readAhead) {
+            final int plane = nextToSubmit - 1;
+            pending.put(nextToSubmit, pool.submit(() -> {
+                try {
+                    return reader.readProcessor(plane, planePool);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }));
+            nextToSubmit++;
+        }
+
+        return pending.remove(n).join();
+    }
+
+    @Override
+    public Object getPixels(final int n) {
+        return getProcessor(n).getPixels();
+    }
+
+    @Override
+    public int getSize() {
+        return reader.size();
+    }
+
+    @Override
+    public int size() {
+        return getSize();
+    }
+
+    @Override
+    public String getSliceLabel(final int n) {
+        return "" + n;
+    }
+
+    @Override
+    public int getBitDepth() {
+        return reader.bitDepth();
+    }
+
+    void setPlanePool(final PlanePool planePool) {
+        this.planePool = planePool;
+    }
+
+    TiffPlaneReader getReader() {
+        return reader;
+    }
+
+    synchronized void close() throws IOException {
+        for (ForkJoinTask<ImageProcessor> task : pending.values()) task.cancel(false);
+        pending.clear();
+        reader.close();
+    }
+}
@@ -0,0 +1,334 @@
+package com.wurgobes.ftm2;
+/* TIFF plane writer
+(c) 2026 FTM2 contributors, Hohlbein Lab, Wageningen University
+
+Writes the corrected data more compactly than ImageJ's FileSaver.
+After the median is subtracted most values are close to 0, so the output often fits in fewer bits than the input,
+and it compresses well. The planes can be narrowed to 8 or 16 bit (values that don't fit are clamped and counted)
+and their strips are Deflate compressed in parallel on the ForkJoinPool the caller runs on.
+The planes are written one batch at a time, so virtual stacks are never loaded at once.
+The ImageJ description is kept, so ImageJ still opens the file as the same hyperstack.
+For a stack with images= in its description ImageJ only reads the first IFD of an uncompressed file and takes the planes
+to follow each other, so uncompressed planes are written back to back with the other IFDs after them, like ImageJ's
+TiffEncoder does. When those IFDs would not fit in the first 4 GB only the first one is written, which ImageJ reads the same.
+Compressed planes are each written after their own IFD, which is limited to 4 GB.
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+ */
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+import java.util.zip.Deflater;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+class TiffPlaneWriter {
+
+    static final String NONE = "none";
+    static final String DEFLATE = "deflate";
+
+    // 0 as bit depth keeps the bit depth of the image, AUTO picks the smallest one that holds all values
+    static final int AUTO = -1;
+
+    private static final int STRIP_BYTES = 64 * 1024;
+    private static final long MAX_OFFSET = 0xffffffffL;
+
+    // What ended up in the file
+    static class Result {
+        final int bitDepth;
+        final double max; // Largest value in the image
+        final long clamped; // Values that did not fit in the bit depth
+
+        Result(final int bitDepth, final double max, final long clamped) {
+            this.bitDepth = bitDepth;
+            this.max = max;
+            this.clamped = clamped;
+        }
+    }
+
+    private final int bitDepth;
+    private final boolean compress;
+    private final ForkJoinPool pool;
+
+    TiffPlaneWriter(final int bitDepth, final String compression, final ForkJoinPool pool) {
+        if (!compression.equals(NONE) && !compression.equals(DEFLATE))
+            throw new IllegalArgumentException("Unknown compression '" + compression + "', use none or deflate");
+        if (bitDepth != 0 && bitDepth != AUTO && bitDepth != 8 && bitDepth != 16 && bitDepth != 32)
+            throw new IllegalArgumentException("Output bit depth must be 8, 16, 32 or auto");
+        this.bitDepth = bitDepth;
+        this.compress = compression.equals(DEFLATE);
+        this.pool = pool;
+    }
+
+    // How many planes of imp fit in a single file, uncompressed that is all of them (see above)
+    // Compressed planes have to stay below 4 GB, this is bounded by their size when Deflate can't make them any smaller
+    int planesPerFile(final ImagePlus imp) {
+        if (!compress) return Integer.MAX_VALUE;
+        final int bits = bitDepth > 0 ? bitDepth : imp.getBitDepth();
+        final long planeBytes = (long) imp.getWidth() * imp.getHeight() * (bits / 8);
+        final long bound = planeBytes + planeBytes / 100 + 64 * ((planeBytes + STRIP_BYTES - 1) / STRIP_BYTES + 1) + 1024;
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, (MAX_OFFSET - (1 << 20)) / bound));
+    }
+
+    // Parse the output_bits keyword, 0 means the bit depth of the input
+    static int parseBits(final String value) {
+        return value.equalsIgnoreCase("auto") ? AUTO : Integer.parseInt(value);
+    }
+
+    Result write(final File file, final ImagePlus imp) throws IOException {
+        final ImageStack stack = imp.getStack();
+        final int planes = stack.getSize();
+        final int width = stack.getWidth();
+        final int height = stack.getHeight();
+
+        // The range is only needed when narrowing, which costs an extra pass over the planes
+        final double max = bitDepth == 0 || bitDepth == 32 ? Double.NaN : range(stack);
+        final int bits = bitDepth == 0 ? imp.getBitDepth() : bitDepth == AUTO ? smallestFit(max) : bitDepth;
+        final int bytesPerSample = bits / 8;
+        final int rowsPerStrip = max(1, min(height, STRIP_BYTES / (width * bytesPerSample)));
+        final int strips = (height + rowsPerStrip - 1) / rowsPerStrip;
+
+        final byte[] description = (new FileSaver(imp).getDescriptionString() + "\0").getBytes(StandardCharsets.ISO_8859_1);
+        final long[] clamped = new long[planes];
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            header.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(8);
+            header.flip();
+            channel.write(header);
+            long position = 8;
+
+            // Uncompressed, the first IFD is followed by the pixels of all planes and then by the other IFDs
+            final long planeBytes = (long) width * height * bytesPerSample;
+            final long[] lengths = compress ? null : stripLengths(width * bytesPerSample, height, rowsPerStrip);
+            final long dataAt = position + ifdBytes(true, strips) + description.length;
+            final long dataEnd = dataAt + planes * planeBytes;
+            final boolean allIfds = dataEnd + (planes - 1L) * ifdBytes(false, strips) <= MAX_OFFSET;
+            if (!compress) {
+                if (dataAt + planeBytes > MAX_OFFSET) throw new IOException("A plane does not fit in the first 4 GB of a TIFF");
+                position = writeIfd(channel, position, description, planes > 1 && allIfds ? dataEnd : 0, width, height, bits, rowsPerStrip, lengths, dataAt);
+            }
+
+            // A batch of planes is converted and compressed in parallel, and then written in order
+            final int batch = max(1, 2 * pool.getParallelism());
+            final byte[][][] encoded = new byte[batch][][];
+            for (int first = 0; first < planes; first += batch) {
+                final int from = first;
+                final int count = min(batch, planes - first);
+                run(() -> IntStream.range(0, count).parallel().forEach(i -> {
+                    final ImageProcessor ip = stack.getProcessor(from + i + 1);
+                    final byte[] raw = new byte[width * height * bytesPerSample];
+                    clamped[from + i] = convert(ip, bits, raw);
+                    encoded[i] = compress ? encode(raw, width * bytesPerSample, rowsPerStrip, strips) : new byte[][]{raw};
+                }));
+
+                for (int i = 0; i < count; i++) {
+                    final int plane = from + i;
+                    final byte[][] data = encoded[i];
+                    encoded[i] = null;
+                    if (compress) {
+                        position = writePlane(channel, position, plane == 0 ? description : null, plane == planes - 1,
+                                width, height, bits, rowsPerStrip, data);
+                    } else {
+                        write(channel, data[0]);
+                        position += planeBytes;
+                    }
+                }
+            }
+
+            if (!compress && allIfds) {
+                final long size = ifdBytes(false, strips);
+                for (int plane = 1; plane < planes; plane++)
+                    position = writeIfd(channel, position, null, plane == planes - 1 ? 0 : position + size,
+                            width, height, bits, rowsPerStrip, lengths, dataAt + plane * planeBytes);
+            }
+        }
+
+        long total = 0;
+        for (long c : clamped) total += c;
+        return new Result(bits, max, total);
+    }
+
+    // A compressed plane: the IFD comes first, followed by its arrays and the strips, so the offset of the next IFD is known when it is written
+    private long writePlane(final FileChannel channel, final long position, final byte[] description, final boolean last,
+                            final int width, final int height, final int bits, final int rowsPerStrip, final byte[][] strips) throws IOException {
+        final long[] lengths = new long[strips.length];
+        long dataBytes = 0;
+        for (int s = 0; s < strips.length; s++) {
+            lengths[s] = strips[s].length;
+            dataBytes += lengths[s];
+        }
+        final long dataAt = position + ifdBytes(description != null, strips.length) + (description != null ? description.length : 0);
+        final long next = dataAt + dataBytes;
+        if (next > MAX_OFFSET) throw new IOException("Compressed output is larger than 4 GB, which does not fit in a TIFF. Write it uncompressed, or in parts");
+
+        writeIfd(channel, position, description, last ? 0 : next, width, height, bits, rowsPerStrip, lengths, dataAt);
+        for (byte[] strip : strips) write(channel, strip);
+        return next;
+    }
+
+    // The IFD and its arrays, without the description
+    private static int ifdBytes(final boolean description, final int strips) {
+        return 2 + (11 + (description ? 1 : 0)) * 12 + 4 + (strips > 1 ? 8 * strips : 0);
+    }
+
+    // The strips of an uncompressed plane, all rowsPerStrip rows except the last
+    private static long[] stripLengths(final int rowBytes, final int height, final int rowsPerStrip) {
+        final long[] lengths = new long[(height + rowsPerStrip - 1) / rowsPerStrip];
+        for (int s = 0; s < lengths.length; s++) lengths[s] = (long) rowBytes * min(rowsPerStrip, height - s * rowsPerStrip);
+        return lengths;
+    }
+
+    // Write an IFD at position followed by its arrays and the description, the strips of the plane start at dataAt
+    // Returns the position after it
+    private long writeIfd(final FileChannel channel, final long position, final byte[] description, final long next,
+                          final int width, final int height, final int bits, final int rowsPerStrip, final long[] lengths, final long dataAt) throws IOException {
+        final int strips = lengths.length;
+        final int entries = 11 + (description != null ? 1 : 0);
+        final int ifdBytes = ifdBytes(description != null, strips);
+        final long arrays = position + 2 + entries * 12 + 4;
+        final long descriptionAt = position + ifdBytes;
+        final int descriptionBytes = description != null ? description.length : 0;
+
+        final ByteBuffer ifd = ByteBuffer.allocate(ifdBytes + descriptionBytes).order(ByteOrder.LITTLE_ENDIAN);
+        ifd.putShort((short) entries);
+        // Entries have to be sorted by tag
+        entry(ifd, 254, 4, 1, 0); // NewSubfileType
+        entry(ifd, 256, 4, 1, width);
+        entry(ifd, 257, 4, 1, height);
+        entry(ifd, 258, 3, 1, bits);
+        entry(ifd, 259, 3, 1, compress ? TiffPlaneReader.DEFLATE : TiffPlaneReader.NONE);
+        entry(ifd, 262, 3, 1, 1); // BlackIsZero
+        if (description != null) entry(ifd, 270, 2, description.length, descriptionAt);
+        entry(ifd, 273, 4, strips, strips > 1 ? arrays : dataAt);
+        entry(ifd, 277, 3, 1, 1);
+        entry(ifd, 278, 4, 1, rowsPerStrip);
+        entry(ifd, 279, 4, strips, strips > 1 ? arrays + 4L * strips : lengths[0]);
+        entry(ifd, 339, 3, 1, bits == 32 ? 3 : 1); // Float or unsigned integer
+        ifd.putInt((int) next);
+
+        if (strips > 1) {
+            long offset = dataAt;
+            for (long length : lengths) {
+                ifd.putInt((int) offset);
+                offset += length;
+            }
+            for (long length : lengths) ifd.putInt((int) length);
+        }
+        if (description != null) ifd.put(description);
+        ifd.flip();
+        while (ifd.hasRemaining()) channel.write(ifd);
+        return descriptionAt + descriptionBytes;
+    }
+
+    private static void write(final FileChannel channel, final byte[] bytes) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+
+    private static void entry(final ByteBuffer ifd, final int tag, final int type, final int count, final long value) {
+        ifd.putShort((short) tag).putShort((short) type).putInt(count);
+        // A single short is stored in the first two bytes of the value
+        if (type == 3 && count == 1) ifd.putShort((short) value).putShort((short) 0);
+        else ifd.putInt((int) value);
+    }
+
+    // Split a plane into strips and compress each of them
+    private byte[][] encode(final byte[] raw, final int rowBytes, final int rowsPerStrip, final int strips) {
+        final byte[][] encoded = new byte[strips][];
+        final int stripBytes = rowBytes * rowsPerStrip;
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        final byte[] buffer = new byte[stripBytes + stripBytes / 100 + 64];
+        for (int s = 0; s < strips; s++) {
+            final int from = s * stripBytes;
+            final int length = min(stripBytes, raw.length - from);
+            deflater.reset();
+            deflater.setInput(raw, from, length);
+            deflater.finish();
+            int size = 0;
+            byte[] out = buffer;
+            while (!deflater.finished()) {
+                if (size == out.length) out = Arrays.copyOf(out, 2 * out.length);
+                size += deflater.deflate(out, size, out.length - size);
+            }
+            encoded[s] = Arrays.copyOf(out, size);
+        }
+        deflater.end();
+        return encoded;
+    }
+
+    // Write the plane as little endian samples of bits, returns how many values had to be clamped
+    private static long convert(final ImageProcessor ip, final int bits, final byte[] raw) {
+        final int size = ip.getWidth() * ip.getHeight();
+        final ByteBuffer out = ByteBuffer.wrap(raw).order(ByteOrder.LITTLE_ENDIAN);
+        final boolean isFloat = ip.getBitDepth() == 32;
+        long clamped = 0;
+        if (bits == 32) {
+            for (int i = 0; i < size; i++) out.putFloat(ip.getf(i));
+            return 0;
+        }
+        final int limit = bits == 8 ? 255 : 65535;
+        for (int i = 0; i < size; i++) {
+            long value = isFloat ? Math.round(ip.getf(i)) : ip.get(i);
+            if (value > limit || value < 0) {
+                clamped++;
+                value = value < 0 ? 0 : limit;
+            }
+            if (bits == 8) out.put((byte) value);
+            else out.putShort((short) value);
+        }
+        return clamped;
+    }
+
+    // The largest value in the stack
+    private double range(final ImageStack stack) throws IOException {
+        final double[] max = new double[stack.getSize()];
+        run(() -> IntStream.range(0, max.length).parallel().forEach(n -> {
+            final ImageProcessor ip = stack.getProcessor(n + 1);
+            final int size = ip.getWidth() * ip.getHeight();
+            double m = 0;
+            for (int i = 0; i < size; i++) m = Math.max(m, ip.getf(i));
+            max[n] = m;
+        }));
+        double m = 0;
+        for (double value : max) m = Math.max(m, value);
+        return m;
+    }
+
+    private static int smallestFit(final double max) {
+        if (max <= 255) return 8;
+        if (max <= 65535) return 16;
+        return 32;
+    }
+
+    private void run(final Runnable task) throws IOException {
+        try {
+            pool.submit(task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof UncheckedIOException ? ((UncheckedIOException) e.getCause()).getCause() : new IOException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.wurgobes.ftm2;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PlaneAccessTest {
+
+    @Test
+    public void checkedSizeKeepsSizesThatFit() {
+        assertEquals(0, PlaneAccess.checkedSize(0, "width"));
+        assertEquals(Integer.MAX_VALUE, PlaneAccess.checkedSize(Integer.MAX_VALUE, "width"));
+    }
+
+    @Test
+    public void checkedSizeRejectsSizesAboveAnInt() {
+        // A frame of 65536 x 40000 pixels is fine, its offset into a single array is not
+        final long pixels = 65536L * 40000;
+        try {
+            PlaneAccess.checkedSize(pixels, "offset");
+            fail("A size of " + pixels + " should not fit in an int");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("offset"));
+            assertTrue(e.getMessage().contains(String.valueOf(pixels)));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void checkedSizeRejectsOneAboveMaxValue() {
+        PlaneAccess.checkedSize(Integer.MAX_VALUE + 1L, "number of planes");
+    }
+}
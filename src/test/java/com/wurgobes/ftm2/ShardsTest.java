@@ -0,0 +1,166 @@
+package com.wurgobes.ftm2;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.Opener;
+import ij.process.ByteProcessor;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ShardsTest {
+
+    private static final int WIDTH = 40;
+    private static final int HEIGHT = 30;
+    private static final int FRAMES = 6;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Shard i covers [lower, upper] and writes lower until upper, so every shard starts where the last one ended
+    private static void assertContiguous(final int first, final int last, final int count) {
+        int expected = first;
+        for (int i = 1; i <= count; i++) {
+            final int[] range = Shards.split(first, last, i, count);
+            assertEquals("shard " + i + " of " + count, expected, range[0]);
+            assertTrue("shard " + i + " of " + count, range[1] >= range[0] && range[1] <= last);
+            expected = range[1];
+        }
+        assertEquals(last, expected);
+    }
+
+    @Test
+    public void splitFramesIsContiguous() {
+        assertContiguous(1, 1000, 1);
+        assertContiguous(1, 1000, 7);
+        assertContiguous(5, 12, 8);
+    }
+
+    @Test
+    public void splitFramesUpToTheLastInt() {
+        // (last - first + count) overflows an int
+        assertContiguous(1, Integer.MAX_VALUE, 3);
+        assertContiguous(1, Integer.MAX_VALUE, 1000);
+
+        final int[] range = Shards.split(1, Integer.MAX_VALUE, 2, 2);
+        assertEquals(1 + (Integer.MAX_VALUE / 2 + 1), range[0]);
+        assertEquals(Integer.MAX_VALUE, range[1]);
+    }
+
+    @Test
+    public void splitRowsOfAFrameAboveAnIntOfPixels() {
+        // A frame of 65536 x 40000 pixels split in bands of rows, every band still holds more than 2^31 / count pixels
+        final int width = 65536;
+        final int height = 40000;
+        final int count = 3;
+        assertContiguous(0, height, count);
+
+        long pixels = 0;
+        for (int i = 1; i <= count; i++) {
+            final int[] band = Shards.split(0, height, i, count);
+            pixels += (long) width * (band[1] - band[0]);
+        }
+        assertEquals((long) width * height, pixels);
+        assertTrue(pixels > Integer.MAX_VALUE);
+    }
+
+    private static int value(final int frame, final int y, final int x) {
+        return frame * 1000 + y * WIDTH + x;
+    }
+
+    // Frames first until last (0-based, exclusive) of rows y0 until y0 + height
+    private static ImagePlus part(final int first, final int last, final int y0, final int height) {
+        final ImageStack stack = new ImageStack(WIDTH, height);
+        for (int f = first; f < last; f++) {
+            final short[] pixels = new short[WIDTH * height];
+            for (int y = 0; y < height; y++)
+                for (int x = 0; x < WIDTH; x++) pixels[y * WIDTH + x] = (short) value(f, y0 + y, x);
+            stack.addSlice("" + (f + 1), pixels);
+        }
+        return new ImagePlus("part", stack);
+    }
+
+    // Write shard index of 2 as a single part with its manifest
+    private static void shard(final File dir, final String mode, final int index, final ImagePlus part, final int y0,
+                              final int first, final int last, final String scaling) throws IOException {
+        final String name = Shards.partName("job", index, 2, 1, "tif");
+        new TiffPlaneWriter(16, TiffPlaneWriter.DEFLATE, ForkJoinPool.commonPool()).write(new File(dir, name), part);
+        Shards.writeManifest(new File(dir, Shards.manifestName("job", index, 2)), "job", mode, index, 2,
+                WIDTH, part.getHeight(), y0, first, last, scaling, Collections.singletonList(name));
+    }
+
+    private static void assertMerged(final List<String> paths) {
+        assertEquals(1, paths.size());
+        final ImagePlus merged = new Opener().openImage(paths.get(0));
+        assertEquals(FRAMES, merged.getStackSize());
+        assertEquals(HEIGHT, merged.getHeight());
+        for (int f = 0; f < FRAMES; f++)
+            for (int y = 0; y < HEIGHT; y++)
+                for (int x = 0; x < WIDTH; x++)
+                    assertEquals("frame " + f + " at " + x + "," + y, value(f, y, x), merged.getStack().getProcessor(f + 1).get(x, y));
+    }
+
+    @Test
+    public void mergeFrameShards() throws IOException {
+        final File dir = folder.newFolder("shards");
+        shard(dir, Shards.FRAMES, 1, part(0, 4, 0, HEIGHT), 0, 1, 4, Shards.UNSCALED);
+        shard(dir, Shards.FRAMES, 2, part(4, FRAMES, 0, HEIGHT), 0, 5, FRAMES, Shards.UNSCALED);
+
+        // Written by ImageJ without output settings, by TiffPlaneWriter with them
+        assertMerged(Shards.merge(dir, folder.newFolder("imagej"), "tif", null));
+        assertMerged(Shards.merge(dir, folder.newFolder("writer"), "tif", new TiffPlaneWriter(16, TiffPlaneWriter.NONE, ForkJoinPool.commonPool())));
+    }
+
+    @Test
+    public void mergeRowShards() throws IOException {
+        final File dir = folder.newFolder("shards");
+        shard(dir, Shards.ROWS, 1, part(0, FRAMES, 0, 12), 0, 1, FRAMES, Shards.UNSCALED);
+        shard(dir, Shards.ROWS, 2, part(0, FRAMES, 12, HEIGHT - 12), 12, 1, FRAMES, Shards.UNSCALED);
+        assertMerged(Shards.merge(dir, folder.newFolder("merged"), "tif", new TiffPlaneWriter(0, TiffPlaneWriter.DEFLATE, ForkJoinPool.commonPool())));
+    }
+
+    @Test
+    public void mergeRefusesShardsScaledDifferently() throws IOException {
+        final File dir = folder.newFolder("shards");
+        shard(dir, Shards.FRAMES, 1, part(0, 4, 0, HEIGHT), 0, 1, 4, "0.0,100.0");
+        shard(dir, Shards.FRAMES, 2, part(4, FRAMES, 0, HEIGHT), 0, 5, FRAMES, "0.0,200.0");
+        try {
+            Shards.merge(dir, folder.newFolder("merged"), "tif", null);
+            fail("Shards with different scaling were merged");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("scaled"));
+        }
+    }
+
+    @Test
+    public void mergeRefusesMissingShards() throws IOException {
+        final File dir = folder.newFolder("shards");
+        shard(dir, Shards.FRAMES, 1, part(0, 4, 0, HEIGHT), 0, 1, 4, Shards.UNSCALED);
+        try {
+            Shards.merge(dir, folder.newFolder("merged"), "tif", null);
+            fail("An incomplete job was merged");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("1 of 2"));
+        }
+    }
+
+    @Test
+    public void compressedOutputIsSplitBelow4GB() {
+        final ImagePlus imp = new ImagePlus("large", new ByteProcessor(4096, 4096));
+        assertEquals(Integer.MAX_VALUE, new TiffPlaneWriter(16, TiffPlaneWriter.NONE, ForkJoinPool.commonPool()).planesPerFile(imp));
+        final int per = new TiffPlaneWriter(16, TiffPlaneWriter.DEFLATE, ForkJoinPool.commonPool()).planesPerFile(imp);
+        final long planeBytes = 4096L * 4096 * 2;
+        assertTrue(per > 0 && per * planeBytes * 101 / 100 < 0xffffffffL);
+        assertTrue((per + 2) * planeBytes > 0xffffffffL);
+    }
+}
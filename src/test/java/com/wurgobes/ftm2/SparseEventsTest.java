@@ -0,0 +1,84 @@
+package com.wurgobes.ftm2;
+
+import ij.ImagePlus;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SparseEventsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void eventsOfTheMedianAreReadBackAsTheDenseOutput() throws IOException {
+        final int width = 40;
+        final int height = 30;
+        final int series = 2;
+        final int timepoints = 25;
+        final int threshold = 20;
+        final HyperstackLayout layout = new HyperstackLayout(series, 1, timepoints);
+
+        // A noisy background with a few bright spots that the median removes
+        final Random random = new Random(3);
+        final Object[] arrays = new Object[series * timepoints];
+        for (int p = 0; p < arrays.length; p++) {
+            final short[] pixels = new short[width * height];
+            for (int i = 0; i < pixels.length; i++) pixels[i] = (short) (1000 + random.nextInt(30) + (random.nextInt(50) == 0 ? 500 : 0));
+            arrays[p] = pixels;
+        }
+
+        // Every thread writes its own rows, the dense output is only compared to what is read back
+        final short[][] dense = new short[arrays.length][width * height];
+        final TemporalMedian.RowListener capture = (z, y, x0, len, background, corrected) -> {
+            for (int i = 0; i < len; i++) dense[z][y * width + x0 + i] = (short) (corrected[i] > threshold ? corrected[i] : 0);
+        };
+
+        final File file = new File(folder.getRoot(), SparseEvents.fileName("median"));
+        final SparseEvents.Writer writer = new SparseEvents.Writer(file, width, height, arrays.length, 16, layout, threshold);
+        TemporalMedian.main(PlaneAccess.series(PlaneAccess.ofArrays(arrays, new int[arrays.length], width, height), series), 5, 0, timepoints,
+                TemporalMedian.RowListener.of(writer, capture), null, 4, null, null);
+        writer.close();
+
+        final ImagePlus read = SparseEvents.read(file);
+        assertEquals(series, read.getNChannels());
+        assertEquals(timepoints, read.getNFrames());
+        int events = 0;
+        for (int p = 0; p < arrays.length; p++) {
+            final short[] pixels = (short[]) read.getStack().getPixels(p + 1);
+            for (int i = 0; i < pixels.length; i++) {
+                assertEquals("plane " + p + " pixel " + i, dense[p][i], pixels[i]);
+                if (pixels[i] != 0) events++;
+            }
+        }
+        assertTrue("the spots are events", events > 0);
+        assertTrue("only the events are stored", file.length() < arrays.length * width * height);
+    }
+
+    @Test
+    public void rowsLongerThanASegment() throws IOException {
+        // Columns are unsigned shorts, a longer row is split into several records
+        final int width = 70000;
+        final int[] corrected = new int[width];
+        for (int x = 0; x < width; x += 7) corrected[x] = 1 + x % 200;
+
+        final File file = new File(folder.getRoot(), SparseEvents.fileName("wide"));
+        final SparseEvents.Writer writer = new SparseEvents.Writer(file, width, 2, 1, 8, new HyperstackLayout(1, 1, 1), 0);
+        writer.row(0, 1, 0, width, new int[width], corrected);
+        writer.row(1, 1, 0, width, new int[width], corrected); // Outside the planes of the file, dropped
+        writer.close();
+
+        final byte[] pixels = (byte[]) SparseEvents.read(file).getStack().getPixels(1);
+        for (int x = 0; x < width; x++) {
+            assertEquals(0, pixels[x]);
+            assertEquals("column " + x, corrected[x], pixels[width + x] & 0xff);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.wurgobes.ftm2;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static com.wurgobes.ftm2.TemporalMedian.TILE_HEIGHT;
+import static com.wurgobes.ftm2.TemporalMedian.TILE_WIDTH;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TemporalMedianTest {
+
+    // The same block size in every tile of every series
+    private static int[][] blockSize(final int series, final int width, final int height, final int size) {
+        final int tiles = ((width + TILE_WIDTH - 1) / TILE_WIDTH) * ((height + TILE_HEIGHT - 1) / TILE_HEIGHT);
+        final int[][] blockSize = new int[series][tiles];
+        for (int[] sizes : blockSize) Arrays.fill(sizes, size);
+        return blockSize;
+    }
+
+    @Test
+    public void blocksCoverEveryPixelOnce() {
+        // A width and height that are not a multiple of the tile size, and block sizes that differ per tile
+        final int width = 2 * TILE_WIDTH + 37;
+        final int height = TILE_HEIGHT + 5;
+        final int[][] blockSize = {{7, 13, 1, TILE_WIDTH, 5, 40}, {TILE_WIDTH, 3, 9, 2, 100, 7}};
+        final TemporalMedian.Blocks blocks = new TemporalMedian.Blocks(width, height, blockSize, 0, 2L * height);
+
+        final int[] covered = new int[2 * width * height];
+        int t = 0;
+        for (long b = 0; b < blocks.count(); b++) {
+            t = blocks.tile(b, t);
+            final int s = blocks.series(t);
+            final int y = blocks.y(b, t);
+            final int x0 = blocks.x0(b, t);
+            final int len = blocks.length(b, t);
+            assertTrue("block " + b + " is empty", len > 0);
+            assertTrue("block " + b + " crosses a tile column", x0 / TILE_WIDTH == (x0 + len - 1) / TILE_WIDTH);
+            assertEquals("block " + b + " has the size of its tile", blockSize[s][(y / TILE_HEIGHT) * 3 + x0 / TILE_WIDTH], blocks.size(t));
+            for (int x = x0; x < x0 + len; x++) covered[(s * height + y) * width + x]++;
+        }
+        for (int i = 0; i < covered.length; i++) assertEquals("pixel " + i, 1, covered[i]);
+    }
+
+    @Test
+    public void blocksOfRowsStartInTheRightSeries() {
+        final int width = 3 * TILE_WIDTH;
+        final int height = 100;
+        final TemporalMedian.Blocks blocks = new TemporalMedian.Blocks(width, height, blockSize(2, width, height, TILE_WIDTH), 90, 110);
+
+        assertEquals(20L * 3, blocks.count());
+        assertEquals(0, blocks.series(blocks.tile(0, 0)));
+        assertEquals(90, blocks.y(0, blocks.tile(0, 0)));
+        // Blocks go tile by tile, the second block is the next row of the first tile
+        assertEquals(91, blocks.y(1, blocks.tile(1, 0)));
+        assertEquals(0, blocks.x0(1, blocks.tile(1, 0)));
+        // The eleventh row is the first row of the second series
+        final int second = blocks.tile(10 * 3, 0);
+        assertEquals(1, blocks.series(second));
+        assertEquals(0, blocks.y(10 * 3, second));
+        final int last = blocks.tile(blocks.count() - 1, 0);
+        assertEquals(9, blocks.y(blocks.count() - 1, last));
+        assertEquals(2 * TILE_WIDTH, blocks.x0(blocks.count() - 1, last));
+    }
+
+    @Test
+    public void blocksOfFramesAboveAnIntOfPixels() {
+        // Two series of 65536 x 40000 pixels in single pixel blocks, more blocks than an int can count
+        final int width = 65536;
+        final int height = 40000;
+        final TemporalMedian.Blocks blocks = new TemporalMedian.Blocks(width, height, blockSize(2, width, height, 1), 0, 2L * height);
+        assertEquals(2L * width * height, blocks.count());
+        assertTrue(blocks.count() > Integer.MAX_VALUE);
+
+        // A row of tiles holds 2^22 blocks, so block 2^31 is the first pixel of row 32768
+        final long half = 1L << 31;
+        final int t = blocks.tile(half, 0);
+        assertEquals(0, blocks.series(t));
+        assertEquals(32768, blocks.y(half, t));
+        assertEquals(0, blocks.x0(half, t));
+
+        // The first block of the second series is past 2^31 as well
+        final long second = (long) width * height;
+        final int u = blocks.tile(second, t);
+        assertEquals(1, blocks.series(u));
+        assertEquals(0, blocks.y(second, u));
+        assertEquals(0, blocks.x0(second, u));
+
+        final long last = blocks.count() - 1;
+        final int v = blocks.tile(last, u);
+        assertEquals(1, blocks.series(v));
+        assertEquals(height - 1, blocks.y(last, v));
+        assertEquals(width - 1, blocks.x0(last, v));
+        assertEquals(1, blocks.length(last, v));
+    }
+}
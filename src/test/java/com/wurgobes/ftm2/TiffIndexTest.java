@@ -0,0 +1,93 @@
+package com.wurgobes.ftm2;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.Opener;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TiffIndexTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static ImagePlus stack(final int planes) {
+        final ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+        for (int z = 0; z < planes; z++) {
+            final short[] pixels = new short[WIDTH * HEIGHT];
+            for (int i = 0; i < pixels.length; i++) pixels[i] = (short) (z * 100 + i % 100);
+            stack.addSlice("" + (z + 1), pixels);
+        }
+        return new ImagePlus("stack", stack);
+    }
+
+    private static File write(final File file, final int planes) throws IOException {
+        new TiffPlaneWriter(16, TiffPlaneWriter.NONE, ForkJoinPool.commonPool()).write(file, stack(planes));
+        return file;
+    }
+
+    @Test
+    public void indexIsReadBackInsteadOfTheFile() throws IOException {
+        final File dir = folder.newFolder("index");
+        final File file = write(folder.newFile("a.tif"), 5);
+
+        final TiffIndex scanned = TiffIndex.load(dir, file);
+        assertEquals(5, scanned.size());
+        assertTrue(TiffIndex.indexFile(dir, file).isFile());
+
+        final TiffIndex stored = TiffIndex.load(dir, file);
+        assertEquals(5, stored.size());
+        for (int n = 0; n < 5; n++)
+            assertEquals(scanned.planes.get(n).stripOffsets[0], stored.planes.get(n).stripOffsets[0]);
+        assertEquals(200 + 7, stored.reader().readProcessor(2).get(7));
+    }
+
+    @Test
+    public void indexIsMadeAgainWhenTheFileChanges() throws IOException {
+        final File dir = folder.newFolder("index");
+        final File file = write(folder.newFile("a.tif"), 5);
+        assertEquals(5, TiffIndex.load(dir, file).size());
+
+        write(file, 3);
+        assertTrue(file.setLastModified(file.lastModified() + 2000));
+        final TiffIndex changed = TiffIndex.load(dir, file);
+        assertEquals(3, changed.size());
+        assertEquals(200 + 7, changed.reader().readProcessor(2).get(7));
+    }
+
+    @Test
+    public void imageJStackWithASingleIfd() throws IOException {
+        // ImageJ writes uncompressed stacks over 4 GB with only the first IFD, the description says how many planes follow
+        final File file = write(folder.newFile("single.tif"), 5);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(8);
+            final int entries = Short.reverseBytes(raf.readShort()) & 0xffff;
+            raf.seek(8 + 2 + entries * 12L);
+            raf.writeInt(0);
+        }
+
+        final ImagePlus opened = new Opener().openImage(file.getPath());
+        assertEquals(5, opened.getStackSize());
+
+        final TiffIndex index = TiffIndex.load(folder.newFolder("index"), file);
+        assertEquals(5, index.size());
+        try (TiffPlaneReader reader = index.reader()) {
+            for (int n = 0; n < 5; n++) {
+                assertEquals(n * 100 + 7, reader.readProcessor(n).get(7));
+                assertEquals(opened.getStack().getProcessor(n + 1).get(WIDTH * HEIGHT - 1), reader.readProcessor(n).get(WIDTH * HEIGHT - 1));
+            }
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package com.wurgobes.ftm2;
+
+import ij.ImagePlus;
+import ij.io.Opener;
+import ij.process.ImageProcessor;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TiffPlaneReaderTest {
+
+    private static final int WIDTH = 90;
+    private static final int HEIGHT = 60; // Two strips of 30 rows
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // TIFF LZW as libtiff writes it: MSB first codes that grow one code early, cleared before the table is full
+    private static byte[] lzw(final byte[] in) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final Map<Integer, Integer> table = new HashMap<>();
+        final int[] state = {0, 0}; // bit buffer and the number of bits in it
+        int codeLength = 9;
+        int next = 258;
+
+        writeCode(out, state, 256, codeLength);
+        int prefix = -1;
+        for (byte b : in) {
+            final int c = b & 0xff;
+            if (prefix < 0) {
+                prefix = c;
+                continue;
+            }
+            final Integer code = table.get(prefix << 8 | c);
+            if (code != null) {
+                prefix = code;
+                continue;
+            }
+            writeCode(out, state, prefix, codeLength);
+            table.put(prefix << 8 | c, next++);
+            if (next == 4094) {
+                writeCode(out, state, 256, codeLength);
+                table.clear();
+                next = 258;
+                codeLength = 9;
+            } else if (next > (1 << codeLength) - 1) {
+                codeLength++;
+            }
+            prefix = c;
+        }
+        writeCode(out, state, prefix, codeLength);
+        if (++next > (1 << codeLength) - 1) codeLength++;
+        writeCode(out, state, 257, codeLength);
+        if (state[1] > 0) out.write(state[0] << (8 - state[1]));
+        return out.toByteArray();
+    }
+
+    private static void writeCode(final ByteArrayOutputStream out, final int[] state, final int code, final int length) {
+        state[0] = state[0] << length | code;
+        state[1] += length;
+        while (state[1] >= 8) {
+            out.write(state[0] >>> (state[1] - 8));
+            state[1] -= 8;
+        }
+        state[0] &= (1 << state[1]) - 1;
+    }
+
+    // Runs of three or more equal bytes are repeated, everything else is copied as literals
+    private static byte[] packBits(final byte[] in) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int i = 0;
+        while (i < in.length) {
+            int run = 1;
+            while (i + run < in.length && run < 128 && in[i + run] == in[i]) run++;
+            if (run >= 3) {
+                out.write(1 - run);
+                out.write(in[i]);
+                i += run;
+                continue;
+            }
+            int literal = 1;
+            while (i + literal < in.length && literal < 128
+                    && !(i + literal + 2 < in.length && in[i + literal] == in[i + literal + 1] && in[i + literal] == in[i + literal + 2]))
+                literal++;
+            out.write(literal - 1);
+            out.write(in, i, literal);
+            i += literal;
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] deflate(final byte[] in) {
+        final Deflater deflater = new Deflater();
+        deflater.setInput(in);
+        deflater.finish();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        while (!deflater.finished()) out.write(buffer, 0, deflater.deflate(buffer));
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    // A plane of smooth values with some noise, signed data goes below 0
+    private static int value(final int x, final int y, final boolean signed) {
+        return (x * 7 + y * 3 + (x * y) % 5) * 11 - (signed ? 2000 : 0);
+    }
+
+    // The little endian samples of rows row0 until row0 + rows, horizontally differenced for predictor 2
+    private static byte[] samples(final int bits, final boolean signed, final int predictor, final int row0, final int rows) {
+        final ByteBuffer buffer = ByteBuffer.allocate(rows * WIDTH * bits / 8).order(ByteOrder.LITTLE_ENDIAN);
+        for (int y = row0; y < row0 + rows; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                final int v = value(x, y, signed) - (predictor == 2 && x > 0 ? value(x - 1, y, signed) : 0);
+                if (bits == 8) buffer.put((byte) v);
+                else buffer.putShort((short) v);
+            }
+        }
+        return buffer.array();
+    }
+
+    private File tiff(final int bits, final int compression, final int predictor, final int sampleFormat) throws IOException {
+        final byte[][] strips = new byte[2][];
+        for (int s = 0; s < 2; s++) {
+            final byte[] raw = samples(bits, sampleFormat == 2, predictor, s * HEIGHT / 2, HEIGHT / 2);
+            strips[s] = compression == TiffPlaneReader.LZW ? lzw(raw)
+                    : compression == TiffPlaneReader.PACKBITS ? packBits(raw)
+                    : compression == TiffPlaneReader.DEFLATE ? deflate(raw) : raw;
+        }
+
+        final int entries = 11;
+        final int offsets = 8 + 2 + entries * 12 + 4;
+        final int data = offsets + 16;
+        final ByteBuffer out = ByteBuffer.allocate(data + strips[0].length + strips[1].length).order(ByteOrder.LITTLE_ENDIAN);
+        out.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(8);
+        out.putShort((short) entries);
+        entry(out, 256, 4, 1, WIDTH);
+        entry(out, 257, 4, 1, HEIGHT);
+        entry(out, 258, 3, 1, bits);
+        entry(out, 259, 3, 1, compression);
+        entry(out, 262, 3, 1, 1);
+        entry(out, 273, 4, 2, offsets);
+        entry(out, 277, 3, 1, 1);
+        entry(out, 278, 4, 1, HEIGHT / 2);
+        entry(out, 279, 4, 2, offsets + 8);
+        entry(out, 317, 3, 1, predictor);
+        entry(out, 339, 3, 1, sampleFormat);
+        out.putInt(0);
+        out.putInt(data).putInt(data + strips[0].length);
+        out.putInt(strips[0].length).putInt(strips[1].length);
+        out.put(strips[0]).put(strips[1]);
+
+        final File file = folder.newFile(bits + "_" + compression + "_" + predictor + "_" + sampleFormat + ".tif");
+        try (FileOutputStream stream = new FileOutputStream(file)) {
+            stream.write(out.array());
+        }
+        return file;
+    }
+
+    private static void entry(final ByteBuffer out, final int tag, final int type, final int count, final int value) {
+        out.putShort((short) tag).putShort((short) type).putInt(count);
+        if (type == 3) out.putShort((short) value).putShort((short) 0);
+        else out.putInt(value);
+    }
+
+    private void assertReadAsImageJ(final int bits, final int compression, final int predictor, final int sampleFormat) throws IOException {
+        assertRead(bits, compression, predictor, sampleFormat, true);
+    }
+
+    // TiffPlaneReader gives the values that were written, and so does ImageJ when imageJ is set
+    private void assertRead(final int bits, final int compression, final int predictor, final int sampleFormat, final boolean imageJ) throws IOException {
+        final File file = tiff(bits, compression, predictor, sampleFormat);
+        final String what = bits + " bit, compression " + compression + ", predictor " + predictor + ", sample format " + sampleFormat;
+        final ImagePlus opened = new Opener().openImage(file.getPath());
+        try (TiffPlaneReader reader = new TiffPlaneReader(file)) {
+            final ImageProcessor ip = reader.readProcessor(0);
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    final int mask = bits == 8 ? 0xff : 0xffff;
+                    final int expected = sampleFormat == 2 ? value(x, y, true) + 32768 : value(x, y, false) & mask;
+                    assertEquals(what + " at " + x + "," + y, expected, ip.get(x, y));
+                    if (imageJ) assertEquals(what + " read by ImageJ at " + x + "," + y, expected, opened.getProcessor().get(x, y));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void compressedStrips() throws IOException {
+        for (int bits : new int[]{8, 16}) {
+            assertReadAsImageJ(bits, TiffPlaneReader.NONE, 1, 1);
+            assertReadAsImageJ(bits, TiffPlaneReader.LZW, 1, 1);
+            assertReadAsImageJ(bits, TiffPlaneReader.PACKBITS, 1, 1);
+            assertReadAsImageJ(bits, TiffPlaneReader.DEFLATE, 1, 1);
+        }
+    }
+
+    @Test
+    public void horizontalPredictor() throws IOException {
+        for (int bits : new int[]{8, 16}) {
+            assertReadAsImageJ(bits, TiffPlaneReader.LZW, 2, 1);
+            // ImageJ 1.53f ignores the predictor of Deflate data, so this is only read by TiffPlaneReader
+            assertRead(bits, TiffPlaneReader.DEFLATE, 2, 1, false);
+        }
+    }
+
+    @Test
+    public void signed16BitIsOffsetAsImageJDoes() throws IOException {
+        assertReadAsImageJ(16, TiffPlaneReader.NONE, 1, 2);
+        assertReadAsImageJ(16, TiffPlaneReader.LZW, 2, 2);
+    }
+
+    @Test
+    public void lzwClearsTheTableOfLongStrips() {
+        // Enough varied data to fill the table of 4096 codes several times, with long runs in between
+        final Random random = new Random(42);
+        final byte[] data = new byte[200000];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) ((i / 5000) % 3 == 0 ? 7 : random.nextInt(40));
+        assertArrayEquals(data, TiffPlaneReader.lzw(lzw(data), data.length));
+    }
+
+    @Test
+    public void packBitsRunsAndLiterals() {
+        final byte[] encoded = {2, 1, 2, 3, -3, 9, -128, 0, 7};
+        assertArrayEquals(new byte[]{1, 2, 3, 9, 9, 9, 9, 7}, TiffPlaneReader.packBits(encoded, 8));
+    }
+}
@@ -0,0 +1,95 @@
+package com.wurgobes.ftm2;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.Opener;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+
+public class TiffPlaneWriterTest {
+
+    private static final int WIDTH = 100;
+    private static final int HEIGHT = 700; // More than one strip per plane
+    private static final int PLANES = 5;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static int value(final int z, final int i) {
+        return z * 1000 + i % 997;
+    }
+
+    private static ImagePlus stack() {
+        final ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+        for (int z = 0; z < PLANES; z++) {
+            final short[] pixels = new short[WIDTH * HEIGHT];
+            for (int i = 0; i < pixels.length; i++) pixels[i] = (short) value(z, i);
+            stack.addSlice("" + (z + 1), pixels);
+        }
+        return new ImagePlus("stack", stack);
+    }
+
+    private File write(final int bits, final String compression) throws IOException {
+        final File file = folder.newFile(bits + compression + ".tif");
+        final TiffPlaneWriter.Result result = new TiffPlaneWriter(bits, compression, ForkJoinPool.commonPool()).write(file, stack());
+        assertEquals(bits, result.bitDepth);
+        return file;
+    }
+
+    private static void assertPlanes(final String what, final int bits, final ImageStack stack) {
+        assertEquals(what, PLANES, stack.getSize());
+        for (int z = 0; z < PLANES; z++) {
+            for (int i = 0; i < WIDTH * HEIGHT; i++) {
+                final int expected = bits == 8 ? Math.min(255, value(z, i)) : value(z, i);
+                assertEquals(what + " plane " + (z + 1) + " pixel " + i, expected, stack.getProcessor(z + 1).getf(i), 0);
+            }
+        }
+    }
+
+    private void roundTrip(final int bits, final String compression) throws IOException {
+        final File file = write(bits, compression);
+        final String what = bits + " bit " + compression;
+
+        // ImageJ takes the number of planes from the description and, uncompressed, expects them back to back
+        final ImagePlus opened = new Opener().openImage(file.getPath());
+        assertEquals(what, bits, opened.getBitDepth());
+        assertPlanes(what + " read by ImageJ", bits, opened.getStack());
+
+        try (TiffPlaneReader reader = new TiffPlaneReader(file)) {
+            final ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+            for (int n = 0; n < reader.size(); n++) stack.addSlice("" + (n + 1), reader.readProcessor(n));
+            assertPlanes(what + " read by TiffPlaneReader", bits, stack);
+        }
+    }
+
+    @Test
+    public void uncompressedRoundTrip() throws IOException {
+        roundTrip(8, TiffPlaneWriter.NONE);
+        roundTrip(16, TiffPlaneWriter.NONE);
+        roundTrip(32, TiffPlaneWriter.NONE);
+    }
+
+    @Test
+    public void deflateRoundTrip() throws IOException {
+        roundTrip(8, TiffPlaneWriter.DEFLATE);
+        roundTrip(16, TiffPlaneWriter.DEFLATE);
+        roundTrip(32, TiffPlaneWriter.DEFLATE);
+    }
+
+    @Test
+    public void clampedValuesAreCounted() throws IOException {
+        final File file = folder.newFile("clamped.tif");
+        final TiffPlaneWriter.Result result = new TiffPlaneWriter(8, TiffPlaneWriter.NONE, ForkJoinPool.commonPool()).write(file, stack());
+        long expected = 0;
+        for (int z = 0; z < PLANES; z++)
+            for (int i = 0; i < WIDTH * HEIGHT; i++) if (value(z, i) > 255) expected++;
+        assertEquals(expected, result.clamped);
+    }
+}